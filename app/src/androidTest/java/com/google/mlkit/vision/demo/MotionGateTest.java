@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Checks which NV21 frames {@link MotionGate} takes as still. */
+@RunWith(AndroidJUnit4.class)
+public class MotionGateTest {
+
+  // The gate samples the centre of every 10 x 10 cell of a frame this size.
+  private static final int WIDTH = 320;
+  private static final int HEIGHT = 320;
+  private static final int CELL_SIZE = 10;
+  private static final byte BACKGROUND = (byte) 128;
+  // The largest luma change MotionGate takes as noise.
+  private static final int NOISE_LEVEL = 16;
+  private static final long FRAME_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(33);
+  private static final long MAX_STALENESS_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(MotionGate.DEFAULT_MAX_STALENESS_MILLIS);
+
+  private MotionGate gate;
+
+  @Before
+  public void setUp() {
+    gate =
+        new MotionGate(
+            MotionGate.DEFAULT_MIN_CHANGED_FRACTION, MotionGate.DEFAULT_MAX_STALENESS_MILLIS);
+  }
+
+  @Test
+  public void isStill_sameFrame_isStillAfterFirst() {
+    byte[] frame = newFrame(WIDTH, HEIGHT);
+
+    assertFalse(isStill(frame, 0));
+    assertTrue(isStill(frame, FRAME_INTERVAL_NANOS));
+    assertTrue(isStill(frame, 2 * FRAME_INTERVAL_NANOS));
+  }
+
+  @Test
+  public void isStill_changeWithinNoiseLevel_isStill() {
+    byte[] frame = newFrame(WIDTH, HEIGHT);
+    assertFalse(isStill(frame, 0));
+
+    Arrays.fill(frame, 0, WIDTH * HEIGHT, (byte) ((BACKGROUND & 0xff) + NOISE_LEVEL));
+
+    assertTrue(isStill(frame, FRAME_INTERVAL_NANOS));
+  }
+
+  @Test
+  public void isStill_changeAboveNoiseLevelEverywhere_hasMotion() {
+    byte[] frame = newFrame(WIDTH, HEIGHT);
+    assertFalse(isStill(frame, 0));
+
+    Arrays.fill(frame, 0, WIDTH * HEIGHT, (byte) ((BACKGROUND & 0xff) + NOISE_LEVEL + 1));
+
+    assertFalse(isStill(frame, FRAME_INTERVAL_NANOS));
+    // The frame with motion is the one later frames are compared to.
+    assertTrue(isStill(frame, 2 * FRAME_INTERVAL_NANOS));
+  }
+
+  @Test
+  public void isStill_fewerChangedSamplesThanFraction_isStill() {
+    byte[] frame = newFrame(WIDTH, HEIGHT);
+    assertFalse(isStill(frame, 0));
+
+    // One sampled cell of 1024, below the default 1%.
+    fillCells(frame, /* cellColumnCount= */ 1);
+
+    assertTrue(isStill(frame, FRAME_INTERVAL_NANOS));
+  }
+
+  @Test
+  public void isStill_moreChangedSamplesThanFraction_hasMotion() {
+    byte[] frame = newFrame(WIDTH, HEIGHT);
+    assertFalse(isStill(frame, 0));
+
+    // A row of 32 sampled cells of 1024, above the default 1%.
+    fillCells(frame, WIDTH / CELL_SIZE);
+
+    assertFalse(isStill(frame, FRAME_INTERVAL_NANOS));
+  }
+
+  @Test
+  public void isStill_sizeChanged_hasMotion() {
+    assertFalse(isStill(newFrame(WIDTH, HEIGHT), WIDTH, HEIGHT, 0));
+
+    // The same content, so only the size tells the frames apart.
+    assertFalse(isStill(newFrame(HEIGHT / 2, WIDTH), HEIGHT / 2, WIDTH, FRAME_INTERVAL_NANOS));
+    assertTrue(isStill(newFrame(HEIGHT / 2, WIDTH), HEIGHT / 2, WIDTH, 2 * FRAME_INTERVAL_NANOS));
+  }
+
+  @Test
+  public void isStill_referenceStale_hasMotionAndRefreshes() {
+    byte[] frame = newFrame(WIDTH, HEIGHT);
+    assertFalse(isStill(frame, 0));
+
+    assertTrue(isStill(frame, MAX_STALENESS_NANOS - 1));
+    assertFalse(isStill(frame, MAX_STALENESS_NANOS));
+    // The stale frame was taken as the new reference, so its age counts from there.
+    assertTrue(isStill(frame, 2 * MAX_STALENESS_NANOS - 1));
+  }
+
+  private boolean isStill(byte[] frame, long nowNanos) {
+    return isStill(frame, WIDTH, HEIGHT, nowNanos);
+  }
+
+  private boolean isStill(byte[] frame, int width, int height, long nowNanos) {
+    return gate.isStillNv21(ByteBuffer.wrap(frame), width, height, nowNanos);
+  }
+
+  /** Returns a uniformly gray NV21 frame. */
+  private static byte[] newFrame(int width, int height) {
+    byte[] frame = new byte[width * height * 3 / 2];
+    Arrays.fill(frame, BACKGROUND);
+    return frame;
+  }
+
+  /** Makes the luma of cells in the top row, starting at the left edge, white. */
+  private static void fillCells(byte[] frame, int cellColumnCount) {
+    for (int y = 0; y < CELL_SIZE; y++) {
+      Arrays.fill(frame, y * WIDTH, y * WIDTH + cellColumnCount * CELL_SIZE, (byte) 255);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo;
+
+import android.os.Bundle;
+import android.util.Log;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Times small operations on the device for benchmarks that run as instrumentation tests.
+ *
+ * <p>An operation is run for a number of warm-up rounds, so it is compiled and its caches are
+ * filled, then timed over several rounds of many calls. The median time per call is reported, which
+ * ignores rounds disturbed by garbage collection or scheduling. Results are logged under {@value
+ * #TAG} and sent as instrumentation status, so {@code am instrument -r} prints them.
+ */
+public final class TimedBenchmark {
+
+  public static final String TAG = "TimedBenchmark";
+
+  // Status code of additional results, which test runners print without treating them as a test
+  // event.
+  private static final int STATUS_CODE_ADDITIONAL_INFO = 2;
+
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int TIMED_ROUNDS = 15;
+
+  /** An operation to time. */
+  public interface Operation {
+    void run() throws Exception;
+  }
+
+  private TimedBenchmark() {}
+
+  /**
+   * Returns the median time one call of {@code operation} takes, in nanoseconds, and reports it
+   * under {@code name}.
+   *
+   * @param callsPerRound how many calls are timed together, enough for a round to take well over
+   *     the timer resolution
+   */
+  public static double measureNanosPerCall(String name, int callsPerRound, Operation operation)
+      throws Exception {
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      for (int i = 0; i < callsPerRound; i++) {
+        operation.run();
+      }
+    }
+    double[] roundNanos = new double[TIMED_ROUNDS];
+    for (int round = 0; round < TIMED_ROUNDS; round++) {
+      long startNanos = System.nanoTime();
+      for (int i = 0; i < callsPerRound; i++) {
+        operation.run();
+      }
+      roundNanos[round] = (System.nanoTime() - startNanos) / (double) callsPerRound;
+    }
+    Arrays.sort(roundNanos);
+    double median = roundNanos[TIMED_ROUNDS / 2];
+    report(name, String.format(Locale.US, "%.1f ns/call", median));
+    return median;
+  }
+
+  /** Logs a result and sends it as instrumentation status. */
+  public static void report(String name, String value) {
+    Log.i(TAG, name + ": " + value);
+    Bundle status = new Bundle();
+    status.putString(name, value);
+    InstrumentationRegistry.getInstrumentation().sendStatus(STATUS_CODE_ADDITIONAL_INFO, status);
+  }
+}
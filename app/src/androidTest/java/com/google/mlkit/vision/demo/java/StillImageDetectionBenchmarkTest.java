@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.mlkit.vision.demo.GraphicOverlay;
+import com.google.mlkit.vision.demo.TimedBenchmark;
+import com.google.mlkit.vision.demo.java.posedetector.PoseDetectorProcessor;
+import com.google.mlkit.vision.demo.java.posedetector.exercise.ExerciseLibrary;
+import com.google.mlkit.vision.demo.metrics.LatencyHistogram;
+import com.google.mlkit.vision.demo.metrics.PipelineLatency;
+import com.google.mlkit.vision.pose.PoseDetectorOptions;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Runs still images of a few sizes through {@link VisionProcessorBase#processBitmap} and reports
+ * the latency of every pipeline stage and the bytes of the bitmaps, before and after they are
+ * scaled down for detection.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StillImageDetectionBenchmarkTest {
+
+  // Width and height: below the detection size, a typical photo and a full 12 MP photo.
+  private static final int[][] IMAGE_SIZES = {{480, 640}, {1080, 1440}, {3024, 4032}};
+  private static final int IMAGES_PER_SIZE = 10;
+  private static final long RESULT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+  private static final long POLL_INTERVAL_MILLIS = 5;
+
+  @Test
+  public void benchmark_processBitmap() throws Exception {
+    for (int[] size : IMAGE_SIZES) {
+      measure(size[0], size[1]);
+    }
+  }
+
+  private static void measure(int width, int height) throws Exception {
+    Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+    Context context = instrumentation.getTargetContext();
+    GraphicOverlay overlay = new GraphicOverlay(context, null);
+    overlay.setImageSourceInfo(width, height, /* isFlipped= */ false);
+    PoseDetectorProcessor processor =
+        new PoseDetectorProcessor(
+            context,
+            new PoseDetectorOptions.Builder()
+                .setDetectorMode(PoseDetectorOptions.SINGLE_IMAGE_MODE)
+                .build(),
+            /* showInFrameLikelihood= */ false,
+            /* interpolatePose= */ false,
+            ExerciseLibrary.getProgram(context, /* name= */ null));
+    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    bitmap.eraseColor(Color.GRAY);
+    try {
+      PipelineLatency latency = processor.getPipelineLatency();
+      for (int i = 0; i < IMAGES_PER_SIZE; i++) {
+        instrumentation.runOnMainSync(() -> processor.processBitmap(bitmap, overlay));
+        awaitCount(latency, PipelineLatency.STAGE_RESULT_HANDLING, i + 1);
+      }
+
+      String name = "processBitmap " + width + "x" + height;
+      int detectionWidth = processor.getStillImageDetectionWidth(bitmap);
+      int detectionHeight = processor.getStillImageDetectionHeight(bitmap);
+      boolean isScaled = detectionWidth != width || detectionHeight != height;
+      TimedBenchmark.report(name + ", bitmap KB", String.valueOf(bitmap.getByteCount() / 1024));
+      TimedBenchmark.report(
+          name + ", detected " + detectionWidth + "x" + detectionHeight + " KB",
+          // The scaled bitmap is ARGB_8888 like its source.
+          String.valueOf(isScaled ? detectionWidth * detectionHeight * 4 / 1024 : 0));
+      for (int stage = 0; stage < PipelineLatency.NUM_STAGES; stage++) {
+        LatencyHistogram histogram = getAll(latency, stage);
+        if (histogram.getCount() == 0) {
+          continue;
+        }
+        TimedBenchmark.report(
+            name + ", " + PipelineLatency.getStageName(stage) + " p50 ms",
+            String.format(Locale.US, "%.2f", histogram.getValueAtPercentile(50) / 1e6));
+      }
+
+      assertEquals(
+          IMAGES_PER_SIZE, getAll(latency, PipelineLatency.STAGE_INFERENCE).getCount());
+      // Only images larger than the detection size are converted.
+      assertEquals(
+          isScaled ? IMAGES_PER_SIZE : 0,
+          getAll(latency, PipelineLatency.STAGE_CONVERSION).getCount());
+    } finally {
+      instrumentation.runOnMainSync(processor::stop);
+      bitmap.recycle();
+    }
+  }
+
+  /** Returns everything a stage recorded, whether or not it was snapshotted yet. */
+  private static LatencyHistogram getAll(PipelineLatency latency, int stage) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.add(latency.getCumulative(stage));
+    histogram.add(latency.getLiveHistogram(stage));
+    return histogram;
+  }
+
+  /** Waits until a stage recorded {@code count} values, which happens on the main thread. */
+  private static void awaitCount(PipelineLatency latency, int stage, long count)
+      throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + RESULT_TIMEOUT_NANOS;
+    while (getAll(latency, stage).getCount() < count) {
+      if (System.nanoTime() - deadlineNanos >= 0) {
+        throw new AssertionError("No result for image " + count);
+      }
+      Thread.sleep(POLL_INTERVAL_MILLIS);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.mlkit.vision.demo.TimedBenchmark;
+import com.google.mlkit.vision.pose.PoseLandmark;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares {@link JointAngles} with the per-joint {@code getAngle} it replaced, which took two
+ * {@link Math#atan2} calls and a {@link Math#toDegrees} per angle, and checks the accuracy of the
+ * fast arctangent.
+ */
+@RunWith(AndroidJUnit4.class)
+public class JointAnglesBenchmarkTest {
+
+  private static final int POSES = 64;
+  private static final int CALLS_PER_ROUND = 2_000;
+
+  // The (first, joint, last) landmarks of every angle but the trunk, as JointAngles computes them.
+  private static final int[] TRIPLETS = {
+    PoseLandmark.Type.LEFT_SHOULDER, PoseLandmark.Type.LEFT_ELBOW, PoseLandmark.Type.LEFT_WRIST,
+    PoseLandmark.Type.RIGHT_SHOULDER, PoseLandmark.Type.RIGHT_ELBOW, PoseLandmark.Type.RIGHT_WRIST,
+    PoseLandmark.Type.LEFT_ELBOW, PoseLandmark.Type.LEFT_SHOULDER, PoseLandmark.Type.LEFT_HIP,
+    PoseLandmark.Type.RIGHT_ELBOW, PoseLandmark.Type.RIGHT_SHOULDER, PoseLandmark.Type.RIGHT_HIP,
+    PoseLandmark.Type.LEFT_SHOULDER, PoseLandmark.Type.LEFT_HIP, PoseLandmark.Type.LEFT_KNEE,
+    PoseLandmark.Type.RIGHT_SHOULDER, PoseLandmark.Type.RIGHT_HIP, PoseLandmark.Type.RIGHT_KNEE,
+    PoseLandmark.Type.LEFT_HIP, PoseLandmark.Type.LEFT_KNEE, PoseLandmark.Type.LEFT_ANKLE,
+    PoseLandmark.Type.RIGHT_HIP, PoseLandmark.Type.RIGHT_KNEE, PoseLandmark.Type.RIGHT_ANKLE,
+    PoseLandmark.Type.LEFT_KNEE, PoseLandmark.Type.LEFT_ANKLE, PoseLandmark.Type.LEFT_FOOT_INDEX,
+    PoseLandmark.Type.RIGHT_KNEE, PoseLandmark.Type.RIGHT_ANKLE, PoseLandmark.Type.RIGHT_FOOT_INDEX,
+  };
+  private static final int LIMB_ANGLES = TRIPLETS.length / 3;
+
+  // Documented accuracy of the fast arctangent.
+  private static final double FAST_ATAN_MAX_ERROR_DEGREES = 0.001;
+  // Float coordinates of a 1000 px image against the double reference.
+  private static final double KERNEL_MAX_ERROR_DEGREES = 0.01;
+
+  private final LandmarkArrays[] poses = createPoses(new Random(42));
+  private final float[] angles = new float[JointAngles.NUM_ANGLES];
+  // Keeps the timed results alive.
+  private double sink;
+
+  @Test
+  public void fastAtan2_matchesAtan2OverTheUpperHalfPlane() {
+    double maxErrorDegrees = 0;
+    int steps = 100_000;
+    for (int i = 0; i <= steps; i++) {
+      double radians = Math.PI * i / steps;
+      for (float radius : new float[] {1e-3f, 1f, 1e3f}) {
+        float y = (float) (radius * Math.sin(radians));
+        float x = (float) (radius * Math.cos(radians));
+        double error = Math.abs(JointAngles.fastAtan2(y, x) - Math.atan2(y, x));
+        maxErrorDegrees = Math.max(maxErrorDegrees, Math.toDegrees(error));
+      }
+    }
+    TimedBenchmark.report(
+        "fastAtan2 max error", String.format(Locale.US, "%.6f degrees", maxErrorDegrees));
+    assertTrue(
+        "fastAtan2 is off by " + maxErrorDegrees + " degrees",
+        maxErrorDegrees < FAST_ATAN_MAX_ERROR_DEGREES);
+    assertEquals(0f, JointAngles.fastAtan2(0f, 0f), 0f);
+  }
+
+  @Test
+  public void compute_matchesGetAngle() {
+    for (boolean useFastAtan : new boolean[] {false, true}) {
+      for (LandmarkArrays pose : poses) {
+        JointAngles.compute(pose, angles, useFastAtan);
+        for (int i = 0, t = 0; i < LIMB_ANGLES; i++, t += 3) {
+          double expected = getAngle(pose, TRIPLETS[t], TRIPLETS[t + 1], TRIPLETS[t + 2]);
+          assertEquals(expected, angles[i], KERNEL_MAX_ERROR_DEGREES);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void benchmark_allLimbAngles() throws Exception {
+    int[] next = new int[1];
+    double getAngleNanos =
+        TimedBenchmark.measureNanosPerCall(
+            "getAngle, 10 angles",
+            CALLS_PER_ROUND,
+            () -> {
+              LandmarkArrays pose = poses[next[0]++ % POSES];
+              for (int t = 0; t < TRIPLETS.length; t += 3) {
+                sink += getAngle(pose, TRIPLETS[t], TRIPLETS[t + 1], TRIPLETS[t + 2]);
+              }
+            });
+    double kernelNanos =
+        TimedBenchmark.measureNanosPerCall(
+            "JointAngles.compute, 11 angles",
+            CALLS_PER_ROUND,
+            () -> {
+              JointAngles.compute(poses[next[0]++ % POSES], angles, /* useFastAtan= */ false);
+              sink += angles[0];
+            });
+    double fastKernelNanos =
+        TimedBenchmark.measureNanosPerCall(
+            "JointAngles.compute with fast atan, 11 angles",
+            CALLS_PER_ROUND,
+            () -> {
+              JointAngles.compute(poses[next[0]++ % POSES], angles, /* useFastAtan= */ true);
+              sink += angles[0];
+            });
+    TimedBenchmark.report(
+        "JointAngles speedup over getAngle",
+        String.format(
+            Locale.US,
+            "%.1fx, %.1fx with fast atan",
+            getAngleNanos / kernelNanos,
+            getAngleNanos / fastKernelNanos));
+  }
+
+  /** The angle code JointAngles replaced, in degrees within [0, 180]. */
+  private static double getAngle(LandmarkArrays pose, int first, int mid, int last) {
+    double result =
+        Math.toDegrees(
+            Math.atan2(1.0 * pose.y[last] - pose.y[mid], 1.0 * pose.x[last] - pose.x[mid])
+                - Math.atan2(pose.y[first] - pose.y[mid], pose.x[first] - pose.x[mid]));
+    result = Math.abs(result);
+    if (result > 180) {
+      result = 360.0 - result;
+    }
+    return result;
+  }
+
+  private static LandmarkArrays[] createPoses(Random random) {
+    LandmarkArrays[] poses = new LandmarkArrays[POSES];
+    for (int i = 0; i < POSES; i++) {
+      poses[i] = new LandmarkArrays();
+      for (int j = 0; j < LandmarkArrays.NUM_LANDMARKS; j++) {
+        poses[i].x[j] = random.nextFloat() * 1000;
+        poses[i].y[j] = random.nextFloat() * 1000;
+      }
+    }
+    return poses;
+  }
+}
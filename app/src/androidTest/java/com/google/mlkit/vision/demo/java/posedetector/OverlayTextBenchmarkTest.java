@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.mlkit.vision.demo.GraphicOverlay;
+import com.google.mlkit.vision.demo.InferenceInfoGraphic;
+import com.google.mlkit.vision.demo.TimedBenchmark;
+import com.google.mlkit.vision.demo.java.posedetector.exercise.ExerciseEvaluator;
+import com.google.mlkit.vision.demo.java.posedetector.exercise.ExerciseLibrary;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks that drawing the overlay text of a frame allocates nothing, strings included, and times
+ * it. The scene is what a camera frame of the pose processor shows: the inference info and a pose
+ * with the in-frame likelihood of every landmark, which formats 35 numbers per frame.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OverlayTextBenchmarkTest {
+
+  private static final int VIEW_WIDTH = 1080;
+  private static final int VIEW_HEIGHT = 1920;
+  private static final int WARMUP_FRAMES = 20;
+  private static final int COUNTED_FRAMES = 100;
+
+  private GraphicOverlay overlay;
+  private Canvas canvas;
+
+  @Before
+  public void setUp() {
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    overlay = new GraphicOverlay(context, null);
+    overlay.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+    overlay.setImageSourceInfo(480, 640, /* isFlipped= */ false);
+    canvas = new Canvas(Bitmap.createBitmap(VIEW_WIDTH, VIEW_HEIGHT, Bitmap.Config.ARGB_8888));
+
+    LandmarkArrays landmarks = new LandmarkArrays();
+    for (int i = 0; i < LandmarkArrays.NUM_LANDMARKS; i++) {
+      landmarks.x[i] = 100 + 8 * i;
+      landmarks.y[i] = 50 + 16 * i;
+      landmarks.inFrameLikelihood[i] = i / (float) LandmarkArrays.NUM_LANDMARKS;
+    }
+    landmarks.setPopulated();
+    ExerciseEvaluator evaluator =
+        new ExerciseEvaluator(ExerciseLibrary.getProgram(context, /* name= */ null));
+    evaluator.evaluate(landmarks);
+
+    overlay.setScene(
+        Arrays.<GraphicOverlay.Graphic>asList(
+            new InferenceInfoGraphic(
+                overlay,
+                /* imageWidth= */ 240,
+                /* imageHeight= */ 320,
+                12.34,
+                /* framesPerSecond= */ 30,
+                InferenceInfoGraphic.createValueText()),
+            new PoseGraphic(
+                overlay,
+                landmarks,
+                System.nanoTime(),
+                /* showInFrameLikelihood= */ true,
+                evaluator,
+                new PoseSkeletonRenderer(),
+                PoseGraphic.createValueText())));
+  }
+
+  @Test
+  @SuppressWarnings("deprecation") // The only per-thread allocation counter there is.
+  public void drawScene_allocatesNothingPerFrame() {
+    for (int i = 0; i < WARMUP_FRAMES; i++) {
+      overlay.drawScene(canvas);
+    }
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    for (int i = 0; i < COUNTED_FRAMES; i++) {
+      overlay.drawScene(canvas);
+    }
+    Debug.stopAllocCounting();
+    int allocations = Debug.getThreadAllocCount();
+    TimedBenchmark.report(
+        "Overlay text allocations per frame", String.valueOf(allocations / (float) COUNTED_FRAMES));
+    assertEquals("Objects allocated in " + COUNTED_FRAMES + " frames", 0, allocations);
+  }
+
+  @Test
+  public void benchmark_drawScene() throws Exception {
+    TimedBenchmark.measureNanosPerCall(
+        "drawScene, info and pose with likelihoods", 200, () -> overlay.drawScene(canvas));
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.recording;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.mlkit.vision.demo.FrameMetadata;
+import com.google.mlkit.vision.demo.GraphicOverlay;
+import com.google.mlkit.vision.demo.TimedBenchmark;
+import com.google.mlkit.vision.demo.java.posedetector.PoseDetectorProcessor;
+import com.google.mlkit.vision.demo.java.posedetector.exercise.ExerciseLibrary;
+import com.google.mlkit.vision.demo.metrics.PipelineLatency;
+import com.google.mlkit.vision.pose.PoseDetectorOptions;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Replays a frame ring file into the pose processor and reports the throughput and latencies.
+ *
+ * <p>A {@code frames.ring} recorded by the live preview, with frame recording enabled in the
+ * settings, is replayed if the app has one; otherwise synthetic frames are recorded first.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReplayFrameSourceTest {
+
+  // Written by CameraXLivePreviewActivity.
+  private static final String RECORDED_FILE = "frames.ring";
+  private static final int SYNTHETIC_WIDTH = 480;
+  private static final int SYNTHETIC_HEIGHT = 640;
+  private static final int SYNTHETIC_FRAME_COUNT = 30;
+  private static final long SYNTHETIC_FRAME_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(33);
+  // Far from zero, so a replay clock anchored at zero instead of the first frame never finishes.
+  private static final long SYNTHETIC_FIRST_TIMESTAMP_NANOS = TimeUnit.DAYS.toNanos(10);
+  // Leaves time for the detector to load its model and finish the last frames.
+  private static final long REPLAY_SLACK_NANOS = TimeUnit.SECONDS.toNanos(10);
+  private static final long REPORT_TIMEOUT_SECONDS = 60;
+
+  private Context context;
+  private GraphicOverlay graphicOverlay;
+  private PoseDetectorProcessor processor;
+  private File syntheticFile;
+
+  @Before
+  public void setUp() {
+    context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    graphicOverlay = new GraphicOverlay(context, null);
+    processor =
+        new PoseDetectorProcessor(
+            context,
+            new PoseDetectorOptions.Builder()
+                .setDetectorMode(PoseDetectorOptions.STREAM_MODE)
+                .build(),
+            /* showInFrameLikelihood= */ false,
+            /* interpolatePose= */ false,
+            ExerciseLibrary.getProgram(context, /* name= */ null));
+    syntheticFile = new File(context.getCacheDir(), "replay_test_frames.ring");
+  }
+
+  @After
+  public void tearDown() {
+    processor.stop();
+    syntheticFile.delete();
+  }
+
+  @Test
+  public void replay_maxThroughput_processesEveryFrame() throws Exception {
+    File file = new File(context.getFilesDir(), RECORDED_FILE);
+    if (!file.exists()) {
+      file = syntheticFile;
+      recordSyntheticFrames(file);
+    }
+    int frameCount = getFrameCount(file);
+
+    ReplayFrameSource.Report report = replay(file, ReplayFrameSource.Mode.MAX_THROUGHPUT);
+
+    TimedBenchmark.report(
+        "Replay fps, " + file.getName(),
+        String.format(Locale.US, "%.1f", report.getProcessedFps()));
+    for (int stage = 0; stage < PipelineLatency.NUM_STAGES; stage++) {
+      if (report.getLatency(stage).getCount() > 0) {
+        double p50Millis = report.getLatency(stage).getValueAtPercentile(50) / 1e6;
+        TimedBenchmark.report(
+            "Replay p50 " + PipelineLatency.getStageName(stage) + " ms",
+            String.format(Locale.US, "%.2f", p50Millis));
+      }
+    }
+    // Frames a crash left half written are not handed over, but none of the others is dropped.
+    assertTrue(report.inputFrameCount <= frameCount);
+    assertEquals(report.inputFrameCount, report.processedFrameCount);
+  }
+
+  @Test
+  public void replay_realTime_startsClockAtFirstReadableFrame() throws Exception {
+    recordSyntheticFrames(syntheticFile);
+    invalidateOldestFrame(syntheticFile);
+
+    ReplayFrameSource.Report report = replay(syntheticFile, ReplayFrameSource.Mode.REAL_TIME);
+
+    // Frames the processor cannot keep up with are dropped, not delayed.
+    assertEquals(SYNTHETIC_FRAME_COUNT - 1, report.inputFrameCount);
+    assertTrue(
+        "Replay took " + report.elapsedNanos + " ns",
+        report.elapsedNanos
+            < (SYNTHETIC_FRAME_COUNT - 2) * SYNTHETIC_FRAME_INTERVAL_NANOS + REPLAY_SLACK_NANOS);
+  }
+
+  private ReplayFrameSource.Report replay(File file, ReplayFrameSource.Mode mode)
+      throws Exception {
+    SettableFuture<ReplayFrameSource.Report> finished = SettableFuture.create();
+    ReplayFrameSource source =
+        new ReplayFrameSource(
+            file,
+            mode,
+            processor,
+            graphicOverlay,
+            processor.getPipelineLatency(),
+            processor.getFrameRates());
+    source.start(finished::set);
+    try {
+      ReplayFrameSource.Report report = finished.get(REPORT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      assertNotNull(report);
+      return report;
+    } catch (TimeoutException e) {
+      source.stop();
+      throw e;
+    }
+  }
+
+  /** Records gray frames with a moving bright square, waiting whenever the recorder is full. */
+  private static void recordSyntheticFrames(File file) throws Exception {
+    FrameRecorder recorder = new FrameRecorder(file, FrameRecorder.DEFAULT_MAX_FILE_BYTES);
+    FrameMetadata metadata =
+        new FrameMetadata.Builder()
+            .setWidth(SYNTHETIC_WIDTH)
+            .setHeight(SYNTHETIC_HEIGHT)
+            .setRotation(0)
+            .build();
+    byte[] nv21 = new byte[SYNTHETIC_WIDTH * SYNTHETIC_HEIGHT * 3 / 2];
+    for (int i = 0; i < SYNTHETIC_FRAME_COUNT; i++) {
+      Arrays.fill(nv21, (byte) 128);
+      int left = i * 8;
+      for (int y = 100; y < 200; y++) {
+        int row = y * SYNTHETIC_WIDTH;
+        Arrays.fill(nv21, row + left, row + left + 100, (byte) 240);
+      }
+      long timestampNanos = SYNTHETIC_FIRST_TIMESTAMP_NANOS + i * SYNTHETIC_FRAME_INTERVAL_NANOS;
+      while (!recorder.offerNv21(ByteBuffer.wrap(nv21), metadata, timestampNanos)) {
+        Thread.sleep(5);
+      }
+    }
+    recorder.close();
+    recorder.getClosedFuture().get(REPORT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  private static int getFrameCount(File file) throws IOException {
+    FrameRingFile.Reader reader = new FrameRingFile.Reader(file);
+    try {
+      return reader.getFrameCount();
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** Marks the oldest frame as not completely written, as a crash in the middle of it would. */
+  private static void invalidateOldestFrame(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      ByteBuffer header = ByteBuffer.allocate(FrameRingFile.FILE_HEADER_SIZE);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+      raf.getChannel().read(header, 0);
+      int slotCount = header.getInt(FrameRingFile.HEADER_SLOT_COUNT_OFFSET);
+      int slotSize = header.getInt(FrameRingFile.HEADER_SLOT_SIZE_OFFSET);
+      long totalFrames = header.getLong(FrameRingFile.HEADER_FRAME_COUNT_OFFSET);
+      long oldest = totalFrames - Math.min(totalFrames, slotCount);
+      raf.seek(
+          FrameRingFile.getSlotOffset((int) (oldest % slotCount), slotSize)
+              + FrameRingFile.SLOT_SEQUENCE_OFFSET);
+      raf.writeLong(-1);
+    } finally {
+      raf.close();
+    }
+  }
+}
@@ -27,14 +27,15 @@ import android.graphics.YuvImage;
 import android.media.Image;
 import android.media.Image.Plane;
 import android.net.Uri;
+import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
-import android.provider.MediaStore;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import android.util.Log;
 import androidx.camera.core.ExperimentalGetImage;
 import androidx.camera.core.ImageProxy;
 import androidx.exifinterface.media.ExifInterface;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -44,6 +45,33 @@ import java.nio.ByteBuffer;
 public class BitmapUtils {
   private static final String TAG = "BitmapUtils";
 
+  /**
+   * Longer side, in pixels, that still images are decoded to at least. Larger images only cost
+   * memory, as the detectors scale their input down much further.
+   */
+  public static final int STILL_IMAGE_TARGET_SIZE = 1280;
+
+  private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+  // Covers the EXIF data and headers of typical photos, so they are read in a single pass.
+  private static final int DECODE_MARK_LIMIT = 256 * 1024;
+  private static final int ARGB_8888_BYTES_PER_PIXEL = 4;
+
+  /** A still image decoded by {@link #decodeStillImage}. */
+  public static final class DecodedImage {
+    /** The subsampled image, upright. */
+    public final Bitmap bitmap;
+    /** Width of the full size image, upright. */
+    public final int originalWidth;
+    /** Height of the full size image, upright. */
+    public final int originalHeight;
+
+    DecodedImage(Bitmap bitmap, int originalWidth, int originalHeight) {
+      this.bitmap = bitmap;
+      this.originalWidth = originalWidth;
+      this.originalHeight = originalHeight;
+    }
+  }
+
   /** Converts NV21 format byte buffer to bitmap. */
   @Nullable
   public static Bitmap getBitmap(ByteBuffer data, FrameMetadata metadata) {
@@ -87,6 +115,11 @@ public class BitmapUtils {
   /** Rotates a bitmap if it is converted from a bytebuffer. */
   private static Bitmap rotateBitmap(
       Bitmap bitmap, int rotationDegrees, boolean flipX, boolean flipY) {
+    return rotateBitmap(bitmap, rotationDegrees, flipX, flipY, /* recycleSource= */ true);
+  }
+
+  private static Bitmap rotateBitmap(
+      Bitmap bitmap, int rotationDegrees, boolean flipX, boolean flipY, boolean recycleSource) {
     Matrix matrix = new Matrix();
 
     // Rotate the image back to straight.
@@ -98,20 +131,97 @@ public class BitmapUtils {
         Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
 
     // Recycle the old bitmap if it has changed.
-    if (rotatedBitmap != bitmap) {
+    if (recycleSource && rotatedBitmap != bitmap) {
       bitmap.recycle();
     }
     return rotatedBitmap;
   }
 
+  /**
+   * Decodes an image for still image detection, subsampled so its longer side stays at least
+   * {@link #STILL_IMAGE_TARGET_SIZE} pixels and rotated upright according to its EXIF orientation.
+   */
   @Nullable
   public static Bitmap getBitmapFromContentUri(ContentResolver contentResolver, Uri imageUri)
       throws IOException {
-    Bitmap decodedBitmap = MediaStore.Images.Media.getBitmap(contentResolver, imageUri);
+    DecodedImage image =
+        decodeStillImage(
+            contentResolver, imageUri, STILL_IMAGE_TARGET_SIZE, /* reusableBitmap= */ null);
+    return image == null ? null : image.bitmap;
+  }
+
+  /**
+   * Decodes an image subsampled by the largest power of two that keeps its longer side at least
+   * {@code targetSize} pixels, and rotates it upright according to its EXIF orientation.
+   *
+   * <p>The EXIF data and the image bounds are read from the start of the same stream the image is
+   * then decoded from, so the image is only opened again if its metadata is unusually large.
+   *
+   * <p>The image is decoded into a mutable bitmap, so once the caller is done with it, it can be
+   * passed back as {@code reusableBitmap} for the next image.
+   *
+   * <p>The full size of the image is returned too, so coordinates found in the bitmap can be
+   * mapped back to the image.
+   *
+   * @param reusableBitmap a mutable bitmap the caller no longer uses, which the image is decoded
+   *     into if it is large enough. It is never recycled, and is returned if no rotation is needed.
+   */
+  @Nullable
+  public static DecodedImage decodeStillImage(
+      ContentResolver contentResolver,
+      Uri imageUri,
+      int targetSize,
+      @Nullable Bitmap reusableBitmap)
+      throws IOException {
+    InputStream input = openMarkedStream(contentResolver, imageUri);
+    if (input == null) {
+      return null;
+    }
+    Bitmap decodedBitmap;
+    int orientation;
+    int originalWidth;
+    int originalHeight;
+    try {
+      orientation = getExifOrientationTag(input, imageUri);
+      input = rewind(input, contentResolver, imageUri);
+
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeStream(input, null, options);
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+        return null;
+      }
+      originalWidth = options.outWidth;
+      originalHeight = options.outHeight;
+      input = rewind(input, contentResolver, imageUri);
+
+      options.inJustDecodeBounds = false;
+      options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, targetSize);
+      options.inMutable = true;
+      if (reusableBitmap != null
+          && canDecodeInto(
+              reusableBitmap, options.outWidth, options.outHeight, options.inSampleSize)) {
+        options.inBitmap = reusableBitmap;
+      }
+      try {
+        decodedBitmap = BitmapFactory.decodeStream(input, null, options);
+      } catch (IllegalArgumentException e) {
+        // The decoder rejected the reusable bitmap after consuming part of the stream.
+        Log.d(TAG, "Could not decode into the reusable bitmap: " + e.getMessage());
+        input.close();
+        input = openMarkedStream(contentResolver, imageUri);
+        if (input == null) {
+          return null;
+        }
+        options.inBitmap = null;
+        decodedBitmap = BitmapFactory.decodeStream(input, null, options);
+      }
+    } finally {
+      input.close();
+    }
     if (decodedBitmap == null) {
       return null;
     }
-    int orientation = getExifOrientationTag(contentResolver, imageUri);
 
     int rotationDegrees = 0;
     boolean flipX = false;
@@ -148,10 +258,87 @@ public class BitmapUtils {
         // No transformations necessary in this case.
     }
 
-    return rotateBitmap(decodedBitmap, rotationDegrees, flipX, flipY);
+    if (rotationDegrees == 0 && !flipX && !flipY) {
+      return new DecodedImage(decodedBitmap, originalWidth, originalHeight);
+    }
+    if (rotationDegrees != 0 && rotationDegrees != 180) {
+      int width = originalWidth;
+      originalWidth = originalHeight;
+      originalHeight = width;
+    }
+    // The rotation copies the already subsampled bitmap, never the full size image.
+    Bitmap rotatedBitmap =
+        rotateBitmap(
+            decodedBitmap,
+            rotationDegrees,
+            flipX,
+            flipY,
+            /* recycleSource= */ decodedBitmap != reusableBitmap);
+    return new DecodedImage(rotatedBitmap, originalWidth, originalHeight);
   }
 
-  private static int getExifOrientationTag(ContentResolver resolver, Uri imageUri) {
+  /**
+   * Returns the largest power of two to subsample an image by that keeps its longer side at least
+   * {@code targetSize} pixels.
+   */
+  static int getSampleSize(int width, int height, int targetSize) {
+    int longerSide = Math.max(width, height);
+    int sampleSize = 1;
+    while (longerSide / (sampleSize * 2) >= targetSize) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /** Checks whether an image can be decoded into {@code bitmap} with the given sample size. */
+  private static boolean canDecodeInto(Bitmap bitmap, int width, int height, int sampleSize) {
+    if (!bitmap.isMutable() || bitmap.isRecycled()) {
+      return false;
+    }
+    if (VERSION.SDK_INT >= VERSION_CODES.KITKAT) {
+      // Decoders may round the subsampled size up.
+      long sampledWidth = (width + sampleSize - 1) / sampleSize;
+      long sampledHeight = (height + sampleSize - 1) / sampleSize;
+      return sampledWidth * sampledHeight * ARGB_8888_BYTES_PER_PIXEL
+          <= bitmap.getAllocationByteCount();
+    }
+    // Before KitKat, only images of the same size that are not subsampled can be reused.
+    return sampleSize == 1 && bitmap.getWidth() == width && bitmap.getHeight() == height;
+  }
+
+  @Nullable
+  private static InputStream openMarkedStream(ContentResolver resolver, Uri imageUri)
+      throws IOException {
+    InputStream stream = resolver.openInputStream(imageUri);
+    if (stream == null) {
+      return null;
+    }
+    InputStream input = new BufferedInputStream(stream, DECODE_BUFFER_SIZE);
+    input.mark(DECODE_MARK_LIMIT);
+    return input;
+  }
+
+  /**
+   * Moves a stream opened by {@link #openMarkedStream} back to the start of the image, reopening
+   * the image if more than {@link #DECODE_MARK_LIMIT} bytes were read.
+   */
+  private static InputStream rewind(InputStream input, ContentResolver resolver, Uri imageUri)
+      throws IOException {
+    try {
+      input.reset();
+      input.mark(DECODE_MARK_LIMIT);
+      return input;
+    } catch (IOException e) {
+      input.close();
+      InputStream reopened = openMarkedStream(resolver, imageUri);
+      if (reopened == null) {
+        throw new IOException("Failed to reopen " + imageUri);
+      }
+      return reopened;
+    }
+  }
+
+  private static int getExifOrientationTag(InputStream input, Uri imageUri) {
     // We only support parsing EXIF orientation tag from local file on the device.
     // See also:
     // https://android-developers.googleblog.com/2016/12/introducing-the-exifinterface-support-library.html
@@ -161,12 +348,8 @@ public class BitmapUtils {
     }
 
     ExifInterface exif;
-    try (InputStream inputStream = resolver.openInputStream(imageUri)) {
-      if (inputStream == null) {
-        return 0;
-      }
-
-      exif = new ExifInterface(inputStream);
+    try {
+      exif = new ExifInterface(input);
     } catch (IOException e) {
       Log.e(TAG, "failed to open file to read rotation meta data: " + imageUri, e);
       return 0;
@@ -195,8 +378,38 @@ public class BitmapUtils {
   @RequiresApi(VERSION_CODES.KITKAT)
   private static ByteBuffer yuv420ThreePlanesToNV21(
       Plane[] yuv420888planes, int width, int height) {
+    byte[] out = new byte[getNV21Size(width, height)];
+    yuv420ThreePlanesToNV21(yuv420888planes, width, height, out);
+    return ByteBuffer.wrap(out);
+  }
+
+  /** Returns the number of bytes of an NV21 image of the given size. */
+  public static int getNV21Size(int width, int height) {
+    int imageSize = width * height;
+    return imageSize + 2 * (imageSize / 4);
+  }
+
+  /**
+   * Converts YUV_420_888 planes to NV21 into {@code out}, which must hold at least {@link
+   * #getNV21Size} bytes. The positions of the plane buffers are restored afterwards, so the image
+   * can still be read by others.
+   */
+  @RequiresApi(VERSION_CODES.KITKAT)
+  public static void yuv420ThreePlanesToNV21(
+      Plane[] yuv420888planes, int width, int height, byte[] out) {
+    int yPosition = yuv420888planes[0].getBuffer().position();
+    int uPosition = yuv420888planes[1].getBuffer().position();
+    int vPosition = yuv420888planes[2].getBuffer().position();
+    copyYuv420ThreePlanesToNV21(yuv420888planes, width, height, out);
+    yuv420888planes[0].getBuffer().position(yPosition);
+    yuv420888planes[1].getBuffer().position(uPosition);
+    yuv420888planes[2].getBuffer().position(vPosition);
+  }
+
+  @RequiresApi(VERSION_CODES.KITKAT)
+  private static void copyYuv420ThreePlanesToNV21(
+      Plane[] yuv420888planes, int width, int height, byte[] out) {
     int imageSize = width * height;
-    byte[] out = new byte[imageSize + 2 * (imageSize / 4)];
 
     if (areUVPlanesNV21(yuv420888planes, width, height)) {
       // Copy the Y values.
@@ -217,8 +430,6 @@ public class BitmapUtils {
       // Unpack V.
       unpackPlane(yuv420888planes[2], width, height, out, imageSize, 2);
     }
-
-    return ByteBuffer.wrap(out);
   }
 
   /** Checks if the UV plane buffers of a YUV_420_888 image are in the NV21 format. */
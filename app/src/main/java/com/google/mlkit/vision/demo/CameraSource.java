@@ -31,6 +31,7 @@ import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.WindowManager;
 import com.google.android.gms.common.images.Size;
+import com.google.mlkit.vision.demo.metrics.MemoryTelemetry;
 import com.google.mlkit.vision.demo.preference.PreferenceUtils;
 import java.io.IOException;
 import java.lang.Thread.State;
@@ -38,6 +39,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages the camera and allows UI updates on top of it (e.g. overlaying extra Graphics or
@@ -119,6 +121,22 @@ public class CameraSource {
    */
   private final IdentityHashMap<byte[], ByteBuffer> bytesToByteBuffer = new IdentityHashMap<>();
 
+  // Occupancy of the preview buffers, reported to MemoryTelemetry while the camera is running.
+  private volatile int previewBufferCount;
+  private final AtomicInteger previewBuffersInUse = new AtomicInteger();
+  private final MemoryTelemetry.BufferPool previewBufferPool =
+      new MemoryTelemetry.BufferPool() {
+        @Override
+        public int getBufferCount() {
+          return previewBufferCount;
+        }
+
+        @Override
+        public int getBuffersInUse() {
+          return previewBuffersInUse.get();
+        }
+      };
+
   public CameraSource(Activity activity, GraphicOverlay overlay) {
     this.activity = activity;
     graphicOverlay = overlay;
@@ -164,6 +182,7 @@ public class CameraSource {
     processingThread = new Thread(processingRunnable);
     processingRunnable.setActive(true);
     processingThread.start();
+    MemoryTelemetry.getInstance().setBufferPool(previewBufferPool);
     return this;
   }
 
@@ -187,6 +206,7 @@ public class CameraSource {
     processingThread = new Thread(processingRunnable);
     processingRunnable.setActive(true);
     processingThread.start();
+    MemoryTelemetry.getInstance().setBufferPool(previewBufferPool);
 
     usingSurfaceTexture = false;
     return this;
@@ -233,6 +253,9 @@ public class CameraSource {
 
     // Release the reference to any image buffers, since these will no longer be in use.
     bytesToByteBuffer.clear();
+    MemoryTelemetry.getInstance().clearBufferPool(previewBufferPool);
+    previewBufferCount = 0;
+    previewBuffersInUse.set(0);
   }
 
   /** Changes the facing of the camera. */
@@ -559,6 +582,7 @@ public class CameraSource {
     }
 
     bytesToByteBuffer.put(byteArray, buffer);
+    previewBufferCount = bytesToByteBuffer.size();
     return byteArray;
   }
 
@@ -631,6 +655,7 @@ public class CameraSource {
       synchronized (lock) {
         if (pendingFrameData != null) {
           camera.addCallbackBuffer(pendingFrameData.array());
+          previewBuffersInUse.decrementAndGet();
           pendingFrameData = null;
         }
 
@@ -643,6 +668,7 @@ public class CameraSource {
         }
 
         pendingFrameData = bytesToByteBuffer.get(data);
+        previewBuffersInUse.incrementAndGet();
 
         // Notify the processor thread if it is waiting on the next frame (see below).
         lock.notifyAll();
@@ -715,6 +741,7 @@ public class CameraSource {
           Log.e(TAG, "Exception thrown from receiver.", t);
         } finally {
           camera.addCallbackBuffer(data.array());
+          previewBuffersInUse.decrementAndGet();
         }
       }
     }
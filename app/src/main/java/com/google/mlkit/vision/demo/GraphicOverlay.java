@@ -19,11 +19,20 @@ package com.google.mlkit.vision.demo;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.View;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
 import com.google.common.base.Preconditions;
+import com.google.mlkit.vision.demo.metrics.FrameTracer;
+import com.google.mlkit.vision.demo.metrics.LatencyHistogram;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A view which renders a series of custom graphics to be overlayed on top of an associated preview
@@ -42,16 +51,68 @@ import java.util.List;
  *       to the view scale.
  *   <li>{@link Graphic#translateX(float)} and {@link Graphic#translateY(float)} adjust the
  *       coordinate from the image's coordinate system to the view coordinate system.
+ *   <li>{@link Graphic#mapPoints(float[], float[])} transforms a whole array of points at once,
+ *       which is cheaper than translating each coordinate for graphics with many points.
  * </ol>
+ *
+ * <p>The graphics to draw form an immutable scene that is replaced as a whole with {@link
+ * #setScene(List)}, so a scene can be built on any thread and drawing never takes a lock or sees a
+ * partially built frame. The transformation state is only touched on the drawing thread.
+ *
+ * <p>By default the overlay draws itself in {@link #onDraw(Canvas)} on the UI thread. When a {@link
+ * Renderer} is set, drawing moves to the renderer, which calls {@link #drawScene(Canvas)} from its
+ * own thread; this view then only provides the scene and the coordinate system.
+ *
+ * <p>Normally a frame is only drawn when a new scene is published. With {@link
+ * #setAnimating(boolean)} the overlay redraws on every display vsync instead, and graphics can use
+ * {@link Graphic#getFrameTimeNanos()} to animate between detector results.
+ *
+ * <p>When a scene replaces one with the same kinds of graphics, only the graphics that changed by
+ * more than a motion threshold are redrawn, and only within the union of their old and new {@link
+ * Graphic#getViewBounds(RectF) view bounds}. A scene in which nothing moved enough is not redrawn
+ * at all.
  */
 public class GraphicOverlay extends View {
-  private final Object lock = new Object();
-  private final List<Graphic> graphics = new ArrayList<>();
+  // Changes smaller than this, in dp, are not worth a redraw.
+  private static final float DEFAULT_MOTION_THRESHOLD_DP = 1.0f;
+
+  // The graphics drawn by onDraw. Always an unmodifiable list that is replaced, never changed.
+  private final AtomicReference<List<Graphic>> scene =
+      new AtomicReference<>(Collections.<Graphic>emptyList());
+  // Serializes threads publishing scenes. Never taken by the drawing thread.
+  private final Object publishLock = new Object();
+  // For each position of the scene, the graphic whose content is currently on screen.
+  @GuardedBy("publishLock")
+  private Graphic[] drawnGraphics = new Graphic[0];
   // Matrix for transforming from image coordinates to overlay view coordinates.
   private final Matrix transformationMatrix = new Matrix();
 
-  private int imageWidth;
-  private int imageHeight;
+  // Written by setImageSourceInfo on any thread and read as a whole by the drawing thread.
+  private volatile ImageSourceInfo imageSourceInfo = ImageSourceInfo.NONE;
+  @Nullable private volatile Renderer renderer;
+  // Vsync time of the frame being drawn while animating, in the System.nanoTime() base.
+  private volatile long frameTimeNanos;
+  private volatile boolean isAnimating;
+  private final Choreographer.FrameCallback frameCallback = this::onVsync;
+  // The transformation of the last drawn frame, for mapping bounds on any thread. Replaced rather
+  // than modified once published.
+  @Nullable private volatile Matrix drawnTransformationMatrix;
+  private volatile float drawnScaleFactor = 1.0f;
+  private volatile float motionThresholdPx;
+  @Nullable private volatile LatencyHistogram renderLatencyHistogram;
+  // Sequence number of the frame the published scene shows, for tracing.
+  private volatile long sceneFrameNumber = -1;
+
+  // The area the renderer needs to redraw in its next frame.
+  private final Object dirtyLock = new Object();
+
+  @GuardedBy("dirtyLock")
+  private final RectF dirtyBounds = new RectF();
+
+  @GuardedBy("dirtyLock")
+  private boolean isFullyDirty = true;
+
+  // Fields below are only accessed on the drawing thread.
   // The factor of overlay View size to image size. Anything in the image coordinates need to be
   // scaled by this amount to fit with the area of overlay View.
   private float scaleFactor = 1.0f;
@@ -62,12 +123,42 @@ public class GraphicOverlay extends View {
   // area of overlay View after scaling.
   private float postScaleHeightOffset;
   private boolean isImageFlipped;
-  private boolean needUpdateTransformation = true;
+  // What transformationMatrix was last computed from.
+  private ImageSourceInfo transformedImageSourceInfo = ImageSourceInfo.NONE;
+  private int transformedViewWidth;
+  private int transformedViewHeight;
+  // Incremented whenever transformationMatrix is recomputed, so graphics can tell whether points
+  // they transformed earlier are still valid.
+  private int transformationVersion;
+
+  /** Draws the overlay's scene somewhere other than this view, e.g. on a dedicated thread. */
+  public interface Renderer {
+    /**
+     * Called on any thread when the scene or the image source changed and should be redrawn. The
+     * area to redraw is available from {@link GraphicOverlay#takeDirtyRegion(Rect)}.
+     */
+    void requestRender();
+  }
+
+  /** Size and orientation of the images the graphics are expressed in. */
+  private static final class ImageSourceInfo {
+    static final ImageSourceInfo NONE = new ImageSourceInfo(0, 0, false);
+
+    final int width;
+    final int height;
+    final boolean isFlipped;
+
+    ImageSourceInfo(int width, int height, boolean isFlipped) {
+      this.width = width;
+      this.height = height;
+      this.isFlipped = isFlipped;
+    }
+  }
 
   /**
    * Base class for a custom graphics object to be rendered within the graphic overlay. Subclass
    * this and implement the {@link Graphic#draw(Canvas)} method to define the graphics element. Add
-   * instances to the overlay using {@link GraphicOverlay#add(Graphic)}.
+   * instances to the overlay using {@link GraphicOverlay#setScene(List)}.
    */
   public abstract static class Graphic {
     private GraphicOverlay overlay;
@@ -130,39 +221,312 @@ public class GraphicOverlay extends View {
       return overlay.transformationMatrix;
     }
 
+    /**
+     * Transforms points in image coordinates to view coordinates. See {@link
+     * GraphicOverlay#mapPoints(float[], float[])}.
+     */
+    public void mapPoints(float[] src, float[] dst) {
+      overlay.mapPoints(src, dst);
+    }
+
+    /** Returns the version of the overlay transformation. See {@link #mapPoints}. */
+    public int getTransformationVersion() {
+      return overlay.getTransformationVersion();
+    }
+
+    /**
+     * Returns the time the frame being drawn will be displayed, in the {@link System#nanoTime()}
+     * time base. This is the vsync time while the overlay is animating and the current time
+     * otherwise.
+     */
+    public long getFrameTimeNanos() {
+      return overlay.isAnimating ? overlay.frameTimeNanos : System.nanoTime();
+    }
+
+    /**
+     * Sets {@code bounds} to the area of the view this graphic draws into, used to redraw only the
+     * parts of the overlay that changed. Called on the thread that publishes the scene; use {@link
+     * #mapRectToView(RectF)} to convert image coordinates.
+     *
+     * @return false if the area is unknown, in which case the whole overlay is redrawn
+     */
+    public boolean getViewBounds(RectF bounds) {
+      return false;
+    }
+
+    /**
+     * Returns whether this graphic looks different enough from the graphic of the same class it
+     * replaces in a new scene to be redrawn.
+     *
+     * @param previous the graphic at the same position in the previous scene
+     * @param motionThresholdPx movement, in view pixels, below which a change may be ignored
+     */
+    public boolean differsFrom(Graphic previous, float motionThresholdPx) {
+      return true;
+    }
+
+    /**
+     * Maps a rectangle from image coordinates to view coordinates with the transformation of the
+     * last drawn frame. Safe to call on any thread.
+     *
+     * @return false if no frame has been drawn yet
+     */
+    public boolean mapRectToView(RectF rect) {
+      Matrix matrix = overlay.drawnTransformationMatrix;
+      if (matrix == null) {
+        return false;
+      }
+      matrix.mapRect(rect);
+      return true;
+    }
+
+    /**
+     * Converts a distance from image pixels to view pixels with the transformation of the last
+     * drawn frame. Safe to call on any thread.
+     */
+    public float scaleToView(float imageDistance) {
+      return imageDistance * overlay.drawnScaleFactor;
+    }
+
+    /** Returns the width of the overlay view. */
+    public int getOverlayWidth() {
+      return overlay.getWidth();
+    }
+
     public void postInvalidate() {
-      overlay.postInvalidate();
+      overlay.requestRender();
     }
   }
 
   public GraphicOverlay(Context context, AttributeSet attrs) {
     super(context, attrs);
-    addOnLayoutChangeListener(
-        (view, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) ->
-            needUpdateTransformation = true);
+    motionThresholdPx = DEFAULT_MOTION_THRESHOLD_DP * getResources().getDisplayMetrics().density;
+  }
+
+  /**
+   * Replaces all graphics of the overlay with the given scene in a single step. The list may be
+   * built on any thread but must not be modified after it has been passed in.
+   */
+  public void setScene(List<Graphic> graphics) {
+    setScene(graphics, -1);
+  }
+
+  /**
+   * Like {@link #setScene(List)}, also recording the sequence number of the frame the scene shows
+   * so drawing it is traced as part of that frame.
+   */
+  public void setScene(List<Graphic> graphics, long frameNumber) {
+    List<Graphic> newScene = Collections.unmodifiableList(graphics);
+    RectF dirty = new RectF();
+    boolean isPartial;
+    synchronized (publishLock) {
+      sceneFrameNumber = frameNumber;
+      scene.set(newScene);
+      if (isAnimating) {
+        // Every vsync redraws the whole overlay anyway.
+        drawnGraphics = toArray(newScene);
+        return;
+      }
+      isPartial = updateDrawnGraphics(newScene, dirty);
+    }
+    if (!isPartial) {
+      requestRender();
+    } else if (!dirty.isEmpty()) {
+      requestRender(dirty);
+    }
+  }
+
+  /**
+   * Sets the movement, in view pixels, below which a changed graphic is not redrawn. Defaults to
+   * one dp.
+   */
+  public void setMotionThresholdPx(float motionThresholdPx) {
+    this.motionThresholdPx = motionThresholdPx;
+  }
+
+  /**
+   * Compares the new scene with what is on screen, position by position, and collects the union
+   * of the old and new bounds of the graphics that changed into {@code dirty}. Graphics that did
+   * not change enough stay in {@link #drawnGraphics}, so small changes cannot add up unnoticed.
+   * Returns false if the whole overlay must be redrawn instead.
+   */
+  @GuardedBy("publishLock")
+  private boolean updateDrawnGraphics(List<Graphic> newScene, RectF dirty) {
+    Graphic[] drawn = drawnGraphics;
+    if (drawn.length != newScene.size()) {
+      drawnGraphics = toArray(newScene);
+      return false;
+    }
+    float threshold = motionThresholdPx;
+    RectF bounds = new RectF();
+    for (int i = 0; i < drawn.length; i++) {
+      Graphic newGraphic = newScene.get(i);
+      Graphic oldGraphic = drawn[i];
+      if (newGraphic.getClass() != oldGraphic.getClass()) {
+        drawnGraphics = toArray(newScene);
+        return false;
+      }
+      if (!newGraphic.differsFrom(oldGraphic, threshold)) {
+        continue;
+      }
+      if (!newGraphic.getViewBounds(bounds)) {
+        drawnGraphics = toArray(newScene);
+        return false;
+      }
+      dirty.union(bounds);
+      if (!oldGraphic.getViewBounds(bounds)) {
+        drawnGraphics = toArray(newScene);
+        return false;
+      }
+      dirty.union(bounds);
+      drawn[i] = newGraphic;
+    }
+    return true;
+  }
+
+  private static Graphic[] toArray(List<Graphic> graphics) {
+    return graphics.toArray(new Graphic[0]);
   }
 
   /** Removes all graphics from the overlay. */
   public void clear() {
-    synchronized (lock) {
-      graphics.clear();
+    synchronized (publishLock) {
+      scene.set(Collections.<Graphic>emptyList());
+      drawnGraphics = new Graphic[0];
     }
-    postInvalidate();
+    requestRender();
   }
 
-  /** Adds a graphic to the overlay. */
+  /**
+   * Adds a graphic to the current scene. Each call publishes a new scene, so prefer building a
+   * whole frame and passing it to {@link #setScene(List)}.
+   */
   public void add(Graphic graphic) {
-    synchronized (lock) {
-      graphics.add(graphic);
+    synchronized (publishLock) {
+      List<Graphic> updated = new ArrayList<>(scene.get());
+      updated.add(graphic);
+      scene.set(Collections.unmodifiableList(updated));
+      drawnGraphics = toArray(updated);
     }
   }
 
-  /** Removes a graphic from the overlay. */
+  /** Removes a graphic from the current scene. */
   public void remove(Graphic graphic) {
-    synchronized (lock) {
-      graphics.remove(graphic);
+    synchronized (publishLock) {
+      List<Graphic> updated = new ArrayList<>(scene.get());
+      if (!updated.remove(graphic)) {
+        return;
+      }
+      scene.set(Collections.unmodifiableList(updated));
+      drawnGraphics = toArray(updated);
+    }
+    requestRender();
+  }
+
+  /**
+   * Moves drawing of the scene to the given renderer, or back to this view if {@code null}. Must be
+   * called on the UI thread, and a previous renderer must have stopped drawing.
+   */
+  public void setRenderer(@Nullable Renderer renderer) {
+    this.renderer = renderer;
+    invalidate();
+    if (renderer != null) {
+      markFullyDirty();
+      renderer.requestRender();
+    }
+  }
+
+  /** Records the time every scene takes to draw into the given histogram, unless {@code null}. */
+  public void setRenderLatencyHistogram(@Nullable LatencyHistogram histogram) {
+    renderLatencyHistogram = histogram;
+  }
+
+  /**
+   * Sets whether the overlay redraws on every display vsync rather than only when a new scene is
+   * published. Must be called on the UI thread.
+   */
+  public void setAnimating(boolean animating) {
+    if (isAnimating == animating) {
+      return;
+    }
+    isAnimating = animating;
+    Choreographer choreographer = Choreographer.getInstance();
+    choreographer.removeFrameCallback(frameCallback);
+    if (animating) {
+      choreographer.postFrameCallback(frameCallback);
+    }
+  }
+
+  private void onVsync(long frameTimeNanos) {
+    if (!isAnimating) {
+      return;
+    }
+    this.frameTimeNanos = frameTimeNanos;
+    Renderer current = renderer;
+    if (current != null) {
+      markFullyDirty();
+      current.requestRender();
+    } else {
+      // Invalidating from the frame callback draws in this same frame, unlike postInvalidate.
+      invalidate();
+    }
+    Choreographer.getInstance().postFrameCallback(frameCallback);
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    setAnimating(false);
+  }
+
+  private void requestRender() {
+    markFullyDirty();
+    Renderer current = renderer;
+    if (current != null) {
+      current.requestRender();
+    } else {
+      postInvalidate();
+    }
+  }
+
+  private void requestRender(RectF bounds) {
+    Renderer current = renderer;
+    if (current != null) {
+      synchronized (dirtyLock) {
+        dirtyBounds.union(bounds);
+      }
+      current.requestRender();
+    } else {
+      postInvalidate(
+          (int) Math.floor(bounds.left),
+          (int) Math.floor(bounds.top),
+          (int) Math.ceil(bounds.right),
+          (int) Math.ceil(bounds.bottom));
+    }
+  }
+
+  private void markFullyDirty() {
+    synchronized (dirtyLock) {
+      isFullyDirty = true;
+    }
+  }
+
+  /**
+   * Moves the area that needs to be redrawn into {@code dirty} and resets it. For renderers, which
+   * call this before drawing a frame.
+   *
+   * @return false if the whole overlay needs to be redrawn, in which case {@code dirty} is not set
+   */
+  public boolean takeDirtyRegion(Rect dirty) {
+    synchronized (dirtyLock) {
+      boolean isPartial = !isFullyDirty;
+      if (isPartial) {
+        dirtyBounds.roundOut(dirty);
+      }
+      dirtyBounds.setEmpty();
+      isFullyDirty = false;
+      return isPartial;
     }
-    postInvalidate();
   }
 
   /**
@@ -177,27 +541,59 @@ public class GraphicOverlay extends View {
   public void setImageSourceInfo(int imageWidth, int imageHeight, boolean isFlipped) {
     Preconditions.checkState(imageWidth > 0, "image width must be positive");
     Preconditions.checkState(imageHeight > 0, "image height must be positive");
-    synchronized (lock) {
-      this.imageWidth = imageWidth;
-      this.imageHeight = imageHeight;
-      this.isImageFlipped = isFlipped;
-      needUpdateTransformation = true;
+    ImageSourceInfo current = imageSourceInfo;
+    if (current.width != imageWidth
+        || current.height != imageHeight
+        || current.isFlipped != isFlipped) {
+      imageSourceInfo = new ImageSourceInfo(imageWidth, imageHeight, isFlipped);
+      requestRender();
     }
-    postInvalidate();
   }
 
   public int getImageWidth() {
-    return imageWidth;
+    return imageSourceInfo.width;
   }
 
   public int getImageHeight() {
-    return imageHeight;
+    return imageSourceInfo.height;
+  }
+
+  /**
+   * Transforms an array of interleaved (x, y) points from image coordinates to view coordinates
+   * with the cached transformation matrix, mirroring them if the image is flipped. Must be called
+   * on the drawing thread.
+   *
+   * @param src the points in image coordinates
+   * @param dst receives the points in view coordinates; may be the same array as {@code src}
+   */
+  public void mapPoints(float[] src, float[] dst) {
+    updateTransformationIfNeeded();
+    transformationMatrix.mapPoints(dst, 0, src, 0, src.length / 2);
+  }
+
+  /**
+   * Returns a stamp that changes whenever the image-to-view transformation changes, e.g. after a
+   * layout change or a new image source. Points mapped while the stamp had the same value are
+   * still valid. Must be called on the drawing thread.
+   */
+  public int getTransformationVersion() {
+    updateTransformationIfNeeded();
+    return transformationVersion;
   }
 
   private void updateTransformationIfNeeded() {
-    if (!needUpdateTransformation || imageWidth <= 0 || imageHeight <= 0) {
+    ImageSourceInfo info = imageSourceInfo;
+    if (info.width <= 0 || info.height <= 0) {
       return;
     }
+    if (info == transformedImageSourceInfo
+        && getWidth() == transformedViewWidth
+        && getHeight() == transformedViewHeight) {
+      return;
+    }
+    int imageWidth = info.width;
+    int imageHeight = info.height;
+    isImageFlipped = info.isFlipped;
     float viewAspectRatio = (float) getWidth() / getHeight();
     float imageAspectRatio = (float) imageWidth / imageHeight;
     postScaleWidthOffset = 0;
@@ -220,20 +616,42 @@ public class GraphicOverlay extends View {
       transformationMatrix.postScale(-1f, 1f, getWidth() / 2f, getHeight() / 2f);
     }
 
-    needUpdateTransformation = false;
+    drawnTransformationMatrix = new Matrix(transformationMatrix);
+    drawnScaleFactor = scaleFactor;
+    transformedImageSourceInfo = info;
+    transformedViewWidth = getWidth();
+    transformedViewHeight = getHeight();
+    transformationVersion++;
   }
 
-  /** Draws the overlay with its associated graphic objects. */
+  /** Draws the overlay with its associated graphic objects, unless a renderer does. */
   @Override
   protected void onDraw(Canvas canvas) {
     super.onDraw(canvas);
 
-    synchronized (lock) {
-      updateTransformationIfNeeded();
+    if (renderer == null) {
+      drawScene(canvas);
+    }
+  }
 
-      for (Graphic graphic : graphics) {
-        graphic.draw(canvas);
-      }
+  /**
+   * Draws the latest published scene onto the given canvas, which must have the size of this view.
+   * Must always be called on the same drawing thread: the UI thread, or the thread of the current
+   * {@link Renderer}.
+   */
+  public void drawScene(Canvas canvas) {
+    long startNanos = System.nanoTime();
+    long frameNumber = sceneFrameNumber;
+    FrameTracer.beginSection(FrameTracer.SECTION_DRAW, frameNumber);
+    List<Graphic> graphics = scene.get();
+    updateTransformationIfNeeded();
+    for (int i = 0; i < graphics.size(); i++) {
+      graphics.get(i).draw(canvas);
+    }
+    FrameTracer.endSection(FrameTracer.SECTION_DRAW, frameNumber);
+    LatencyHistogram histogram = renderLatencyHistogram;
+    if (histogram != null) {
+      histogram.recordNanos(System.nanoTime() - startNanos);
     }
   }
 }
@@ -19,7 +19,9 @@ package com.google.mlkit.vision.demo;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.RectF;
 import androidx.annotation.Nullable;
+import com.google.common.base.Objects;
 
 /** Graphic instance for rendering inference info (latency, FPS, resolution) in an overlay view. */
 public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
@@ -27,23 +29,70 @@ public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
   private static final int TEXT_COLOR = Color.WHITE;
   public static final float TEXT_SIZE = 60.0f;
 
-  private final Paint textPaint;
-  private final GraphicOverlay overlay;
+  private static final OverlayText.Label IMAGE_SIZE_LABEL =
+      new OverlayText.Label("InputImage size: ");
+  private static final OverlayText.Label FPS_LABEL = new OverlayText.Label("FPS: ");
+  private static final OverlayText.Label LATENCY_LABEL = new OverlayText.Label("Latency: ");
+  private static final String LATENCY_SEPARATOR = ", latency: ";
+  private static final String LATENCY_UNIT = " ms";
+  // Latency is shown with one decimal.
+  private static final double LATENCY_RESOLUTION = 10;
+
+  // Shared by all instances and never modified after creation.
+  private static final Paint TEXT_PAINT = createTextPaint();
+
+  // The size of the image the detector ran on, which can be smaller than the overlay's image.
+  private final int imageWidth;
+  private final int imageHeight;
   private final double latency;
 
   // Only valid when a stream of input images is being processed. Null for single image mode.
   @Nullable private final Integer framesPerSecond;
+  private final OverlayText valueText;
 
+  /**
+   * Creates the graphic of one frame.
+   *
+   * @param imageWidth the width of the image passed to the detector, upright
+   * @param imageHeight the height of the image passed to the detector, upright
+   * @param valueText the buffer the values are formatted into while drawing, shared by the
+   *     graphics drawn on the same thread
+   */
   public InferenceInfoGraphic(
-      GraphicOverlay overlay, double latency, @Nullable Integer framesPerSecond) {
+      GraphicOverlay overlay,
+      int imageWidth,
+      int imageHeight,
+      double latency,
+      @Nullable Integer framesPerSecond,
+      OverlayText valueText) {
     super(overlay);
-    this.overlay = overlay;
+    this.imageWidth = imageWidth;
+    this.imageHeight = imageHeight;
     this.latency = latency;
     this.framesPerSecond = framesPerSecond;
-    textPaint = new Paint();
-    textPaint.setColor(TEXT_COLOR);
-    textPaint.setTextSize(TEXT_SIZE);
-    postInvalidate();
+    this.valueText = valueText;
+  }
+
+  /** Returns a buffer that holds everything this graphic draws at once. */
+  public static OverlayText createValueText() {
+    return new OverlayText(64);
+  }
+
+  @Override
+  public boolean getViewBounds(RectF bounds) {
+    // Two lines of text, including the descent of the second one.
+    bounds.set(0, 0, getOverlayWidth(), TEXT_SIZE * 2.75f);
+    return true;
+  }
+
+  @Override
+  public boolean differsFrom(GraphicOverlay.Graphic previous, float motionThresholdPx) {
+    InferenceInfoGraphic other = (InferenceInfoGraphic) previous;
+    return imageWidth != other.imageWidth
+        || imageHeight != other.imageHeight
+        || Math.round(latency * LATENCY_RESOLUTION)
+            != Math.round(other.latency * LATENCY_RESOLUTION)
+        || !Objects.equal(framesPerSecond, other.framesPerSecond);
   }
 
   @Override
@@ -51,18 +100,27 @@ public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
     float x = TEXT_SIZE * 0.5f;
     float y = TEXT_SIZE * 1.5f;
 
-    canvas.drawText(
-        "InputImage size: " + overlay.getImageWidth() + "x" + overlay.getImageHeight(),
-        x,
-        y,
-        textPaint);
+    float valueX = IMAGE_SIZE_LABEL.draw(canvas, x, y, TEXT_PAINT);
+    valueText.clear().append(imageWidth).append('x').append(imageHeight);
+    valueText.draw(canvas, valueX, y, TEXT_PAINT);
 
     // Draw FPS (if valid) and inference latency
+    y += TEXT_SIZE;
     if (framesPerSecond != null) {
-      canvas.drawText(
-          "FPS: " + framesPerSecond + ", latency: " + latency + " ms", x, y + TEXT_SIZE, textPaint);
+      valueX = FPS_LABEL.draw(canvas, x, y, TEXT_PAINT);
+      valueText.clear().append(framesPerSecond.intValue()).append(LATENCY_SEPARATOR);
     } else {
-      canvas.drawText("Latency: " + latency + " ms", x, y + TEXT_SIZE, textPaint);
+      valueX = LATENCY_LABEL.draw(canvas, x, y, TEXT_PAINT);
+      valueText.clear();
     }
+    valueText.append(latency, 1).append(LATENCY_UNIT);
+    valueText.draw(canvas, valueX, y, TEXT_PAINT);
+  }
+
+  private static Paint createTextPaint() {
+    Paint paint = new Paint();
+    paint.setColor(TEXT_COLOR);
+    paint.setTextSize(TEXT_SIZE);
+    return paint;
   }
 }
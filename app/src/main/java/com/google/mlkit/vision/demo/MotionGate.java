@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo;
+
+import android.media.Image.Plane;
+import android.os.Build.VERSION_CODES;
+import androidx.annotation.RequiresApi;
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+
+/**
+ * Tells whether a camera frame is still the same scene as the last frame that was detected, so
+ * the results of that frame can be shown again instead of running the detector, e.g. while the
+ * user stands still between sets.
+ *
+ * <p>Frames are compared by the luma of a fixed grid of {@value #GRID_SIZE} x {@value #GRID_SIZE}
+ * pixels, read straight from the Y plane, which takes microseconds at any resolution. A frame is
+ * still if fewer than a given fraction of the sampled pixels changed by more than sensor noise
+ * does. Comparing against the last detected frame rather than the previous one means slow motion
+ * adds up until it is noticed. Frames are never still once the last detected frame is older than
+ * the staleness limit, so results are refreshed regularly even in a scene that looks unchanged.
+ *
+ * <p>Not thread safe; calls must not overlap.
+ */
+public final class MotionGate {
+
+  /** Default fraction of sampled pixels that must change for a frame to have motion. */
+  public static final float DEFAULT_MIN_CHANGED_FRACTION = 0.01f;
+
+  /** Default age, in milliseconds, after which results are not reused any more. */
+  public static final long DEFAULT_MAX_STALENESS_MILLIS = 500;
+
+  private static final int GRID_SIZE = 32;
+
+  // Luma changes up to this much are taken as sensor noise or compression artifacts.
+  private static final int NOISE_LEVEL = 16;
+
+  private final int minChangedSamples;
+  private final long maxStalenessNanos;
+
+  // The samples of the last detected frame, and its size and time.
+  private final byte[] reference = new byte[GRID_SIZE * GRID_SIZE];
+  private final byte[] samples = new byte[GRID_SIZE * GRID_SIZE];
+  private boolean hasReference;
+  private int referenceWidth;
+  private int referenceHeight;
+  private long referenceNanos;
+
+  /**
+   * Creates a gate.
+   *
+   * @param minChangedFraction fraction of sampled pixels that must change for a frame to have
+   *     motion
+   * @param maxStalenessMillis how long the results of a detected frame may be reused
+   */
+  public MotionGate(float minChangedFraction, long maxStalenessMillis) {
+    Preconditions.checkArgument(
+        minChangedFraction > 0 && minChangedFraction <= 1,
+        "minChangedFraction must be in (0, 1]");
+    Preconditions.checkArgument(maxStalenessMillis >= 0, "maxStalenessMillis must be >= 0");
+    minChangedSamples = Math.max(1, Math.round(minChangedFraction * reference.length));
+    maxStalenessNanos = maxStalenessMillis * 1_000_000L;
+  }
+
+  /**
+   * Returns whether an NV21 frame is still. If not, it becomes the frame later ones are compared
+   * to, as the caller is expected to detect it.
+   */
+  public boolean isStillNv21(ByteBuffer nv21, int width, int height, long nowNanos) {
+    return isStill(nv21, width, 1, width, height, nowNanos);
+  }
+
+  /** Like {@link #isStillNv21}, for a YUV_420_888 image, of which only the Y plane is read. */
+  @RequiresApi(VERSION_CODES.KITKAT)
+  public boolean isStill(Plane[] planes, int width, int height, long nowNanos) {
+    return isStill(
+        planes[0].getBuffer(),
+        planes[0].getRowStride(),
+        planes[0].getPixelStride(),
+        width,
+        height,
+        nowNanos);
+  }
+
+  private boolean isStill(
+      ByteBuffer luma, int rowStride, int pixelStride, int width, int height, long nowNanos) {
+    int changedSamples = 0;
+    int sample = 0;
+    for (int i = 0; i < GRID_SIZE; i++) {
+      // Sample the centres of a grid of cells.
+      int rowPosition = ((2 * i + 1) * height / (2 * GRID_SIZE)) * rowStride;
+      for (int j = 0; j < GRID_SIZE; j++) {
+        byte value =
+            luma.get(rowPosition + ((2 * j + 1) * width / (2 * GRID_SIZE)) * pixelStride);
+        if (Math.abs((value & 0xff) - (reference[sample] & 0xff)) > NOISE_LEVEL) {
+          changedSamples++;
+        }
+        samples[sample++] = value;
+      }
+    }
+    if (hasReference
+        && width == referenceWidth
+        && height == referenceHeight
+        && nowNanos - referenceNanos < maxStalenessNanos
+        && changedSamples < minChangedSamples) {
+      return true;
+    }
+    System.arraycopy(samples, 0, reference, 0, samples.length);
+    hasReference = true;
+    referenceWidth = width;
+    referenceHeight = height;
+    referenceNanos = nowNanos;
+    return false;
+  }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo;
+
+import android.media.Image.Plane;
+import android.os.Build.VERSION_CODES;
+import androidx.annotation.RequiresApi;
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Scales camera frames down by a fixed factor into NV21 buffers, so frames can be detected at a
+ * smaller size than they are previewed at.
+ *
+ * <p>Integer factors average each block of factor x factor pixels (a box filter), which is cheap
+ * and does not alias. Other factors interpolate bilinearly between the four nearest pixels, which
+ * aliases fine detail once the factor is above 2, but that costs little in pose detection. Chroma
+ * is scaled like luma, at half the resolution. The output sizes are rounded down to even numbers,
+ * as NV21 requires, by dropping the last rows and columns, so a point in a scaled frame is always
+ * at {@code factor} times its coordinates in the camera frame.
+ *
+ * <p>Output buffers come from a small pool. Return each one with {@link #release} once the
+ * detector is done with it.
+ */
+public final class Nv21Downscaler {
+
+  private static final int MAX_POOLED_BUFFERS = 3;
+
+  // Bilinear weights are fixed point with this many fraction bits.
+  private static final int WEIGHT_BITS = 8;
+  private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+  private final float factor;
+  // The box filter size, or 0 if the factor is not an integer.
+  private final int boxSize;
+
+  private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+
+  // Scratch space of the scaling methods, reused across frames.
+  private int[] rowSums = new int[0];
+  private int[] sourceColumns = new int[0];
+  private int[] columnWeights = new int[0];
+
+  /** Creates a downscaler that shrinks both dimensions of frames by {@code factor}. */
+  public Nv21Downscaler(float factor) {
+    Preconditions.checkArgument(factor >= 1f, "factor must be at least 1");
+    this.factor = factor;
+    boxSize = factor == (int) factor ? (int) factor : 0;
+  }
+
+  /** Returns the factor frames are shrunk by. */
+  public float getFactor() {
+    return factor;
+  }
+
+  /** Returns the width of a scaled frame of the given width. */
+  public int getScaledWidth(int width) {
+    return getScaledSize(width);
+  }
+
+  /** Returns the height of a scaled frame of the given height. */
+  public int getScaledHeight(int height) {
+    return getScaledSize(height);
+  }
+
+  private int getScaledSize(int size) {
+    return Math.max(2, (int) (size / factor) & ~1);
+  }
+
+  /**
+   * Scales an NV21 frame into a pooled buffer of {@link BitmapUtils#getNV21Size} of the scaled
+   * size. The frame is not modified.
+   */
+  public synchronized byte[] scaleNv21(ByteBuffer nv21, int width, int height) {
+    int scaledWidth = getScaledWidth(width);
+    int scaledHeight = getScaledHeight(height);
+    byte[] out = acquire(BitmapUtils.getNV21Size(scaledWidth, scaledHeight));
+    int imageSize = width * height;
+    int scaledImageSize = scaledWidth * scaledHeight;
+    scalePlane(nv21, 0, width, 1, width, height, out, 0, 1, scaledWidth, scaledHeight);
+    // V
+    scalePlane(
+        nv21,
+        imageSize,
+        width,
+        2,
+        width / 2,
+        height / 2,
+        out,
+        scaledImageSize,
+        2,
+        scaledWidth / 2,
+        scaledHeight / 2);
+    // U
+    scalePlane(
+        nv21,
+        imageSize + 1,
+        width,
+        2,
+        width / 2,
+        height / 2,
+        out,
+        scaledImageSize + 1,
+        2,
+        scaledWidth / 2,
+        scaledHeight / 2);
+    return out;
+  }
+
+  /**
+   * Scales the YUV_420_888 planes of a camera image into a pooled NV21 buffer of {@link
+   * BitmapUtils#getNV21Size} of the scaled size, without converting the full size image to NV21
+   * first. The planes are not modified.
+   */
+  @RequiresApi(VERSION_CODES.KITKAT)
+  public synchronized byte[] scaleYuv420(Plane[] planes, int width, int height) {
+    int scaledWidth = getScaledWidth(width);
+    int scaledHeight = getScaledHeight(height);
+    byte[] out = acquire(BitmapUtils.getNV21Size(scaledWidth, scaledHeight));
+    int scaledImageSize = scaledWidth * scaledHeight;
+    scalePlane(planes[0], width, height, out, 0, 1, scaledWidth, scaledHeight);
+    scalePlane(
+        planes[2],
+        width / 2,
+        height / 2,
+        out,
+        scaledImageSize,
+        2,
+        scaledWidth / 2,
+        scaledHeight / 2);
+    scalePlane(
+        planes[1],
+        width / 2,
+        height / 2,
+        out,
+        scaledImageSize + 1,
+        2,
+        scaledWidth / 2,
+        scaledHeight / 2);
+    return out;
+  }
+
+  /** Returns a buffer from {@link #scaleNv21} or {@link #scaleYuv420} to the pool. */
+  public synchronized void release(byte[] buffer) {
+    if (freeBuffers.size() < MAX_POOLED_BUFFERS) {
+      freeBuffers.add(buffer);
+    }
+  }
+
+  private byte[] acquire(int length) {
+    byte[] buffer;
+    while ((buffer = freeBuffers.poll()) != null) {
+      // Buffers of another size are left over from a different camera resolution.
+      if (buffer.length == length) {
+        return buffer;
+      }
+    }
+    return new byte[length];
+  }
+
+  @RequiresApi(VERSION_CODES.KITKAT)
+  private void scalePlane(
+      Plane plane,
+      int width,
+      int height,
+      byte[] out,
+      int outOffset,
+      int outPixelStride,
+      int outWidth,
+      int outHeight) {
+    scalePlane(
+        plane.getBuffer(),
+        0,
+        plane.getRowStride(),
+        plane.getPixelStride(),
+        width,
+        height,
+        out,
+        outOffset,
+        outPixelStride,
+        outWidth,
+        outHeight);
+  }
+
+  /**
+   * Scales one plane of {@code width} x {@code height} samples, read from {@code offset + row *
+   * rowStride + column * pixelStride} in {@code source}, into {@code out}, where output samples are
+   * {@code outPixelStride} apart and rows are not padded.
+   */
+  private void scalePlane(
+      ByteBuffer source,
+      int offset,
+      int rowStride,
+      int pixelStride,
+      int width,
+      int height,
+      byte[] out,
+      int outOffset,
+      int outPixelStride,
+      int outWidth,
+      int outHeight) {
+    if (boxSize == 1) {
+      copyPlane(
+          source,
+          offset,
+          rowStride,
+          pixelStride,
+          out,
+          outOffset,
+          outPixelStride,
+          outWidth,
+          outHeight);
+    } else if (boxSize > 0) {
+      boxScalePlane(
+          source,
+          offset,
+          rowStride,
+          pixelStride,
+          out,
+          outOffset,
+          outPixelStride,
+          outWidth,
+          outHeight);
+    } else {
+      bilinearScalePlane(
+          source,
+          offset,
+          rowStride,
+          pixelStride,
+          width,
+          height,
+          out,
+          outOffset,
+          outPixelStride,
+          outWidth,
+          outHeight);
+    }
+  }
+
+  private static void copyPlane(
+      ByteBuffer source,
+      int offset,
+      int rowStride,
+      int pixelStride,
+      byte[] out,
+      int outOffset,
+      int outPixelStride,
+      int outWidth,
+      int outHeight) {
+    int outPosition = outOffset;
+    for (int y = 0; y < outHeight; y++) {
+      int position = offset + y * rowStride;
+      for (int x = 0; x < outWidth; x++) {
+        out[outPosition] = source.get(position);
+        position += pixelStride;
+        outPosition += outPixelStride;
+      }
+    }
+  }
+
+  private void boxScalePlane(
+      ByteBuffer source,
+      int offset,
+      int rowStride,
+      int pixelStride,
+      byte[] out,
+      int outOffset,
+      int outPixelStride,
+      int outWidth,
+      int outHeight) {
+    int size = boxSize;
+    int area = size * size;
+    if (rowSums.length < outWidth) {
+      rowSums = new int[outWidth];
+    }
+    int[] sums = rowSums;
+    int outPosition = outOffset;
+    for (int y = 0; y < outHeight; y++) {
+      // Sum the rows of the blocks one source row at a time, so the source is read in order.
+      for (int x = 0; x < outWidth; x++) {
+        sums[x] = 0;
+      }
+      for (int row = y * size; row < (y + 1) * size; row++) {
+        int position = offset + row * rowStride;
+        for (int x = 0; x < outWidth; x++) {
+          int sum = 0;
+          for (int i = 0; i < size; i++) {
+            sum += source.get(position) & 0xff;
+            position += pixelStride;
+          }
+          sums[x] += sum;
+        }
+      }
+      for (int x = 0; x < outWidth; x++) {
+        out[outPosition] = (byte) ((sums[x] + area / 2) / area);
+        outPosition += outPixelStride;
+      }
+    }
+  }
+
+  private void bilinearScalePlane(
+      ByteBuffer source,
+      int offset,
+      int rowStride,
+      int pixelStride,
+      int width,
+      int height,
+      byte[] out,
+      int outOffset,
+      int outPixelStride,
+      int outWidth,
+      int outHeight) {
+    if (sourceColumns.length < outWidth) {
+      sourceColumns = new int[outWidth];
+      columnWeights = new int[outWidth];
+    }
+    int[] columns = sourceColumns;
+    int[] weights = columnWeights;
+    // The left source column and the weight of the right one are the same for every row.
+    for (int x = 0; x < outWidth; x++) {
+      float sourceX = getSourcePosition(x, width);
+      columns[x] = (int) sourceX;
+      weights[x] = (int) ((sourceX - columns[x]) * WEIGHT_ONE);
+    }
+    int outPosition = outOffset;
+    for (int y = 0; y < outHeight; y++) {
+      float sourceY = getSourcePosition(y, height);
+      int top = (int) sourceY;
+      int bottomWeight = (int) ((sourceY - top) * WEIGHT_ONE);
+      int topPosition = offset + top * rowStride;
+      int bottomPosition = top + 1 < height ? topPosition + rowStride : topPosition;
+      for (int x = 0; x < outWidth; x++) {
+        int left = columns[x] * pixelStride;
+        int right = columns[x] + 1 < width ? left + pixelStride : left;
+        int rightWeight = weights[x];
+        int topValue =
+            (source.get(topPosition + left) & 0xff) * (WEIGHT_ONE - rightWeight)
+                + (source.get(topPosition + right) & 0xff) * rightWeight;
+        int bottomValue =
+            (source.get(bottomPosition + left) & 0xff) * (WEIGHT_ONE - rightWeight)
+                + (source.get(bottomPosition + right) & 0xff) * rightWeight;
+        int value = topValue * (WEIGHT_ONE - bottomWeight) + bottomValue * bottomWeight;
+        out[outPosition] = (byte) ((value + (1 << (2 * WEIGHT_BITS - 1))) >> (2 * WEIGHT_BITS));
+        outPosition += outPixelStride;
+      }
+    }
+  }
+
+  // Aligns the pixel centres, so the source pixel is centred on the scaled one.
+  private float getSourcePosition(int scaledPosition, int size) {
+    return Math.max(0f, Math.min((scaledPosition + 0.5f) * factor - 0.5f, size - 1));
+  }
+}
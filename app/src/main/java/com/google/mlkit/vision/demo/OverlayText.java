@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * A reusable text buffer for drawing overlay text that changes every frame, such as FPS and
+ * latency, without building a new {@link String} for each draw.
+ *
+ * <p>Text is assembled into a fixed {@code char[]} with the {@code append} methods, numbers are
+ * formatted in place, and the result is drawn with {@link Canvas#drawText(char[], int, int, float,
+ * float, Paint)}. Text that does not fit the capacity is truncated. Instances are not thread safe;
+ * keep one per drawing thread.
+ */
+public final class OverlayText {
+
+  private static final char[] NAN = {'N', 'a', 'N'};
+  private static final char[] INFINITY = {'I', 'n', 'f'};
+  private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+  /**
+   * A constant piece of text whose width is measured once for the paint it is drawn with, e.g. the
+   * "FPS: " in front of a changing number.
+   */
+  public static final class Label {
+    private final String text;
+    private final char[] chars;
+    private float measuredTextSize = -1f;
+    private float width;
+
+    public Label(String text) {
+      this.text = text;
+      this.chars = text.toCharArray();
+    }
+
+    /** Returns the width of this label drawn with the given paint, measuring it only once. */
+    public float getWidth(Paint paint) {
+      float textSize = paint.getTextSize();
+      if (textSize != measuredTextSize) {
+        width = paint.measureText(chars, 0, chars.length);
+        measuredTextSize = textSize;
+      }
+      return width;
+    }
+
+    /** Draws the label and returns the x coordinate right after it. */
+    public float draw(Canvas canvas, float x, float y, Paint paint) {
+      canvas.drawText(chars, 0, chars.length, x, y, paint);
+      return x + getWidth(paint);
+    }
+
+    @Override
+    public String toString() {
+      return text;
+    }
+  }
+
+  private final char[] buffer;
+  private int length;
+
+  public OverlayText(int capacity) {
+    buffer = new char[capacity];
+  }
+
+  /** Empties the buffer. */
+  public OverlayText clear() {
+    length = 0;
+    return this;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public OverlayText append(char c) {
+    if (length < buffer.length) {
+      buffer[length++] = c;
+    }
+    return this;
+  }
+
+  /** Appends a string. Copies the characters without allocating. */
+  public OverlayText append(String s) {
+    int count = Math.min(s.length(), buffer.length - length);
+    s.getChars(0, count, buffer, length);
+    length += count;
+    return this;
+  }
+
+  public OverlayText append(Label label) {
+    return append(label.chars);
+  }
+
+  private OverlayText append(char[] chars) {
+    int count = Math.min(chars.length, buffer.length - length);
+    System.arraycopy(chars, 0, buffer, length, count);
+    length += count;
+    return this;
+  }
+
+  /** Appends a decimal integer. */
+  public OverlayText append(long value) {
+    if (value < 0) {
+      append('-');
+      if (value == Long.MIN_VALUE) {
+        // -Long.MIN_VALUE overflows; peel off the last digit first.
+        appendDigits(-(value / 10));
+        return append((char) ('0' - (value % 10)));
+      }
+      value = -value;
+    }
+    appendDigits(value);
+    return this;
+  }
+
+  /**
+   * Appends a number rounded to the given number of decimals (at most 6), e.g. {@code 0.87} for
+   * {@code append(0.8666f, 2)}.
+   */
+  public OverlayText append(double value, int decimals) {
+    if (Double.isNaN(value)) {
+      return append(NAN);
+    }
+    if (value < 0) {
+      append('-');
+      value = -value;
+    }
+    if (Double.isInfinite(value)) {
+      return append(INFINITY);
+    }
+    decimals = Math.max(0, Math.min(decimals, POWERS_OF_TEN.length - 1));
+    long scale = POWERS_OF_TEN[decimals];
+    long scaled = Math.round(value * scale);
+    appendDigits(scaled / scale);
+    if (decimals > 0) {
+      append('.');
+      long fraction = scaled % scale;
+      for (long digit = scale / 10; digit > 0; digit /= 10) {
+        append((char) ('0' + (fraction / digit) % 10));
+      }
+    }
+    return this;
+  }
+
+  private void appendDigits(long value) {
+    int start = length;
+    do {
+      append((char) ('0' + (value % 10)));
+      value /= 10;
+    } while (value != 0 && length < buffer.length);
+    // Digits were written least significant first.
+    for (int i = start, j = length - 1; i < j; i++, j--) {
+      char tmp = buffer[i];
+      buffer[i] = buffer[j];
+      buffer[j] = tmp;
+    }
+  }
+
+  /** Draws the current content. */
+  public void draw(Canvas canvas, float x, float y, Paint paint) {
+    canvas.drawText(buffer, 0, length, x, y, paint);
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, 0, length);
+  }
+}
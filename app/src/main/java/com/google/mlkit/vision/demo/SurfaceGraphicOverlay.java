@@ -0,0 +1,279 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draws the scene of a {@link GraphicOverlay} on a {@link SurfaceView} from a dedicated render
+ * thread, so overlay rendering is neither delayed by work on the UI thread nor tied to its
+ * invalidation.
+ *
+ * <p>The attached {@link GraphicOverlay} still holds the scene and defines the coordinate system,
+ * so graphics are created against it exactly as before. It must be laid out with the same bounds
+ * as this view. Each published scene wakes the render thread, which draws the latest one into a
+ * locked canvas; requests arriving while a frame is drawn are coalesced into one more frame. Only
+ * the overlay's dirty region is locked and redrawn when it reports one.
+ */
+public class SurfaceGraphicOverlay extends SurfaceView
+    implements SurfaceHolder.Callback, GraphicOverlay.Renderer {
+
+  private static final String TAG = "SurfaceGraphicOverlay";
+  private static final long STATS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  @Nullable
+  private GraphicOverlay overlay;
+
+  @GuardedBy("lock")
+  @Nullable
+  private Thread renderThread;
+
+  @GuardedBy("lock")
+  private boolean active;
+
+  @GuardedBy("lock")
+  private boolean renderRequested;
+
+  // Set when the surface content cannot be relied on, e.g. after it was created or resized.
+  @GuardedBy("lock")
+  private boolean fullFrameRequested;
+
+  // Only used on the render thread.
+  private final Rect dirtyRegion = new Rect();
+
+  // Render thread frame times in milliseconds, published for display or logging.
+  private volatile float lastFrameTimeMs;
+  private volatile float averageFrameTimeMs;
+  private volatile float maxFrameTimeMs;
+
+  public SurfaceGraphicOverlay(Context context, AttributeSet attrs) {
+    super(context, attrs);
+    // Draw on top of the camera preview surface while letting it show through.
+    setZOrderMediaOverlay(true);
+    getHolder().setFormat(PixelFormat.TRANSPARENT);
+    getHolder().addCallback(this);
+  }
+
+  /** Draws the scene of the given overlay on this view from now on. Call on the UI thread. */
+  public void attach(GraphicOverlay overlay) {
+    synchronized (lock) {
+      if (this.overlay == overlay) {
+        return;
+      }
+    }
+    detach();
+    // The overlay view must stop drawing itself before the render thread can see it, so the two
+    // never draw the scene at the same time.
+    overlay.setRenderer(this);
+    synchronized (lock) {
+      this.overlay = overlay;
+      // Any frame the renderer requested above was drawn without the overlay.
+      fullFrameRequested = true;
+      renderRequested = true;
+      lock.notifyAll();
+    }
+  }
+
+  /** Hands drawing back to the attached overlay view. Must be called on the UI thread. */
+  public void detach() {
+    GraphicOverlay previous;
+    synchronized (lock) {
+      previous = overlay;
+      overlay = null;
+    }
+    if (previous != null) {
+      // Wait for a frame in progress so the overlay view never draws concurrently with us.
+      stopRenderThread();
+      previous.setRenderer(null);
+      if (getHolder().getSurface().isValid()) {
+        startRenderThread();
+      }
+    }
+  }
+
+  /** Returns the time the render thread spent on the last frame, in milliseconds. */
+  public float getLastFrameTimeMs() {
+    return lastFrameTimeMs;
+  }
+
+  /** Returns the average render thread frame time over the last second, in milliseconds. */
+  public float getAverageFrameTimeMs() {
+    return averageFrameTimeMs;
+  }
+
+  /** Returns the longest render thread frame time over the last second, in milliseconds. */
+  public float getMaxFrameTimeMs() {
+    return maxFrameTimeMs;
+  }
+
+  @Override
+  public void requestRender() {
+    synchronized (lock) {
+      renderRequested = true;
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  public void surfaceCreated(SurfaceHolder holder) {
+    startRenderThread();
+  }
+
+  @Override
+  public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    synchronized (lock) {
+      fullFrameRequested = true;
+    }
+    requestRender();
+  }
+
+  @Override
+  public void surfaceDestroyed(SurfaceHolder holder) {
+    // The surface must not be touched once this returns.
+    stopRenderThread();
+  }
+
+  private void startRenderThread() {
+    synchronized (lock) {
+      if (renderThread != null) {
+        return;
+      }
+      active = true;
+      renderRequested = true;
+      fullFrameRequested = true;
+      renderThread = new Thread(this::renderLoop, "OverlayRenderThread");
+      renderThread.start();
+    }
+  }
+
+  private void stopRenderThread() {
+    Thread thread;
+    synchronized (lock) {
+      thread = renderThread;
+      renderThread = null;
+      active = false;
+      lock.notifyAll();
+    }
+    if (thread == null) {
+      return;
+    }
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Interrupted while waiting for the render thread to stop.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Draws a frame every time a render is requested until the thread is stopped. Detaching the
+   * overlay stops this thread first, so the overlay read below stays valid for the whole frame.
+   */
+  private void renderLoop() {
+    long intervalStartNanos = System.nanoTime();
+    long intervalTotalNanos = 0;
+    long intervalMaxNanos = 0;
+    int intervalFrames = 0;
+
+    while (true) {
+      GraphicOverlay currentOverlay;
+      boolean isFullFrame;
+      synchronized (lock) {
+        while (active && !renderRequested) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            Log.d(TAG, "Render loop terminated.", e);
+            return;
+          }
+        }
+        if (!active) {
+          return;
+        }
+        renderRequested = false;
+        currentOverlay = overlay;
+        isFullFrame = fullFrameRequested;
+        fullFrameRequested = false;
+      }
+
+      long frameStartNanos = System.nanoTime();
+      if (!drawFrame(currentOverlay, isFullFrame)) {
+        continue;
+      }
+      long now = System.nanoTime();
+      long frameNanos = now - frameStartNanos;
+      lastFrameTimeMs = frameNanos / 1e6f;
+      intervalTotalNanos += frameNanos;
+      intervalMaxNanos = Math.max(intervalMaxNanos, frameNanos);
+      intervalFrames++;
+
+      // Only log render stats once per second.
+      if (now - intervalStartNanos >= STATS_INTERVAL_NANOS) {
+        averageFrameTimeMs = intervalTotalNanos / 1e6f / intervalFrames;
+        maxFrameTimeMs = intervalMaxNanos / 1e6f;
+        Log.d(TAG, "Render frames: " + intervalFrames + ", avg frame time: " + averageFrameTimeMs);
+        Log.d(TAG, "Max render frame time: " + maxFrameTimeMs);
+        intervalStartNanos = now;
+        intervalTotalNanos = 0;
+        intervalMaxNanos = 0;
+        intervalFrames = 0;
+      }
+    }
+  }
+
+  /**
+   * Draws one frame on the render thread. Returns false if nothing was drawn, because the surface
+   * was not available or nothing needed to be redrawn.
+   */
+  private boolean drawFrame(@Nullable GraphicOverlay overlay, boolean isFullFrame) {
+    boolean isPartial = overlay != null && overlay.takeDirtyRegion(dirtyRegion) && !isFullFrame;
+    if (isPartial && dirtyRegion.isEmpty()) {
+      return false;
+    }
+    SurfaceHolder holder = getHolder();
+    // Locking a dirty region clips the canvas to it; the rest of the surface keeps its content.
+    Canvas canvas = isPartial ? holder.lockCanvas(dirtyRegion) : holder.lockCanvas();
+    if (canvas == null) {
+      // The surface is not ready yet; surfaceCreated will request another full frame.
+      return false;
+    }
+    try {
+      canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+      if (overlay != null) {
+        overlay.drawScene(canvas);
+      }
+    } finally {
+      holder.unlockCanvasAndPost(canvas);
+    }
+    return true;
+  }
+}
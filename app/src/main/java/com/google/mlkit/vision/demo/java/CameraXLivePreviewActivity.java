@@ -56,15 +56,27 @@ import com.google.mlkit.common.MlKitException;
 import com.google.mlkit.common.model.LocalModel;
 import com.google.mlkit.vision.demo.CameraXViewModel;
 import com.google.mlkit.vision.demo.GraphicOverlay;
+import com.google.mlkit.vision.demo.MotionGate;
 import com.google.mlkit.vision.demo.R;
+import com.google.mlkit.vision.demo.SurfaceGraphicOverlay;
 import com.google.mlkit.vision.demo.VisionImageProcessor;
 import com.google.mlkit.vision.demo.java.posedetector.PoseDetectorProcessor;
+import com.google.mlkit.vision.demo.java.posedetector.exercise.ExerciseLibrary;
+import com.google.mlkit.vision.demo.java.posedetector.exercise.ExerciseProgram;
+import com.google.mlkit.vision.demo.java.posedetector.history.ExerciseEventStore;
+import com.google.mlkit.vision.demo.java.posedetector.history.LandmarkSeriesFile;
+import com.google.mlkit.vision.demo.java.posedetector.history.LandmarkSeriesWriter;
+import com.google.mlkit.vision.demo.metrics.MetricsExporter;
 import com.google.mlkit.vision.demo.preference.PreferenceUtils;
 import com.google.mlkit.vision.demo.preference.SettingsActivity;
 import com.google.mlkit.vision.demo.preference.SettingsActivity.LaunchSource;
+import com.google.mlkit.vision.demo.recording.FrameRecorder;
 import com.google.mlkit.vision.pose.PoseDetectorOptions;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /** Live preview demo app for ML Kit APIs using CameraX. */
 @KeepName
@@ -79,14 +91,25 @@ public final class CameraXLivePreviewActivity extends AppCompatActivity
 
   private static final String STATE_SELECTED_MODEL = "selected_model";
   private static final String STATE_LENS_FACING = "lens_facing";
+  private static final String METRICS_SNAPSHOT_FILE = "metrics.jsonl";
+  private static final String FRAME_RECORDING_FILE = "frames.ring";
+  private static final String LANDMARK_SERIES_DIR = "landmarks";
+  private static final String EXERCISE_EVENTS_FILE = "exercise_events.log";
 
   private PreviewView previewView;
   private GraphicOverlay graphicOverlay;
+  @Nullable private SurfaceGraphicOverlay surfaceGraphicOverlay;
 
   @Nullable private ProcessCameraProvider cameraProvider;
   @Nullable private Preview previewUseCase;
   @Nullable private ImageAnalysis analysisUseCase;
   @Nullable private VisionImageProcessor imageProcessor;
+  private final MetricsExporter metricsExporter = new MetricsExporter();
+  @Nullable private FrameRecorder frameRecorder;
+  // Completes once the last closed recorder has released its file.
+  @Nullable private Future<Void> lastFrameRecorderClosed;
+  @Nullable private LandmarkSeriesWriter landmarkSeriesWriter;
+  @Nullable private ExerciseEventStore exerciseEventStore;
   private boolean needUpdateGraphicOverlayImageSourceInfo;
 
   private String selectedModel = POSE_DETECTION;
@@ -113,6 +136,7 @@ public final class CameraXLivePreviewActivity extends AppCompatActivity
       lensFacing = savedInstanceState.getInt(STATE_LENS_FACING, CameraSelector.LENS_FACING_BACK);
     }
     cameraSelector = new CameraSelector.Builder().requireLensFacing(lensFacing).build();
+    exerciseEventStore = new ExerciseEventStore(new File(getFilesDir(), EXERCISE_EVENTS_FILE));
 
     setContentView(R.layout.activity_vision_camerax_live_preview);
     previewView = findViewById(R.id.preview_view);
@@ -123,6 +147,7 @@ public final class CameraXLivePreviewActivity extends AppCompatActivity
     if (graphicOverlay == null) {
       Log.d(TAG, "graphicOverlay is null");
     }
+    surfaceGraphicOverlay = findViewById(R.id.surface_graphic_overlay);
 
     Spinner spinner = findViewById(R.id.spinner);
     List<String> options = new ArrayList<>();
@@ -237,15 +262,98 @@ public final class CameraXLivePreviewActivity extends AppCompatActivity
   @Override
   public void onResume() {
     super.onResume();
+    updateOverlayRenderer();
+    updateMetricsExporter();
+    updateFrameRecorder();
+    updateLandmarkSeriesWriter();
     bindAllCameraUseCases();
   }
 
+  private void updateOverlayRenderer() {
+    if (surfaceGraphicOverlay == null || graphicOverlay == null) {
+      return;
+    }
+    if (PreferenceUtils.isOverlayRenderThreadEnabled(this)) {
+      surfaceGraphicOverlay.setVisibility(View.VISIBLE);
+      surfaceGraphicOverlay.attach(graphicOverlay);
+    } else {
+      surfaceGraphicOverlay.detach();
+      surfaceGraphicOverlay.setVisibility(View.GONE);
+    }
+  }
+
+  private void updateMetricsExporter() {
+    metricsExporter.stop();
+    if (PreferenceUtils.isMetricsHttpServerEnabled(this)) {
+      try {
+        metricsExporter.startHttpServer(MetricsExporter.DEFAULT_PORT);
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to start the metrics server", e);
+      }
+    }
+    if (PreferenceUtils.isMetricsSnapshotLoggingEnabled(this)) {
+      metricsExporter.startSnapshots(
+          new File(getFilesDir(), METRICS_SNAPSHOT_FILE),
+          MetricsExporter.DEFAULT_SNAPSHOT_INTERVAL_SECONDS);
+    }
+  }
+
+  private void updateFrameRecorder() {
+    closeFrameRecorder();
+    if (PreferenceUtils.isFrameRecordingEnabled(this)) {
+      // The previous recorder may still be flushing the same file on its own thread.
+      frameRecorder =
+          new FrameRecorder(
+              new File(getFilesDir(), FRAME_RECORDING_FILE),
+              FrameRecorder.DEFAULT_MAX_FILE_BYTES,
+              lastFrameRecorderClosed);
+    }
+  }
+
+  /** Stops the recorder without waiting for it to flush, which can take seconds. */
+  private void closeFrameRecorder() {
+    if (frameRecorder != null) {
+      frameRecorder.close();
+      lastFrameRecorderClosed = frameRecorder.getClosedFuture();
+      frameRecorder = null;
+    }
+  }
+
+  /** Starts a new landmark series for every session in the foreground, named by its start time. */
+  private void updateLandmarkSeriesWriter() {
+    closeLandmarkSeriesWriter();
+    if (!PreferenceUtils.isLandmarkRecordingEnabled(this)) {
+      return;
+    }
+    File directory = new File(getFilesDir(), LANDMARK_SERIES_DIR);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.e(TAG, "Failed to create " + directory);
+      return;
+    }
+    landmarkSeriesWriter =
+        new LandmarkSeriesWriter(
+            new File(directory, System.currentTimeMillis() + LandmarkSeriesFile.FILE_EXTENSION));
+  }
+
+  private void closeLandmarkSeriesWriter() {
+    if (landmarkSeriesWriter != null) {
+      landmarkSeriesWriter.close();
+      landmarkSeriesWriter = null;
+    }
+  }
+
   @Override
   protected void onPause() {
     super.onPause();
+    metricsExporter.stop();
     if (imageProcessor != null) {
       imageProcessor.stop();
     }
+    closeFrameRecorder();
+    closeLandmarkSeriesWriter();
+    if (graphicOverlay != null) {
+      graphicOverlay.setAnimating(false);
+    }
   }
 
   @Override
@@ -254,6 +362,9 @@ public final class CameraXLivePreviewActivity extends AppCompatActivity
     if (imageProcessor != null) {
       imageProcessor.stop();
     }
+    if (exerciseEventStore != null) {
+      exerciseEventStore.close();
+    }
   }
 
   private void bindAllCameraUseCases() {
@@ -299,8 +410,32 @@ public final class CameraXLivePreviewActivity extends AppCompatActivity
               PreferenceUtils.getPoseDetectorOptionsForLivePreview(this);
           boolean shouldShowInFrameLikelihood =
               PreferenceUtils.shouldShowPoseDetectionInFrameLikelihoodLivePreview(this);
-          imageProcessor =
-              new PoseDetectorProcessor(this, poseDetectorOptions, shouldShowInFrameLikelihood);
+          boolean shouldInterpolatePose = PreferenceUtils.shouldInterpolatePoseLivePreview(this);
+          ExerciseProgram exerciseProgram =
+              ExerciseLibrary.getProgram(this, PreferenceUtils.getExerciseForLivePreview(this));
+          PoseDetectorProcessor poseDetectorProcessor =
+              new PoseDetectorProcessor(
+                  this,
+                  poseDetectorOptions,
+                  shouldShowInFrameLikelihood,
+                  shouldInterpolatePose,
+                  exerciseProgram);
+          metricsExporter.setPipeline(
+              poseDetectorProcessor.getPipelineLatency(), poseDetectorProcessor.getFrameRates());
+          poseDetectorProcessor.setCameraImageDownscale(
+              PreferenceUtils.getCameraInferenceDownscale(this));
+          if (PreferenceUtils.isCameraMotionGateEnabled(this)) {
+            poseDetectorProcessor.setMotionGate(
+                new MotionGate(
+                    MotionGate.DEFAULT_MIN_CHANGED_FRACTION,
+                    MotionGate.DEFAULT_MAX_STALENESS_MILLIS));
+          }
+          poseDetectorProcessor.setFrameRecorder(frameRecorder);
+          poseDetectorProcessor.setLandmarkSeriesWriter(landmarkSeriesWriter);
+          poseDetectorProcessor.setExerciseEventStore(exerciseEventStore);
+          imageProcessor = poseDetectorProcessor;
+          // Interpolated poses move between results, so redraw on every display frame.
+          graphicOverlay.setAnimating(shouldInterpolatePose);
           break;
         default:
           throw new IllegalStateException("Invalid model name");
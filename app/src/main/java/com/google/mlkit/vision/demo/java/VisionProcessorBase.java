@@ -16,8 +16,6 @@
 
 package com.google.mlkit.vision.demo.java;
 
-import android.app.ActivityManager;
-import android.app.ActivityManager.MemoryInfo;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Build.VERSION_CODES;
@@ -38,17 +36,27 @@ import com.google.mlkit.vision.demo.CameraImageGraphic;
 import com.google.mlkit.vision.demo.FrameMetadata;
 import com.google.mlkit.vision.demo.GraphicOverlay;
 import com.google.mlkit.vision.demo.InferenceInfoGraphic;
+import com.google.mlkit.vision.demo.MotionGate;
+import com.google.mlkit.vision.demo.Nv21Downscaler;
+import com.google.mlkit.vision.demo.OverlayText;
 import com.google.mlkit.vision.demo.ScopedExecutor;
 import com.google.mlkit.vision.demo.VisionImageProcessor;
+import com.google.mlkit.vision.demo.metrics.FrameRates;
+import com.google.mlkit.vision.demo.metrics.FrameTracer;
+import com.google.mlkit.vision.demo.metrics.MemoryTelemetry;
+import com.google.mlkit.vision.demo.metrics.PipelineLatency;
 import com.google.mlkit.vision.demo.preference.PreferenceUtils;
+import com.google.mlkit.vision.demo.recording.FrameRecorder;
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Abstract base class for vision frame processors. Subclasses need to implement {@link
- * #onSuccess(Object, GraphicOverlay)} to define what they want to with the detection results and
- * {@link #detectInImage(InputImage)} to specify the detector object.
+ * #onSuccess(Object, GraphicOverlay, List)} to define what they want to with the detection results
+ * and {@link #detectInImage(InputImage)} to specify the detector object.
  *
  * @param <T> The type of the detected feature.
  */
@@ -56,23 +64,54 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
 
   protected static final String MANUAL_TESTING_LOG = "LogTagForTest";
   private static final String TAG = "VisionProcessorBase";
+  // Camera timestamps further from now than this are not in the elapsed realtime base.
+  private static final long MAX_FRAME_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long STATS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * Default longer side, in pixels, that still images are scaled down to before detection. The
+   * detectors run their models at a far smaller size, so larger inputs only cost time and memory.
+   */
+  public static final int DEFAULT_MAX_STILL_IMAGE_DIMENSION = 640;
+
+  // Sequence numbers that tag the trace sections of each frame, unique across processors.
+  private static final AtomicLong nextFrameNumber = new AtomicLong();
 
-  private final ActivityManager activityManager;
-  private final Timer fpsTimer = new Timer();
   private final ScopedExecutor executor;
 
   // Whether this processor is already shut down
   private boolean isShutdown;
 
-  // Used to calculate latency, running in the same thread, no sync needed.
-  private int numRuns = 0;
-  private long totalRunMs = 0;
-  private long maxRunMs = 0;
-  private long minRunMs = Long.MAX_VALUE;
+  // Per-stage latency distributions, logged and reset once per second.
+  private final PipelineLatency pipelineLatency = new PipelineLatency();
+
+  // Input, processed and dropped frame rates over a sliding one second window.
+  private final FrameRates frameRates = new FrameRates();
+  // When stats were last logged, only accessed on the main thread.
+  private long lastStatsLogNanos;
+
+  // Formats the values of this processor's info graphics. Only used on the overlay's drawing
+  // thread.
+  private final OverlayText infoText = InferenceInfoGraphic.createValueText();
+
+  // Only accessed on the main thread. 0 if still images are detected at their own size.
+  private int maxStillImageDimension = DEFAULT_MAX_STILL_IMAGE_DIMENSION;
+
+  // Scales camera frames down before detection, null to detect them at their own size.
+  @Nullable private volatile Nv21Downscaler cameraDownscaler;
 
-  // Frame count that have been processed so far in an one second interval to calculate FPS.
-  private int frameProcessedInOneSecondInterval = 0;
-  private int framesPerSecond = 0;
+  // Skips detection of camera frames without motion, null to detect every frame.
+  @Nullable private volatile MotionGate motionGate;
+
+  // The number of the frame the motion gate compares later frames to. Only touched while processing
+  // a camera frame, which never overlaps with processing another.
+  private long gateReferenceFrameNumber = -1;
+  // The last detected camera frame, whose results are shown again for frames the motion gate skips.
+  // Only written on the main thread.
+  @Nullable private volatile DetectedFrame<T> lastDetectedFrame;
+
+  // Receives a copy of every camera frame while recording is on.
+  @Nullable private volatile FrameRecorder frameRecorder;
 
   // To keep the latest images and its metadata.
   @GuardedBy("this")
@@ -80,6 +119,13 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
 
   @GuardedBy("this")
   private FrameMetadata latestImageMetaData;
+
+  // When the latest image arrived, in the System.nanoTime() base.
+  @GuardedBy("this")
+  private long latestImageNanos;
+
+  @GuardedBy("this")
+  private long latestImageFrameNumber;
   // To keep the images and metadata in process.
   @GuardedBy("this")
   private ByteBuffer processingImage;
@@ -88,39 +134,165 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
   private FrameMetadata processingMetaData;
 
   protected VisionProcessorBase(Context context) {
-    activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
     executor = new ScopedExecutor(TaskExecutors.MAIN_THREAD);
-    fpsTimer.scheduleAtFixedRate(
-        new TimerTask() {
-          @Override
-          public void run() {
-            framesPerSecond = frameProcessedInOneSecondInterval;
-            frameProcessedInOneSecondInterval = 0;
-          }
-        },
-        /* delay= */ 0,
-        /* period= */ 1000);
+  }
+
+  /** Returns the latency distributions of the stages frames go through in this processor. */
+  public PipelineLatency getPipelineLatency() {
+    return pipelineLatency;
+  }
+
+  /** Returns the rates of frames entering, processed by and dropped by this processor. */
+  public FrameRates getFrameRates() {
+    return frameRates;
+  }
+
+  /**
+   * Sets the recorder that camera frames are copied to, or {@code null} to stop copying them. The
+   * caller keeps ownership of the recorder and closes it.
+   */
+  public void setFrameRecorder(@Nullable FrameRecorder recorder) {
+    frameRecorder = recorder;
+  }
+
+  /**
+   * Sets the factor camera frames are scaled down by before detection, or 1 to detect them at the
+   * size they are previewed at. The results are mapped back to the preview in {@link
+   * #onSuccess(Object, GraphicOverlay, List, float, float, boolean)}.
+   */
+  public void setCameraImageDownscale(float factor) {
+    cameraDownscaler = factor > 1f ? new Nv21Downscaler(factor) : null;
+  }
+
+  /**
+   * Sets the gate that lets camera frames without motion reuse the results of the last detected
+   * frame instead of being detected, or {@code null} to detect every frame. Skipped frames are
+   * counted by {@link FrameRates#markSkipped}.
+   */
+  public void setMotionGate(@Nullable MotionGate gate) {
+    motionGate = gate;
   }
 
   // -----------------Code for processing single still image----------------------------------------
   @Override
   public void processBitmap(Bitmap bitmap, final GraphicOverlay graphicOverlay) {
-    requestDetectInImage(
-        InputImage.fromBitmap(bitmap, 0),
-        graphicOverlay,
-        /* originalCameraImage= */ null,
-        /* shouldShowFps= */ false);
+    requestDetectInBitmap(bitmap, graphicOverlay);
+  }
+
+  /**
+   * Sets the longer side, in pixels, that larger still images are scaled down to before detection,
+   * or 0 to detect them at their own size. Must be called on the main thread.
+   */
+  public void setMaxStillImageDimension(int maxDimension) {
+    maxStillImageDimension = maxDimension;
+  }
+
+  /**
+   * Returns the width a still image is scaled to before detection. Results of {@link
+   * #requestDetectInBitmap} are mapped back to the image by multiplying x by the image width over
+   * this.
+   */
+  protected int getStillImageDetectionWidth(Bitmap bitmap) {
+    return Math.max(1, Math.round(bitmap.getWidth() * getStillImageScale(bitmap)));
+  }
+
+  /** Returns the height a still image is scaled to before detection, see the width. */
+  protected int getStillImageDetectionHeight(Bitmap bitmap) {
+    return Math.max(1, Math.round(bitmap.getHeight() * getStillImageScale(bitmap)));
+  }
+
+  private float getStillImageScale(Bitmap bitmap) {
+    int longerSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+    if (maxStillImageDimension <= 0 || longerSide <= maxStillImageDimension) {
+      return 1f;
+    }
+    return maxStillImageDimension / (float) longerSide;
+  }
+
+  /**
+   * Detects a still image and shows the results, like {@link #processBitmap}. Returns the detection
+   * task, so subclasses can also use the results. The image is scaled down to {@link
+   * #getStillImageDetectionWidth} x {@link #getStillImageDetectionHeight} first; the results passed
+   * to {@link #onSuccess(Object, GraphicOverlay, List, float, float, boolean)} and those of the
+   * task are in the coordinates of the scaled image.
+   */
+  protected Task<T> requestDetectInBitmap(Bitmap bitmap, GraphicOverlay graphicOverlay) {
+    long frameNumber = nextFrameNumber.getAndIncrement();
+    int scaledWidth = getStillImageDetectionWidth(bitmap);
+    int scaledHeight = getStillImageDetectionHeight(bitmap);
+    if (scaledWidth == bitmap.getWidth() && scaledHeight == bitmap.getHeight()) {
+      return requestDetectInImage(
+          InputImage.fromBitmap(bitmap, 0),
+          graphicOverlay,
+          /* originalCameraImage= */ null,
+          /* shouldShowFps= */ false,
+          frameNumber,
+          /* imageScaleX= */ 1f,
+          /* imageScaleY= */ 1f);
+    }
+    long conversionStartNanos = System.nanoTime();
+    Bitmap scaledBitmap =
+        Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, /* filter= */ true);
+    pipelineLatency.record(
+        PipelineLatency.STAGE_CONVERSION, System.nanoTime() - conversionStartNanos);
+    Log.d(
+        TAG,
+        "Detecting a "
+            + bitmap.getWidth()
+            + "x"
+            + bitmap.getHeight()
+            + " still image at "
+            + scaledBitmap.getWidth()
+            + "x"
+            + scaledBitmap.getHeight()
+            + ", "
+            + scaledBitmap.getByteCount() / 1024
+            + " KB instead of "
+            + bitmap.getByteCount() / 1024
+            + " KB");
+    return requestDetectInImage(
+            InputImage.fromBitmap(scaledBitmap, 0),
+            graphicOverlay,
+            /* originalCameraImage= */ null,
+            /* shouldShowFps= */ false,
+            frameNumber,
+            // The sides are rounded separately, so each has its own exact ratio.
+            scaledWidth / (float) bitmap.getWidth(),
+            scaledHeight / (float) bitmap.getHeight())
+        .addOnCompleteListener(
+            executor,
+            results -> {
+              if (scaledBitmap != bitmap) {
+                scaledBitmap.recycle();
+              }
+            });
   }
 
   // -----------------Code for processing live preview frame from Camera1 API-----------------------
   @Override
   public synchronized void processByteBuffer(
       ByteBuffer data, final FrameMetadata frameMetadata, final GraphicOverlay graphicOverlay) {
+    long frameNumber = nextFrameNumber.getAndIncrement();
+    FrameTracer.beginSection(FrameTracer.SECTION_INTAKE, frameNumber);
+    long nowNanos = System.nanoTime();
+    frameRates.markInput(nowNanos);
+    FrameRecorder recorder = frameRecorder;
+    if (recorder != null) {
+      // Camera1 buffers carry no timestamp, the arrival time is close enough for replay.
+      recorder.offerNv21(data, frameMetadata, nowNanos);
+    }
+    if (latestImage != null) {
+      // The previous frame was still waiting and is replaced by this one.
+      frameRates.markDropped(nowNanos);
+    }
     latestImage = data;
     latestImageMetaData = frameMetadata;
+    latestImageNanos = nowNanos;
+    latestImageFrameNumber = frameNumber;
     if (processingImage == null && processingMetaData == null) {
       processLatestImage(graphicOverlay);
     }
+    FrameTracer.endSection(FrameTracer.SECTION_INTAKE, frameNumber);
   }
 
   private synchronized void processLatestImage(final GraphicOverlay graphicOverlay) {
@@ -128,31 +300,90 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
     processingMetaData = latestImageMetaData;
     latestImage = null;
     latestImageMetaData = null;
-    if (processingImage != null && processingMetaData != null && !isShutdown) {
-      processImage(processingImage, processingMetaData, graphicOverlay);
+    if (processingImage != null && processingMetaData != null) {
+      if (isShutdown) {
+        frameRates.markDropped(System.nanoTime());
+        return;
+      }
+      pipelineLatency.record(
+          PipelineLatency.STAGE_FRAME_WAIT, System.nanoTime() - latestImageNanos);
+      processImage(processingImage, processingMetaData, graphicOverlay, latestImageFrameNumber);
     }
   }
 
   private void processImage(
-      ByteBuffer data, final FrameMetadata frameMetadata, final GraphicOverlay graphicOverlay) {
+      ByteBuffer data,
+      final FrameMetadata frameMetadata,
+      final GraphicOverlay graphicOverlay,
+      long frameNumber) {
+    FrameTracer.beginSection(FrameTracer.SECTION_CONVERSION, frameNumber);
+    long conversionStartNanos = System.nanoTime();
     // If live viewport is on (that is the underneath surface view takes care of the camera preview
     // drawing), skip the unnecessary bitmap creation that used for the manual preview drawing.
     Bitmap bitmap =
         PreferenceUtils.isCameraLiveViewportEnabled(graphicOverlay.getContext())
             ? null
             : BitmapUtils.getBitmap(data, frameMetadata);
+    MotionGate gate = motionGate;
+    DetectedFrame<T> reusable =
+        gate == null
+            ? null
+            : getReusableFrame(
+                gate.isStillNv21(
+                    data,
+                    frameMetadata.getWidth(),
+                    frameMetadata.getHeight(),
+                    conversionStartNanos),
+                frameNumber);
+    if (reusable != null) {
+      FrameTracer.endSection(FrameTracer.SECTION_CONVERSION, frameNumber);
+      showReusedResults(reusable, graphicOverlay, bitmap, frameNumber);
+      // No detection is in flight to pick up the next frame once it completes.
+      processLatestImage(graphicOverlay);
+      return;
+    }
+    Nv21Downscaler downscaler = cameraDownscaler;
+    byte[] scaledData = null;
+    InputImage inputImage;
+    if (downscaler == null) {
+      inputImage =
+          InputImage.fromByteBuffer(
+              data,
+              frameMetadata.getWidth(),
+              frameMetadata.getHeight(),
+              frameMetadata.getRotation(),
+              InputImage.IMAGE_FORMAT_NV21);
+    } else {
+      scaledData =
+          downscaler.scaleNv21(data, frameMetadata.getWidth(), frameMetadata.getHeight());
+      inputImage =
+          fromScaledNv21(
+              scaledData,
+              downscaler,
+              frameMetadata.getWidth(),
+              frameMetadata.getHeight(),
+              frameMetadata.getRotation());
+    }
+    pipelineLatency.record(
+        PipelineLatency.STAGE_CONVERSION, System.nanoTime() - conversionStartNanos);
+    FrameTracer.endSection(FrameTracer.SECTION_CONVERSION, frameNumber);
 
-    requestDetectInImage(
-            InputImage.fromByteBuffer(
-                data,
-                frameMetadata.getWidth(),
-                frameMetadata.getHeight(),
-                frameMetadata.getRotation(),
-                InputImage.IMAGE_FORMAT_NV21),
+    // The downscaler shrinks both sides by exactly its factor.
+    float imageScale = downscaler == null ? 1f : 1f / downscaler.getFactor();
+    Task<T> task =
+        requestDetectInImage(
+            inputImage,
             graphicOverlay,
             bitmap,
-            /* shouldShowFps= */ true)
-        .addOnSuccessListener(executor, results -> processLatestImage(graphicOverlay));
+            /* shouldShowFps= */ true,
+            frameNumber,
+            imageScale,
+            imageScale);
+    task.addOnSuccessListener(executor, results -> processLatestImage(graphicOverlay));
+    if (scaledData != null) {
+      byte[] buffer = scaledData;
+      task.addOnCompleteListener(results -> downscaler.release(buffer));
+    }
   }
 
   // -----------------Code for processing live preview frame from CameraX API-----------------------
@@ -160,25 +391,110 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
   @RequiresApi(VERSION_CODES.KITKAT)
   @ExperimentalGetImage
   public void processImageProxy(ImageProxy image, GraphicOverlay graphicOverlay) {
+    frameRates.markInput(System.nanoTime());
     if (isShutdown) {
+      frameRates.markDropped(System.nanoTime());
       image.close();
       return;
     }
 
+    long frameNumber = nextFrameNumber.getAndIncrement();
+    FrameTracer.beginSection(FrameTracer.SECTION_INTAKE, frameNumber);
+    // The sensor timestamp is usually in the elapsed realtime base, but is not guaranteed to be.
+    long frameWaitNanos =
+        SystemClock.elapsedRealtimeNanos() - image.getImageInfo().getTimestamp();
+    if (frameWaitNanos >= 0 && frameWaitNanos < MAX_FRAME_WAIT_NANOS) {
+      pipelineLatency.record(PipelineLatency.STAGE_FRAME_WAIT, frameWaitNanos);
+    }
+    FrameRecorder recorder = frameRecorder;
+    if (recorder != null) {
+      recorder.offerYuv420(
+          image.getImage().getPlanes(),
+          image.getWidth(),
+          image.getHeight(),
+          image.getImageInfo().getRotationDegrees(),
+          image.getImageInfo().getTimestamp());
+    }
+
+    FrameTracer.beginSection(FrameTracer.SECTION_CONVERSION, frameNumber);
+    long conversionStartNanos = System.nanoTime();
     Bitmap bitmap = null;
     if (!PreferenceUtils.isCameraLiveViewportEnabled(graphicOverlay.getContext())) {
       bitmap = BitmapUtils.getBitmap(image);
     }
+    MotionGate gate = motionGate;
+    DetectedFrame<T> reusable =
+        gate == null
+            ? null
+            : getReusableFrame(
+                gate.isStill(
+                    image.getImage().getPlanes(),
+                    image.getWidth(),
+                    image.getHeight(),
+                    conversionStartNanos),
+                frameNumber);
+    if (reusable != null) {
+      FrameTracer.endSection(FrameTracer.SECTION_CONVERSION, frameNumber);
+      image.close();
+      showReusedResults(reusable, graphicOverlay, bitmap, frameNumber);
+      FrameTracer.endSection(FrameTracer.SECTION_INTAKE, frameNumber);
+      return;
+    }
+    Nv21Downscaler downscaler = cameraDownscaler;
+    byte[] scaledData = null;
+    InputImage inputImage;
+    if (downscaler == null) {
+      inputImage =
+          InputImage.fromMediaImage(image.getImage(), image.getImageInfo().getRotationDegrees());
+    } else {
+      // Scales straight from the camera planes, the full size frame is never copied.
+      scaledData =
+          downscaler.scaleYuv420(image.getImage().getPlanes(), image.getWidth(), image.getHeight());
+      inputImage =
+          fromScaledNv21(
+              scaledData,
+              downscaler,
+              image.getWidth(),
+              image.getHeight(),
+              image.getImageInfo().getRotationDegrees());
+    }
+    pipelineLatency.record(
+        PipelineLatency.STAGE_CONVERSION, System.nanoTime() - conversionStartNanos);
+    FrameTracer.endSection(FrameTracer.SECTION_CONVERSION, frameNumber);
 
+    // The downscaler shrinks both sides by exactly its factor.
+    float imageScale = downscaler == null ? 1f : 1f / downscaler.getFactor();
+    byte[] buffer = scaledData;
     requestDetectInImage(
-            InputImage.fromMediaImage(image.getImage(), image.getImageInfo().getRotationDegrees()),
+            inputImage,
             graphicOverlay,
             /* originalCameraImage= */ bitmap,
-            /* shouldShowFps= */ true)
+            /* shouldShowFps= */ true,
+            frameNumber,
+            imageScale,
+            imageScale)
         // When the image is from CameraX analysis use case, must call image.close() on received
         // images when finished using them. Otherwise, new images may not be received or the camera
         // may stall.
-        .addOnCompleteListener(results -> image.close());
+        .addOnCompleteListener(
+            results -> {
+              image.close();
+              if (buffer != null) {
+                downscaler.release(buffer);
+              }
+            });
+    FrameTracer.endSection(FrameTracer.SECTION_INTAKE, frameNumber);
+  }
+
+  /** Wraps a frame scaled by {@code downscaler} from a camera frame of the given size. */
+  private static InputImage fromScaledNv21(
+      byte[] scaledData, Nv21Downscaler downscaler, int width, int height, int rotation) {
+    return InputImage.fromByteBuffer(
+        ByteBuffer.wrap(scaledData),
+        downscaler.getScaledWidth(width),
+        downscaler.getScaledHeight(height),
+        rotation,
+        InputImage.IMAGE_FORMAT_NV21);
   }
 
   // -----------------Common processing logic-------------------------------------------------------
@@ -186,46 +502,75 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
       final InputImage image,
       final GraphicOverlay graphicOverlay,
       @Nullable final Bitmap originalCameraImage,
-      boolean shouldShowFps) {
-    final long startMs = SystemClock.elapsedRealtime();
+      boolean shouldShowFps,
+      long frameNumber,
+      float imageScaleX,
+      float imageScaleY) {
+    final long startNanos = System.nanoTime();
+    // The size the detector sees, upright like the overlay's image.
+    boolean isSideways = image.getRotationDegrees() % 180 != 0;
+    int detectedWidth = isSideways ? image.getHeight() : image.getWidth();
+    int detectedHeight = isSideways ? image.getWidth() : image.getHeight();
+    FrameTracer.beginAsyncSection(FrameTracer.SECTION_INFERENCE, frameNumber);
     return detectInImage(image)
         .addOnSuccessListener(
             executor,
             results -> {
-              long currentLatencyMs = SystemClock.elapsedRealtime() - startMs;
-              numRuns++;
-              frameProcessedInOneSecondInterval++;
-              totalRunMs += currentLatencyMs;
-              maxRunMs = Math.max(currentLatencyMs, maxRunMs);
-              minRunMs = Math.min(currentLatencyMs, minRunMs);
-
-              // Only log inference info once per second. When frameProcessedInOneSecondInterval is
-              // equal to 1, it means this is the first frame processed during the current second.
-              if (frameProcessedInOneSecondInterval == 1) {
-                Log.d(TAG, "Max latency is: " + maxRunMs);
-                Log.d(TAG, "Min latency is: " + minRunMs);
-                Log.d(TAG, "Num of Runs: " + numRuns + ", Avg latency is: " + totalRunMs / numRuns);
-                MemoryInfo mi = new MemoryInfo();
-                activityManager.getMemoryInfo(mi);
-                long availableMegs = mi.availMem / 0x100000L;
-                Log.d(TAG, "Memory available in system: " + availableMegs + " MB");
+              FrameTracer.endAsyncSection(FrameTracer.SECTION_INFERENCE, frameNumber);
+              FrameTracer.beginSection(FrameTracer.SECTION_RESULT_HANDLING, frameNumber);
+              long resultStartNanos = System.nanoTime();
+              long currentLatencyNanos = resultStartNanos - startNanos;
+              pipelineLatency.record(PipelineLatency.STAGE_INFERENCE, currentLatencyNanos);
+              if (shouldShowFps) {
+                frameRates.markProcessed(resultStartNanos);
               }
 
-              graphicOverlay.clear();
-              if (originalCameraImage != null) {
-                graphicOverlay.add(new CameraImageGraphic(graphicOverlay, originalCameraImage));
+              // Only log inference info once per second.
+              if (resultStartNanos - lastStatsLogNanos >= STATS_INTERVAL_NANOS) {
+                lastStatsLogNanos = resultStartNanos;
+                pipelineLatency.takeIntervalSnapshot();
+                pipelineLatency.logSnapshot(TAG);
+                frameRates.log(TAG, resultStartNanos);
+                MemoryTelemetry.getInstance().requestSample(TAG);
               }
-              graphicOverlay.add(
-                  new InferenceInfoGraphic(
-                      graphicOverlay, currentLatencyMs, shouldShowFps ? framesPerSecond : null));
-              VisionProcessorBase.this.onSuccess(results, graphicOverlay);
-              graphicOverlay.postInvalidate();
+
+              if (shouldShowFps) {
+                // A camera frame, which later frames without motion can reuse the results of.
+                lastDetectedFrame =
+                    new DetectedFrame<>(
+                        results,
+                        frameNumber,
+                        imageScaleX,
+                        imageScaleY,
+                        detectedWidth,
+                        detectedHeight,
+                        currentLatencyNanos);
+              }
+              showResults(
+                  results,
+                  graphicOverlay,
+                  originalCameraImage,
+                  currentLatencyNanos,
+                  shouldShowFps,
+                  frameNumber,
+                  imageScaleX,
+                  imageScaleY,
+                  detectedWidth,
+                  detectedHeight,
+                  /* isReused= */ false,
+                  resultStartNanos);
+              pipelineLatency.record(
+                  PipelineLatency.STAGE_RESULT_HANDLING, System.nanoTime() - resultStartNanos);
+              FrameTracer.endSection(FrameTracer.SECTION_RESULT_HANDLING, frameNumber);
             })
         .addOnFailureListener(
             executor,
             e -> {
+              FrameTracer.endAsyncSection(FrameTracer.SECTION_INFERENCE, frameNumber);
+              if (shouldShowFps) {
+                frameRates.markDropped(System.nanoTime());
+              }
               graphicOverlay.clear();
-              graphicOverlay.postInvalidate();
               String error = "Failed to process. Error: " + e.getLocalizedMessage();
               Toast.makeText(
                       graphicOverlay.getContext(),
@@ -238,18 +583,156 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
             });
   }
 
+  private void showResults(
+      T results,
+      GraphicOverlay graphicOverlay,
+      @Nullable Bitmap originalCameraImage,
+      long latencyNanos,
+      boolean shouldShowFps,
+      long frameNumber,
+      float imageScaleX,
+      float imageScaleY,
+      int detectedWidth,
+      int detectedHeight,
+      boolean isReused,
+      long nowNanos) {
+    // Build the whole frame first and publish it at once, so the overlay never draws a partial
+    // scene.
+    List<GraphicOverlay.Graphic> scene = new ArrayList<>(3);
+    if (originalCameraImage != null) {
+      scene.add(new CameraImageGraphic(graphicOverlay, originalCameraImage));
+    }
+    MemoryTelemetry.getInstance()
+        .setCameraImageBytes(originalCameraImage == null ? 0 : originalCameraImage.getByteCount());
+    scene.add(
+        new InferenceInfoGraphic(
+            graphicOverlay,
+            detectedWidth,
+            detectedHeight,
+            latencyNanos / 1e6,
+            shouldShowFps ? Math.round(frameRates.getProcessedFps(nowNanos)) : null,
+            infoText));
+    onSuccess(results, graphicOverlay, scene, imageScaleX, imageScaleY, isReused);
+    graphicOverlay.setRenderLatencyHistogram(
+        pipelineLatency.getLiveHistogram(PipelineLatency.STAGE_RENDER));
+    graphicOverlay.setScene(scene, frameNumber);
+  }
+
+  /**
+   * Returns the detected frame whose results a camera frame can reuse, or {@code null} if it has to
+   * be detected. {@code isStill} is what the motion gate found for the frame. Only the results of
+   * the frame the gate compared against, or of a later one, are reused, so they are never older
+   * than the gate's staleness limit allows, whichever detection completed last.
+   */
+  @Nullable
+  private DetectedFrame<T> getReusableFrame(boolean isStill, long frameNumber) {
+    if (!isStill) {
+      // The gate compares later frames to this one.
+      gateReferenceFrameNumber = frameNumber;
+      return null;
+    }
+    DetectedFrame<T> detected = lastDetectedFrame;
+    return detected != null && detected.frameNumber >= gateReferenceFrameNumber ? detected : null;
+  }
+
+  /**
+   * Shows the results of an earlier detected camera frame again for a frame the motion gate found
+   * still, with the frame's own camera image.
+   */
+  private void showReusedResults(
+      DetectedFrame<T> detected,
+      GraphicOverlay graphicOverlay,
+      @Nullable Bitmap originalCameraImage,
+      long frameNumber) {
+    executor.execute(
+        () -> {
+          long nowNanos = System.nanoTime();
+          frameRates.markSkipped(nowNanos);
+          showResults(
+              detected.results,
+              graphicOverlay,
+              originalCameraImage,
+              detected.latencyNanos,
+              /* shouldShowFps= */ true,
+              frameNumber,
+              detected.imageScaleX,
+              detected.imageScaleY,
+              detected.width,
+              detected.height,
+              /* isReused= */ true,
+              nowNanos);
+        });
+  }
+
   @Override
   public void stop() {
     executor.shutdown();
     isShutdown = true;
-    numRuns = 0;
-    totalRunMs = 0;
-    fpsTimer.cancel();
   }
 
   protected abstract Task<T> detectInImage(InputImage image);
 
-  protected abstract void onSuccess(@NonNull T results, @NonNull GraphicOverlay graphicOverlay);
+  /**
+   * Handles the detection results of one frame.
+   *
+   * @param graphicOverlay the overlay the frame is shown on
+   * @param scene the graphics published to {@code graphicOverlay} for this frame once this method
+   *     returns; add graphics for the results here rather than to the overlay
+   */
+  protected abstract void onSuccess(
+      @NonNull T results,
+      @NonNull GraphicOverlay graphicOverlay,
+      @NonNull List<GraphicOverlay.Graphic> scene);
+
+  /**
+   * Handles the detection results of a frame whose width and height were scaled by {@code
+   * imageScaleX} and {@code imageScaleY} before detection, so the x and y coordinates of the
+   * results are that many times those of the frame shown on {@code graphicOverlay}. Processors
+   * whose graphics draw result coordinates override this to map them back; by default the results
+   * are handled as they are.
+   *
+   * @param isReused whether the results are those of an earlier frame, shown again for a frame the
+   *     motion gate found still. Such results were already handled once, so processors that record
+   *     or evaluate results should only add their graphics to {@code scene}.
+   */
+  protected void onSuccess(
+      @NonNull T results,
+      @NonNull GraphicOverlay graphicOverlay,
+      @NonNull List<GraphicOverlay.Graphic> scene,
+      float imageScaleX,
+      float imageScaleY,
+      boolean isReused) {
+    onSuccess(results, graphicOverlay, scene);
+  }
 
   protected abstract void onFailure(@NonNull Exception e);
+
+  /** The results of a detected camera frame and how to show them. */
+  private static final class DetectedFrame<T> {
+    final T results;
+    final long frameNumber;
+    final float imageScaleX;
+    final float imageScaleY;
+    // The size the frame was detected at.
+    final int width;
+    final int height;
+    final long latencyNanos;
+
+    DetectedFrame(
+        T results,
+        long frameNumber,
+        float imageScaleX,
+        float imageScaleY,
+        int width,
+        int height,
+        long latencyNanos) {
+      this.results = results;
+      this.frameNumber = frameNumber;
+      this.imageScaleX = imageScaleX;
+      this.imageScaleY = imageScaleY;
+      this.width = width;
+      this.height = height;
+      this.latencyNanos = latencyNanos;
+    }
+  }
 }
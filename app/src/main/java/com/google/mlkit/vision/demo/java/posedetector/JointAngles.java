@@ -0,0 +1,166 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector;
+
+import com.google.mlkit.vision.pose.PoseLandmark;
+
+/**
+ * Computes the standard skeletal joint angles of a pose in one pass over {@link LandmarkArrays}.
+ *
+ * <p>Each angle is derived from the dot and cross product of the two limb vectors meeting at the
+ * joint, which needs a single arctangent instead of one per limb. With {@code useFastAtan} the
+ * arctangent is replaced by a polynomial approximation accurate to about 0.001 degrees.
+ */
+public final class JointAngles {
+
+  public static final int LEFT_ELBOW = 0;
+  public static final int RIGHT_ELBOW = 1;
+  public static final int LEFT_SHOULDER = 2;
+  public static final int RIGHT_SHOULDER = 3;
+  public static final int LEFT_HIP = 4;
+  public static final int RIGHT_HIP = 5;
+  public static final int LEFT_KNEE = 6;
+  public static final int RIGHT_KNEE = 7;
+  public static final int LEFT_ANKLE = 8;
+  public static final int RIGHT_ANKLE = 9;
+  /** Lean of the line from the mid hip to the mid shoulder away from upright, in degrees. */
+  public static final int TRUNK = 10;
+
+  public static final int NUM_ANGLES = 11;
+
+  private static final String[] NAMES = {
+    "LEFT_ELBOW",
+    "RIGHT_ELBOW",
+    "LEFT_SHOULDER",
+    "RIGHT_SHOULDER",
+    "LEFT_HIP",
+    "RIGHT_HIP",
+    "LEFT_KNEE",
+    "RIGHT_KNEE",
+    "LEFT_ANKLE",
+    "RIGHT_ANKLE",
+    "TRUNK",
+  };
+
+  private static final float RADIANS_TO_DEGREES = (float) (180.0 / Math.PI);
+  private static final float HALF_PI = (float) (Math.PI / 2);
+  private static final float PI = (float) Math.PI;
+
+  // Landmark triplets (first, joint, last) of the angles above, except TRUNK.
+  private static final int[] TRIPLETS = {
+    PoseLandmark.Type.LEFT_SHOULDER, PoseLandmark.Type.LEFT_ELBOW, PoseLandmark.Type.LEFT_WRIST,
+    PoseLandmark.Type.RIGHT_SHOULDER, PoseLandmark.Type.RIGHT_ELBOW, PoseLandmark.Type.RIGHT_WRIST,
+    PoseLandmark.Type.LEFT_ELBOW, PoseLandmark.Type.LEFT_SHOULDER, PoseLandmark.Type.LEFT_HIP,
+    PoseLandmark.Type.RIGHT_ELBOW, PoseLandmark.Type.RIGHT_SHOULDER, PoseLandmark.Type.RIGHT_HIP,
+    PoseLandmark.Type.LEFT_SHOULDER, PoseLandmark.Type.LEFT_HIP, PoseLandmark.Type.LEFT_KNEE,
+    PoseLandmark.Type.RIGHT_SHOULDER, PoseLandmark.Type.RIGHT_HIP, PoseLandmark.Type.RIGHT_KNEE,
+    PoseLandmark.Type.LEFT_HIP, PoseLandmark.Type.LEFT_KNEE, PoseLandmark.Type.LEFT_ANKLE,
+    PoseLandmark.Type.RIGHT_HIP, PoseLandmark.Type.RIGHT_KNEE, PoseLandmark.Type.RIGHT_ANKLE,
+    PoseLandmark.Type.LEFT_KNEE, PoseLandmark.Type.LEFT_ANKLE, PoseLandmark.Type.LEFT_FOOT_INDEX,
+    PoseLandmark.Type.RIGHT_KNEE, PoseLandmark.Type.RIGHT_ANKLE, PoseLandmark.Type.RIGHT_FOOT_INDEX,
+  };
+
+  private JointAngles() {}
+
+  /**
+   * Writes all {@link #NUM_ANGLES} angles of the pose, in degrees within [0, 180], into {@code
+   * out}.
+   */
+  public static void compute(LandmarkArrays landmarks, float[] out, boolean useFastAtan) {
+    float[] x = landmarks.x;
+    float[] y = landmarks.y;
+    for (int i = 0, t = 0; i < TRUNK; i++, t += 3) {
+      int first = TRIPLETS[t];
+      int mid = TRIPLETS[t + 1];
+      int last = TRIPLETS[t + 2];
+      out[i] =
+          angle(
+              x[first] - x[mid],
+              y[first] - y[mid],
+              x[last] - x[mid],
+              y[last] - y[mid],
+              useFastAtan);
+    }
+
+    float trunkX =
+        (x[PoseLandmark.Type.LEFT_SHOULDER] + x[PoseLandmark.Type.RIGHT_SHOULDER])
+            - (x[PoseLandmark.Type.LEFT_HIP] + x[PoseLandmark.Type.RIGHT_HIP]);
+    float trunkY =
+        (y[PoseLandmark.Type.LEFT_SHOULDER] + y[PoseLandmark.Type.RIGHT_SHOULDER])
+            - (y[PoseLandmark.Type.LEFT_HIP] + y[PoseLandmark.Type.RIGHT_HIP]);
+    // Image y grows downwards, so upright is (0, -1).
+    out[TRUNK] = angle(trunkX, trunkY, 0f, -1f, useFastAtan);
+  }
+
+  /** Returns the index of an angle name such as {@code "RIGHT_KNEE"}, or -1 if it is unknown. */
+  public static int indexOf(String name) {
+    for (int i = 0; i < NUM_ANGLES; i++) {
+      if (NAMES[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the angle at (midX, midY) between the segments to the first and the last point, in
+   * degrees within [0, 180].
+   */
+  public static float angle(
+      float firstX,
+      float firstY,
+      float midX,
+      float midY,
+      float lastX,
+      float lastY,
+      boolean useFastAtan) {
+    return angle(firstX - midX, firstY - midY, lastX - midX, lastY - midY, useFastAtan);
+  }
+
+  /** Returns the angle between two vectors, in degrees within [0, 180]. */
+  private static float angle(float ax, float ay, float bx, float by, boolean useFastAtan) {
+    float dot = ax * bx + ay * by;
+    float cross = Math.abs(ax * by - ay * bx);
+    float radians = useFastAtan ? fastAtan2(cross, dot) : (float) Math.atan2(cross, dot);
+    return radians * RADIANS_TO_DEGREES;
+  }
+
+  /**
+   * Approximates {@link Math#atan2} for {@code y >= 0}, which is all that is needed for unsigned
+   * angles. Uses an odd minimax polynomial on [0, 1] and the usual octant reductions.
+   */
+  static float fastAtan2(float y, float x) {
+    float absX = Math.abs(x);
+    if (absX == 0f && y == 0f) {
+      return 0f;
+    }
+    boolean swap = y > absX;
+    float z = swap ? absX / y : y / absX;
+    float z2 = z * z;
+    float result =
+        z
+            * (0.9998660f
+                + z2 * (-0.3302995f + z2 * (0.1801410f + z2 * (-0.0851330f + z2 * 0.0208351f))));
+    if (swap) {
+      result = HALF_PI - result;
+    }
+    if (x < 0f) {
+      result = PI - result;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector;
+
+import android.graphics.PointF;
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.pose.Pose;
+import com.google.mlkit.vision.pose.PoseLandmark;
+import java.util.List;
+
+/**
+ * Flat, reusable storage of the landmarks of a {@link Pose}, indexed by {@link
+ * PoseLandmark.Type}.
+ *
+ * <p>Per-frame pose logic reads coordinates out of these primitive arrays instead of walking
+ * {@link PoseLandmark} objects, so an instance can be filled once per result and then shared by
+ * every consumer without further allocation.
+ */
+public final class LandmarkArrays {
+
+  /** Number of landmarks produced by the pose detector. */
+  public static final int NUM_LANDMARKS = 33;
+
+  private static final String[] NAMES = new String[NUM_LANDMARKS];
+
+  static {
+    NAMES[PoseLandmark.Type.NOSE] = "NOSE";
+    NAMES[PoseLandmark.Type.LEFT_EYE_INNER] = "LEFT_EYE_INNER";
+    NAMES[PoseLandmark.Type.LEFT_EYE] = "LEFT_EYE";
+    NAMES[PoseLandmark.Type.LEFT_EYE_OUTER] = "LEFT_EYE_OUTER";
+    NAMES[PoseLandmark.Type.RIGHT_EYE_INNER] = "RIGHT_EYE_INNER";
+    NAMES[PoseLandmark.Type.RIGHT_EYE] = "RIGHT_EYE";
+    NAMES[PoseLandmark.Type.RIGHT_EYE_OUTER] = "RIGHT_EYE_OUTER";
+    NAMES[PoseLandmark.Type.LEFT_EAR] = "LEFT_EAR";
+    NAMES[PoseLandmark.Type.RIGHT_EAR] = "RIGHT_EAR";
+    NAMES[PoseLandmark.Type.LEFT_MOUTH] = "LEFT_MOUTH";
+    NAMES[PoseLandmark.Type.RIGHT_MOUTH] = "RIGHT_MOUTH";
+    NAMES[PoseLandmark.Type.LEFT_SHOULDER] = "LEFT_SHOULDER";
+    NAMES[PoseLandmark.Type.RIGHT_SHOULDER] = "RIGHT_SHOULDER";
+    NAMES[PoseLandmark.Type.LEFT_ELBOW] = "LEFT_ELBOW";
+    NAMES[PoseLandmark.Type.RIGHT_ELBOW] = "RIGHT_ELBOW";
+    NAMES[PoseLandmark.Type.LEFT_WRIST] = "LEFT_WRIST";
+    NAMES[PoseLandmark.Type.RIGHT_WRIST] = "RIGHT_WRIST";
+    NAMES[PoseLandmark.Type.LEFT_PINKY] = "LEFT_PINKY";
+    NAMES[PoseLandmark.Type.RIGHT_PINKY] = "RIGHT_PINKY";
+    NAMES[PoseLandmark.Type.LEFT_INDEX] = "LEFT_INDEX";
+    NAMES[PoseLandmark.Type.RIGHT_INDEX] = "RIGHT_INDEX";
+    NAMES[PoseLandmark.Type.LEFT_THUMB] = "LEFT_THUMB";
+    NAMES[PoseLandmark.Type.RIGHT_THUMB] = "RIGHT_THUMB";
+    NAMES[PoseLandmark.Type.LEFT_HIP] = "LEFT_HIP";
+    NAMES[PoseLandmark.Type.RIGHT_HIP] = "RIGHT_HIP";
+    NAMES[PoseLandmark.Type.LEFT_KNEE] = "LEFT_KNEE";
+    NAMES[PoseLandmark.Type.RIGHT_KNEE] = "RIGHT_KNEE";
+    NAMES[PoseLandmark.Type.LEFT_ANKLE] = "LEFT_ANKLE";
+    NAMES[PoseLandmark.Type.RIGHT_ANKLE] = "RIGHT_ANKLE";
+    NAMES[PoseLandmark.Type.LEFT_HEEL] = "LEFT_HEEL";
+    NAMES[PoseLandmark.Type.RIGHT_HEEL] = "RIGHT_HEEL";
+    NAMES[PoseLandmark.Type.LEFT_FOOT_INDEX] = "LEFT_FOOT_INDEX";
+    NAMES[PoseLandmark.Type.RIGHT_FOOT_INDEX] = "RIGHT_FOOT_INDEX";
+  }
+
+  public final float[] x = new float[NUM_LANDMARKS];
+  public final float[] y = new float[NUM_LANDMARKS];
+  public final float[] inFrameLikelihood = new float[NUM_LANDMARKS];
+
+  private boolean isEmpty = true;
+  private int version;
+
+  /** Copies the landmarks of the given pose, or marks this instance empty if there are none. */
+  public void set(@Nullable Pose pose) {
+    version++;
+    isEmpty = true;
+    if (pose == null) {
+      return;
+    }
+    List<PoseLandmark> landmarks = pose.getAllPoseLandmarks();
+    int size = landmarks.size();
+    for (int i = 0; i < size; i++) {
+      PoseLandmark landmark = landmarks.get(i);
+      int type = landmark.getLandmarkType();
+      if (type < 0 || type >= NUM_LANDMARKS) {
+        continue;
+      }
+      PointF position = landmark.getPosition();
+      x[type] = position.x;
+      y[type] = position.y;
+      inFrameLikelihood[type] = landmark.getInFrameLikelihood();
+    }
+    isEmpty = size < NUM_LANDMARKS;
+  }
+
+  /** Copies the content of another instance. */
+  public void set(LandmarkArrays other) {
+    System.arraycopy(other.x, 0, x, 0, NUM_LANDMARKS);
+    System.arraycopy(other.y, 0, y, 0, NUM_LANDMARKS);
+    System.arraycopy(other.inFrameLikelihood, 0, inFrameLikelihood, 0, NUM_LANDMARKS);
+    isEmpty = other.isEmpty;
+    version++;
+  }
+
+  /** Multiplies the coordinates by {@code factor}, e.g. to map them to a different image size. */
+  public void scale(float factor) {
+    scale(factor, factor);
+  }
+
+  /** Multiplies the x coordinates by {@code factorX} and the y coordinates by {@code factorY}. */
+  public void scale(float factorX, float factorY) {
+    for (int i = 0; i < NUM_LANDMARKS; i++) {
+      x[i] *= factorX;
+      y[i] *= factorY;
+    }
+    version++;
+  }
+
+  /** Marks this instance as holding a complete pose, after its arrays were filled directly. */
+  public void setPopulated() {
+    isEmpty = false;
+    version++;
+  }
+
+  /** Marks this instance as holding no pose. */
+  public void clear() {
+    isEmpty = true;
+    version++;
+  }
+
+  /** Returns a stamp that changes whenever the content of this instance changes. */
+  public int getVersion() {
+    return version;
+  }
+
+  /** Returns whether all landmarks are populated. */
+  public boolean isEmpty() {
+    return isEmpty;
+  }
+
+  /** Returns the name of a landmark type, as used in exercise definitions. */
+  public static String nameOf(int type) {
+    return NAMES[type];
+  }
+
+  /**
+   * Returns the {@link PoseLandmark.Type} for a landmark name such as {@code "RIGHT_KNEE"}, or -1
+   * if the name is unknown.
+   */
+  public static int typeOf(String name) {
+    for (int i = 0; i < NUM_LANDMARKS; i++) {
+      if (NAMES[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector;
+
+import android.util.Log;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the landmarks to display at a given vsync time from the two most recent timestamped
+ * detector results, so the skeleton moves at display rate while the detector runs slower.
+ *
+ * <p>The display time is shifted back by a render delay, normally one result interval, so it falls
+ * between the two results and the landmarks are linearly interpolated. When no newer result has
+ * arrived in time the motion is extrapolated for at most {@link #MAX_EXTRAPOLATION_NANOS} and then
+ * held. The delay makes the skeleton trail the newest result; that added lag is measured for every
+ * drawn frame and logged once per second.
+ *
+ * <p>Instances are not thread safe and must only be used from the drawing thread.
+ */
+final class LandmarkInterpolator {
+
+  private static final String TAG = "LandmarkInterpolator";
+
+  static final long MAX_EXTRAPOLATION_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final long STATS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final LandmarkArrays output = new LandmarkArrays();
+
+  private long statsIntervalStartNanos;
+  private long totalLagNanos;
+  private long maxLagNanos = Long.MIN_VALUE;
+  private int numFrames;
+  private int numExtrapolatedFrames;
+
+  /**
+   * Returns the landmarks to draw for a frame displayed at {@code frameTimeNanos}. The result is
+   * owned by this interpolator and only valid until the next call.
+   *
+   * @param previous the landmarks of the older result
+   * @param previousTimeNanos when the older result was produced
+   * @param current the landmarks of the newest result
+   * @param currentTimeNanos when the newest result was produced
+   * @param delayNanos how far behind the display time the landmarks are sampled
+   * @param frameTimeNanos when the frame being drawn will be displayed
+   */
+  LandmarkArrays interpolate(
+      LandmarkArrays previous,
+      long previousTimeNanos,
+      LandmarkArrays current,
+      long currentTimeNanos,
+      long delayNanos,
+      long frameTimeNanos) {
+    long intervalNanos = currentTimeNanos - previousTimeNanos;
+    if (previous.isEmpty() || current.isEmpty() || intervalNanos <= 0) {
+      return current;
+    }
+    long sampleTimeNanos = frameTimeNanos - delayNanos;
+    // Never sample before the older result, nor extrapolate too far past the newest one.
+    sampleTimeNanos = Math.max(sampleTimeNanos, previousTimeNanos);
+    sampleTimeNanos = Math.min(sampleTimeNanos, currentTimeNanos + MAX_EXTRAPOLATION_NANOS);
+    float t = (float) (sampleTimeNanos - previousTimeNanos) / intervalNanos;
+
+    output.set(current);
+    for (int i = 0; i < LandmarkArrays.NUM_LANDMARKS; i++) {
+      output.x[i] = previous.x[i] + (current.x[i] - previous.x[i]) * t;
+      output.y[i] = previous.y[i] + (current.y[i] - previous.y[i]) * t;
+    }
+
+    recordLag(currentTimeNanos - sampleTimeNanos, frameTimeNanos);
+    return output;
+  }
+
+  private void recordLag(long lagNanos, long frameTimeNanos) {
+    if (numFrames == 0) {
+      statsIntervalStartNanos = frameTimeNanos;
+    }
+    // A negative lag means the frame was extrapolated ahead of the newest result.
+    if (lagNanos < 0) {
+      numExtrapolatedFrames++;
+    }
+    totalLagNanos += lagNanos;
+    maxLagNanos = Math.max(maxLagNanos, lagNanos);
+    numFrames++;
+
+    // Only log interpolation stats once per second.
+    if (frameTimeNanos - statsIntervalStartNanos >= STATS_INTERVAL_NANOS) {
+      Log.d(
+          TAG,
+          "Interpolated frames: " + numFrames + ", extrapolated frames: " + numExtrapolatedFrames);
+      Log.d(TAG, "Avg added lag: " + getMillis(totalLagNanos / numFrames) + " ms");
+      Log.d(TAG, "Max added lag: " + getMillis(maxLagNanos) + " ms");
+      totalLagNanos = 0;
+      maxLagNanos = Long.MIN_VALUE;
+      numFrames = 0;
+      numExtrapolatedFrames = 0;
+    }
+  }
+
+  private static float getMillis(long nanos) {
+    return nanos / 1e6f;
+  }
+}
@@ -18,35 +18,96 @@ package com.google.mlkit.vision.demo.java.posedetector;
 
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.util.Log;
 import com.google.android.gms.tasks.Task;
 import com.google.mlkit.vision.common.InputImage;
 import com.google.mlkit.vision.demo.GraphicOverlay;
+import com.google.mlkit.vision.demo.OverlayText;
 import com.google.mlkit.vision.demo.java.VisionProcessorBase;
-import com.google.mlkit.vision.demo.java.posedetector.PoseGraphic;
+import com.google.mlkit.vision.demo.java.posedetector.exercise.ExerciseEvaluator;
+import com.google.mlkit.vision.demo.java.posedetector.exercise.ExerciseProgram;
+import com.google.mlkit.vision.demo.java.posedetector.history.ExerciseEventStore;
+import com.google.mlkit.vision.demo.java.posedetector.history.LandmarkSeriesWriter;
 import com.google.mlkit.vision.pose.Pose;
 import com.google.mlkit.vision.pose.PoseDetection;
 import com.google.mlkit.vision.pose.PoseDetector;
 import com.google.mlkit.vision.pose.PoseDetectorOptions;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /** A processor to run pose detector. */
 public class PoseDetectorProcessor extends VisionProcessorBase<Pose> {
 
   private static final String TAG = "PoseDetectorProcessor";
 
+  // Results further apart than this are not interpolated, e.g. after the person left the frame.
+  private static final long MAX_INTERPOLATION_GAP_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+  // Weight of the newest interval in the smoothed result interval.
+  private static final float RESULT_INTERVAL_SMOOTHING = 0.2f;
+
   private final PoseDetector detector;
 
   private final boolean showInFrameLikelihood;
+  private final boolean interpolatePose;
+
+  // Only touched on the thread results are delivered on. Graphics get their own copies.
+  private final LandmarkArrays landmarks = new LandmarkArrays();
+  private final ExerciseEvaluator exerciseEvaluator;
+  // The graphic of the last handled pose, shown again for reused results.
+  @Nullable private PoseGraphic lastGraphic;
+  private long resultIntervalNanos;
+  @Nullable private LandmarkSeriesWriter landmarkSeriesWriter;
+  // The session exercise events are recorded for, if any.
+  @Nullable private ExerciseEventStore eventStore;
+  private long sessionId;
+  private int lastExerciseState = ExerciseEvaluator.STATE_IDLE;
+  private long repStartNanos;
+  private int recordedRepCount;
+  private int warnedRule = -1;
+  // Only touched on the overlay's drawing thread.
+  private final PoseSkeletonRenderer skeletonRenderer = new PoseSkeletonRenderer();
+  private final LandmarkInterpolator interpolator = new LandmarkInterpolator();
+  private final OverlayText poseText = PoseGraphic.createValueText();
 
   public PoseDetectorProcessor(
-      Context context, PoseDetectorOptions options, boolean showInFrameLikelihood) {
+      Context context,
+      PoseDetectorOptions options,
+      boolean showInFrameLikelihood,
+      boolean interpolatePose,
+      ExerciseProgram exerciseProgram) {
     super(context);
     this.showInFrameLikelihood = showInFrameLikelihood;
+    this.interpolatePose = interpolatePose;
+    this.exerciseEvaluator = new ExerciseEvaluator(exerciseProgram);
     detector = PoseDetection.getClient(options);
   }
 
+  /**
+   * Sets the writer every detected pose is appended to, or {@code null} to stop recording poses.
+   * The caller keeps ownership of the writer and closes it on the main thread.
+   */
+  public void setLandmarkSeriesWriter(@Nullable LandmarkSeriesWriter writer) {
+    landmarkSeriesWriter = writer;
+  }
+
+  /**
+   * Starts a session in {@code store} that repetitions and form warnings are recorded in until this
+   * processor is stopped, or ends the current session if {@code store} is {@code null}. Must be
+   * called on the main thread.
+   */
+  public void setExerciseEventStore(@Nullable ExerciseEventStore store) {
+    endSession();
+    eventStore = store;
+    if (store != null) {
+      sessionId = store.startSession(exerciseEvaluator.getProgram().getName());
+      recordedRepCount = exerciseEvaluator.getRepCount();
+    }
+  }
+
   @Override
   public void stop() {
+    endSession();
     super.stop();
     detector.close();
   }
@@ -57,8 +118,118 @@ public class PoseDetectorProcessor extends VisionProcessorBase<Pose> {
   }
 
   @Override
-  protected void onSuccess(@NonNull Pose pose, @NonNull GraphicOverlay graphicOverlay) {
-    graphicOverlay.add(new PoseGraphic(graphicOverlay, pose, showInFrameLikelihood));
+  protected void onSuccess(
+      @NonNull Pose pose,
+      @NonNull GraphicOverlay graphicOverlay,
+      @NonNull List<GraphicOverlay.Graphic> scene) {
+    onSuccess(pose, graphicOverlay, scene, 1f, 1f, /* isReused= */ false);
+  }
+
+  @Override
+  protected void onSuccess(
+      @NonNull Pose pose,
+      @NonNull GraphicOverlay graphicOverlay,
+      @NonNull List<GraphicOverlay.Graphic> scene,
+      float imageScaleX,
+      float imageScaleY,
+      boolean isReused) {
+    if (isReused && lastGraphic != null) {
+      // The graphic of the pose is shown again as it is, so it is not recorded or evaluated twice.
+      scene.add(lastGraphic);
+      return;
+    }
+    landmarks.set(pose);
+    if (imageScaleX != 1f || imageScaleY != 1f) {
+      // Back to the coordinates of the image the overlay shows.
+      landmarks.scale(1 / imageScaleX, 1 / imageScaleY);
+    }
+    if (isReused) {
+      scene.add(newPoseGraphic(graphicOverlay, System.nanoTime()));
+      return;
+    }
+    showLandmarks(graphicOverlay, scene);
+  }
+
+  /** Handles the pose in {@link #landmarks} and adds its graphic to the scene. */
+  private void showLandmarks(GraphicOverlay graphicOverlay, List<GraphicOverlay.Graphic> scene) {
+    long nowNanos = System.nanoTime();
+    if (landmarkSeriesWriter != null) {
+      landmarkSeriesWriter.append(nowNanos, landmarks);
+    }
+    exerciseEvaluator.evaluate(landmarks);
+    if (eventStore != null) {
+      recordExerciseEvents(eventStore, nowNanos);
+    }
+    PoseGraphic graphic = newPoseGraphic(graphicOverlay, nowNanos);
+    PoseGraphic previous = lastGraphic;
+    lastGraphic = graphic;
+    if (interpolatePose && previous != null) {
+      setUpInterpolation(graphic, previous, nowNanos);
+    }
+    scene.add(graphic);
+  }
+
+  private PoseGraphic newPoseGraphic(GraphicOverlay graphicOverlay, long nowNanos) {
+    return new PoseGraphic(
+        graphicOverlay,
+        landmarks,
+        nowNanos,
+        showInFrameLikelihood,
+        exerciseEvaluator,
+        skeletonRenderer,
+        poseText);
+  }
+
+  /** Records the repetitions completed and the form rules newly failed by the last pose. */
+  private void recordExerciseEvents(ExerciseEventStore store, long nowNanos) {
+    int state = exerciseEvaluator.getState();
+    if (state == ExerciseEvaluator.STATE_ACTIVE && lastExerciseState != state) {
+      repStartNanos = nowNanos;
+    }
+    lastExerciseState = state;
+
+    int repCount = exerciseEvaluator.getRepCount();
+    if (repCount > recordedRepCount) {
+      store.recordRep(
+          sessionId,
+          repCount,
+          TimeUnit.NANOSECONDS.toMillis(nowNanos - repStartNanos),
+          exerciseEvaluator.getLastRepDepth());
+      recordedRepCount = repCount;
+    }
+
+    // Only record a warning when the rule starts failing, not for every pose it fails on.
+    int failedRule = exerciseEvaluator.getFailedRule();
+    if (failedRule >= 0 && failedRule != warnedRule) {
+      store.recordFormWarning(sessionId, exerciseEvaluator.getFeedbackText());
+    }
+    warnedRule = failedRule;
+  }
+
+  private void endSession() {
+    if (eventStore != null) {
+      eventStore.endSession(sessionId, exerciseEvaluator.getRepCount());
+      eventStore = null;
+    }
+  }
+
+  /**
+   * Makes the graphic animate from the previous result, sampling one smoothed result interval
+   * behind the display time so the skeleton is interpolated rather than extrapolated.
+   */
+  private void setUpInterpolation(PoseGraphic graphic, PoseGraphic previous, long nowNanos) {
+    long intervalNanos = nowNanos - previous.getTimeNanos();
+    if (intervalNanos > MAX_INTERPOLATION_GAP_NANOS) {
+      resultIntervalNanos = 0;
+      return;
+    }
+    resultIntervalNanos =
+        resultIntervalNanos == 0
+            ? intervalNanos
+            : (long)
+                (resultIntervalNanos
+                    + (intervalNanos - resultIntervalNanos) * RESULT_INTERVAL_SMOOTHING);
+    graphic.setInterpolation(previous, resultIntervalNanos, interpolator);
   }
 
   @Override
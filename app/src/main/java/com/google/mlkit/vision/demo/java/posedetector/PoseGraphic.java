@@ -16,232 +16,214 @@
 
 package com.google.mlkit.vision.demo.java.posedetector;
 
-import static java.lang.Math.atan2;
-
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.PointF;
+import android.graphics.RectF;
 import android.text.TextUtils;
-
 import androidx.annotation.Nullable;
 import com.google.mlkit.vision.demo.GraphicOverlay;
 import com.google.mlkit.vision.demo.GraphicOverlay.Graphic;
 import com.google.mlkit.vision.demo.InferenceInfoGraphic;
-import com.google.mlkit.vision.pose.Pose;
-import com.google.mlkit.vision.pose.PoseLandmark;
-import java.util.List;
-import java.util.Locale;
+import com.google.mlkit.vision.demo.OverlayText;
+import com.google.mlkit.vision.demo.java.posedetector.exercise.ExerciseEvaluator;
 
-/** Draw the detected pose in preview. */
+/**
+ * Draw the detected pose in preview. A graphic copies everything it draws when it is created, so it
+ * can be drawn on another thread while the next result is being processed.
+ *
+ * <p>If {@link #setInterpolation} is called before the graphic is published, every frame draws the
+ * skeleton interpolated between the previous result and this one for the overlay's frame time.
+ */
 public class PoseGraphic extends Graphic {
 
-  private static final float DOT_RADIUS = 8.0f;
   private static final float IN_FRAME_LIKELIHOOD_TEXT_SIZE = 30.0f;
+  private static final float TIP_TEXT_SIZE = 40f;
+  // In-frame likelihoods are shown with two decimals.
+  private static final float LIKELIHOOD_RESOLUTION = 0.005f;
 
-  private final Pose pose;
-  private final boolean showInFrameLikelihood;
-  private final Paint leftPaint;
-  private final Paint rightPaint;
-  private final Paint whitePaint;
-  private final Paint tipPaint;
+  // Shared by all graphics and never modified after creation.
+  private static final Paint LIKELIHOOD_PAINT = createTextPaint(IN_FRAME_LIKELIHOOD_TEXT_SIZE);
+  private static final Paint TIP_PAINT = createTextPaint(TIP_TEXT_SIZE);
 
-  PoseGraphic(GraphicOverlay overlay, Pose pose, boolean showInFrameLikelihood) {
+  private static final OverlayText.Label COUNT_LABEL = new OverlayText.Label("count: ");
+
+  private final LandmarkArrays landmarks = new LandmarkArrays();
+  private final long timeNanos;
+  private final boolean showInFrameLikelihood;
+  private final String feedbackText;
+  private final String phaseText;
+  private final int repCount;
+  private final PoseSkeletonRenderer skeletonRenderer;
+  private final OverlayText valueText;
+
+  // Only set before the graphic is published.
+  @Nullable private LandmarkArrays previousLandmarks;
+  private long previousTimeNanos;
+  private long interpolationDelayNanos;
+  @Nullable private LandmarkInterpolator interpolator;
+
+  PoseGraphic(
+      GraphicOverlay overlay,
+      LandmarkArrays landmarks,
+      long timeNanos,
+      boolean showInFrameLikelihood,
+      ExerciseEvaluator exerciseEvaluator,
+      PoseSkeletonRenderer skeletonRenderer,
+      OverlayText valueText) {
     super(overlay);
 
-    this.pose = pose;
+    this.landmarks.set(landmarks);
+    this.timeNanos = timeNanos;
     this.showInFrameLikelihood = showInFrameLikelihood;
+    this.feedbackText = exerciseEvaluator.getFeedbackText();
+    this.phaseText = exerciseEvaluator.getPhaseText();
+    this.repCount = exerciseEvaluator.getRepCount();
+    this.skeletonRenderer = skeletonRenderer;
+    this.valueText = valueText;
+  }
+
+  /** Returns a buffer that holds every value this graphic draws at once. */
+  static OverlayText createValueText() {
+    return new OverlayText(16);
+  }
 
-    whitePaint = new Paint();
-    whitePaint.setColor(Color.WHITE);
-    whitePaint.setTextSize(IN_FRAME_LIKELIHOOD_TEXT_SIZE);
-    leftPaint = new Paint();
-    leftPaint.setColor(Color.GREEN);
-    rightPaint = new Paint();
-    rightPaint.setColor(Color.YELLOW);
-    tipPaint = new Paint();
-    tipPaint.setColor(Color.WHITE);
-    tipPaint.setTextSize(40f);
+  /**
+   * Makes this graphic animate from the landmarks of {@code previous} to its own. Must be called
+   * before the graphic is published to the overlay.
+   *
+   * @param previous the graphic of the previous result
+   * @param delayNanos how far behind the display time the landmarks are sampled, usually the
+   *     interval between results
+   * @param interpolator shared by the graphics drawn on the same thread
+   */
+  void setInterpolation(PoseGraphic previous, long delayNanos, LandmarkInterpolator interpolator) {
+    // Keep only the previous landmarks, not the whole chain of graphics.
+    this.previousLandmarks = previous.landmarks;
+    this.previousTimeNanos = previous.timeNanos;
+    this.interpolationDelayNanos = delayNanos;
+    this.interpolator = interpolator;
+  }
+
+  long getTimeNanos() {
+    return timeNanos;
   }
 
   @Override
-  public void draw(Canvas canvas) {
-    List<PoseLandmark> landmarks = pose.getAllPoseLandmarks();
+  public boolean getViewBounds(RectF bounds) {
     if (landmarks.isEmpty()) {
-      return;
+      bounds.setEmpty();
+      return true;
     }
-    // Draw all the points
-    for (PoseLandmark landmark : landmarks) {
-      drawPoint(canvas, landmark.getPosition(), whitePaint);
-      if (showInFrameLikelihood) {
-        canvas.drawText(
-            String.format(Locale.US, "%.2f", landmark.getInFrameLikelihood()),
-            translateX(landmark.getPosition().x),
-            translateY(landmark.getPosition().y),
-            whitePaint);
-      }
+    bounds.set(Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+    addLandmarkBounds(landmarks, bounds);
+    if (previousLandmarks != null) {
+      addLandmarkBounds(previousLandmarks, bounds);
     }
-    PoseLandmark leftShoulder = pose.getPoseLandmark(PoseLandmark.Type.LEFT_SHOULDER);
-    PoseLandmark rightShoulder = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_SHOULDER);
-    PoseLandmark leftElbow = pose.getPoseLandmark(PoseLandmark.Type.LEFT_ELBOW);
-    PoseLandmark rightElbow = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_ELBOW);
-    PoseLandmark leftWrist = pose.getPoseLandmark(PoseLandmark.Type.LEFT_WRIST);
-    PoseLandmark rightWrist = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_WRIST);
-    PoseLandmark leftHip = pose.getPoseLandmark(PoseLandmark.Type.LEFT_HIP);
-    PoseLandmark rightHip = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_HIP);
-    PoseLandmark leftKnee = pose.getPoseLandmark(PoseLandmark.Type.LEFT_KNEE);
-    PoseLandmark rightKnee = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_KNEE);
-    PoseLandmark leftAnkle = pose.getPoseLandmark(PoseLandmark.Type.LEFT_ANKLE);
-    PoseLandmark rightAnkle = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_ANKLE);
-
-    PoseLandmark leftPinky = pose.getPoseLandmark(PoseLandmark.Type.LEFT_PINKY);
-    PoseLandmark rightPinky = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_PINKY);
-    PoseLandmark leftIndex = pose.getPoseLandmark(PoseLandmark.Type.LEFT_INDEX);
-    PoseLandmark rightIndex = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_INDEX);
-    PoseLandmark leftThumb = pose.getPoseLandmark(PoseLandmark.Type.LEFT_THUMB);
-    PoseLandmark rightThumb = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_THUMB);
-    PoseLandmark leftHeel = pose.getPoseLandmark(PoseLandmark.Type.LEFT_HEEL);
-    PoseLandmark rightHeel = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_HEEL);
-    PoseLandmark leftFootIndex = pose.getPoseLandmark(PoseLandmark.Type.LEFT_FOOT_INDEX);
-    PoseLandmark rightFootIndex = pose.getPoseLandmark(PoseLandmark.Type.RIGHT_FOOT_INDEX);
-    // Calculate whether the hand exceeds the shoulder
-    float yRightHand = rightWrist.getPosition().y - rightShoulder.getPosition().y;
-    float yLeftHand = leftWrist.getPosition().y - leftShoulder.getPosition().y;
-
-// Calculate whether the distance between the shoulder and the foot is the same width
-    float shoulderDistance = leftShoulder.getPosition().x - rightShoulder.getPosition().x;
-    float footDistance = leftAnkle.getPosition().x - rightAnkle.getPosition().x;
-    float ratio = footDistance / shoulderDistance;
-
-// Angle of point 24-26-28
-    double angle24_26_28 = getAngle(rightHip, rightKnee, rightAnkle);
-
-    if (((180 - Math.abs(angle24_26_28)) > 5) && !isCount) {
-      reInitParams();
-      lineOneText = "Please stand up straight";
-    } else if (yLeftHand > 0 || yRightHand > 0) {
-      reInitParams();
-      lineOneText = "Please hold your hands behind your head";
-    } else if (ratio < 0.5 && !isCount) {
-      reInitParams();
-      lineOneText = "Please spread your feet shoulder-width apart";
-    } else {
-      float currentHeight = (rightShoulder.getPosition().y + leftShoulder.getPosition().y) / 2;
-
-      if (!isCount) {
-        shoulderHeight = currentHeight;
-        minSize = (rightAnkle.getPosition().y - rightHip.getPosition().y) / 5;
-        isCount = true;
-        lastHeight = currentHeight;
-        lineOneText = "Gesture ready";
-      }
-      if (!isDown && (currentHeight - lastHeight) > minSize) {
-        isDown = true;
-        isUp = false;
-        downCount++;
-        lastHeight = currentHeight;
-        lineTwoText = "start down";
-      } else if ((currentHeight - lastHeight) > minSize) {
-        lineTwoText = "downing";
-        lastHeight = currentHeight;
-      }
-      if (!isUp && (upCount < downCount) && (lastHeight - currentHeight) > minSize) {
-        isUp = true;
-        isDown = false;
-        upCount++;
-        lastHeight = currentHeight;
-        lineTwoText = "start up";
-      } else if ((lastHeight - currentHeight) > minSize) {
-        lineTwoText = "uping";
-        lastHeight = currentHeight;
-      }
+    if (!mapRectToView(bounds)) {
+      return false;
+    }
+    bounds.inset(-PoseSkeletonRenderer.DOT_RADIUS, -PoseSkeletonRenderer.DOT_RADIUS);
+    if (showInFrameLikelihood) {
+      // Likelihoods are drawn above and to the right of each landmark.
+      bounds.top -= IN_FRAME_LIKELIHOOD_TEXT_SIZE;
+      bounds.right += IN_FRAME_LIKELIHOOD_TEXT_SIZE * 3;
     }
+    bounds.union(
+        0,
+        getTextY(1) - TIP_TEXT_SIZE,
+        getOverlayWidth(),
+        getTextY(3) + TIP_TEXT_SIZE * 0.5f);
+    return true;
+  }
 
-    drawText(canvas, lineOneText, 1);
-    drawText(canvas, lineTwoText, 2);
-    drawText(canvas, "count: " + upCount, 3);
-
-    drawLine(canvas, leftShoulder.getPosition(), rightShoulder.getPosition(), whitePaint);
-    drawLine(canvas, leftHip.getPosition(), rightHip.getPosition(), whitePaint);
-
-    // Left body
-    drawLine(canvas, leftShoulder.getPosition(), leftElbow.getPosition(), leftPaint);
-    drawLine(canvas, leftElbow.getPosition(), leftWrist.getPosition(), leftPaint);
-    drawLine(canvas, leftShoulder.getPosition(), leftHip.getPosition(), leftPaint);
-    drawLine(canvas, leftHip.getPosition(), leftKnee.getPosition(), leftPaint);
-    drawLine(canvas, leftKnee.getPosition(), leftAnkle.getPosition(), leftPaint);
-    drawLine(canvas, leftWrist.getPosition(), leftThumb.getPosition(), leftPaint);
-    drawLine(canvas, leftWrist.getPosition(), leftPinky.getPosition(), leftPaint);
-    drawLine(canvas, leftWrist.getPosition(), leftIndex.getPosition(), leftPaint);
-    drawLine(canvas, leftAnkle.getPosition(), leftHeel.getPosition(), leftPaint);
-    drawLine(canvas, leftHeel.getPosition(), leftFootIndex.getPosition(), leftPaint);
-
-    // Right body
-    drawLine(canvas, rightShoulder.getPosition(), rightElbow.getPosition(), rightPaint);
-    drawLine(canvas, rightElbow.getPosition(), rightWrist.getPosition(), rightPaint);
-    drawLine(canvas, rightShoulder.getPosition(), rightHip.getPosition(), rightPaint);
-    drawLine(canvas, rightHip.getPosition(), rightKnee.getPosition(), rightPaint);
-    drawLine(canvas, rightKnee.getPosition(), rightAnkle.getPosition(), rightPaint);
-    drawLine(canvas, rightWrist.getPosition(), rightThumb.getPosition(), rightPaint);
-    drawLine(canvas, rightWrist.getPosition(), rightPinky.getPosition(), rightPaint);
-    drawLine(canvas, rightWrist.getPosition(), rightIndex.getPosition(), rightPaint);
-    drawLine(canvas, rightAnkle.getPosition(), rightHeel.getPosition(), rightPaint);
-    drawLine(canvas, rightHeel.getPosition(), rightFootIndex.getPosition(), rightPaint);
+  private static void addLandmarkBounds(LandmarkArrays landmarks, RectF bounds) {
+    for (int i = 0; i < LandmarkArrays.NUM_LANDMARKS; i++) {
+      bounds.left = Math.min(bounds.left, landmarks.x[i]);
+      bounds.top = Math.min(bounds.top, landmarks.y[i]);
+      bounds.right = Math.max(bounds.right, landmarks.x[i]);
+      bounds.bottom = Math.max(bounds.bottom, landmarks.y[i]);
+    }
   }
 
-  void drawPoint(Canvas canvas, @Nullable PointF point, Paint paint) {
-    if (point == null) {
-      return;
+  @Override
+  public boolean differsFrom(Graphic previous, float motionThresholdPx) {
+    PoseGraphic other = (PoseGraphic) previous;
+    if (landmarks.isEmpty() != other.landmarks.isEmpty()
+        || repCount != other.repCount
+        || !TextUtils.equals(feedbackText, other.feedbackText)
+        || !TextUtils.equals(phaseText, other.phaseText)) {
+      return true;
+    }
+    if (landmarks.isEmpty()) {
+      return false;
+    }
+    float maxMotion = 0;
+    for (int i = 0; i < LandmarkArrays.NUM_LANDMARKS; i++) {
+      maxMotion = Math.max(maxMotion, Math.abs(landmarks.x[i] - other.landmarks.x[i]));
+      maxMotion = Math.max(maxMotion, Math.abs(landmarks.y[i] - other.landmarks.y[i]));
+      if (showInFrameLikelihood
+          && Math.abs(landmarks.inFrameLikelihood[i] - other.landmarks.inFrameLikelihood[i])
+              >= LIKELIHOOD_RESOLUTION) {
+        return true;
+      }
     }
-    canvas.drawCircle(translateX(point.x), translateY(point.y), DOT_RADIUS, paint);
+    return scaleToView(maxMotion) > motionThresholdPx;
   }
 
-  void drawLine(Canvas canvas, @Nullable PointF start, @Nullable PointF end, Paint paint) {
-    if (start == null || end == null) {
+  @Override
+  public void draw(Canvas canvas) {
+    if (landmarks.isEmpty()) {
       return;
     }
-    canvas.drawLine(
-        translateX(start.x), translateY(start.y), translateX(end.x), translateY(end.y), paint);
+    LandmarkArrays drawnLandmarks = landmarks;
+    if (previousLandmarks != null && interpolator != null) {
+      drawnLandmarks =
+          interpolator.interpolate(
+              previousLandmarks,
+              previousTimeNanos,
+              landmarks,
+              timeNanos,
+              interpolationDelayNanos,
+              getFrameTimeNanos());
+    }
+    skeletonRenderer.transform(this, drawnLandmarks);
+    skeletonRenderer.draw(canvas);
+
+    if (showInFrameLikelihood) {
+      for (int i = 0; i < LandmarkArrays.NUM_LANDMARKS; i++) {
+        valueText.clear().append(landmarks.inFrameLikelihood[i], 2);
+        valueText.draw(
+            canvas, skeletonRenderer.getViewX(i), skeletonRenderer.getViewY(i), LIKELIHOOD_PAINT);
+      }
+    }
+
+    drawText(canvas, feedbackText, 1);
+    drawText(canvas, phaseText, 2);
+    float countX = COUNT_LABEL.draw(canvas, getTextX(), getTextY(3), TIP_PAINT);
+    valueText.clear().append(repCount);
+    valueText.draw(canvas, countX, getTextY(3), TIP_PAINT);
   }
 
   public void drawText(Canvas canvas, String text, int line) {
     if (TextUtils.isEmpty(text)) {
       return;
     }
-    canvas.drawText(text, InferenceInfoGraphic.TEXT_SIZE * 0.5f,
-            InferenceInfoGraphic.TEXT_SIZE * 3 + InferenceInfoGraphic.TEXT_SIZE * line, tipPaint);
+    canvas.drawText(text, getTextX(), getTextY(line), TIP_PAINT);
   }
 
-  private static boolean isUp = false;
-  private static boolean isDown = false;
-  private static int upCount = 0;
-  private static int downCount = 0;
-  private static boolean isCount = false;
-  private static String lineOneText = "";
-  private static String lineTwoText = "";
-  private static float shoulderHeight = 0f;
-  private static float minSize = 0f;
-  private static float lastHeight = 0f;
-  public void reInitParams() {
-    lineOneText = "";
-    lineTwoText = "";
-    shoulderHeight = 0f;
-    minSize = 0f;
-    isCount = false;
-    isUp = false;
-    isDown = false;
-    upCount = 0;
-    downCount = 0;
+  private static float getTextX() {
+    return InferenceInfoGraphic.TEXT_SIZE * 0.5f;
   }
-  private double getAngle(PoseLandmark firstPoint, PoseLandmark midPoint, PoseLandmark lastPoint) {
-    double result = Math.toDegrees(atan2(1.0 * lastPoint.getPosition().y - midPoint.getPosition().y,
-            1.0 * lastPoint.getPosition().x - midPoint.getPosition().x)
-            - atan2(firstPoint.getPosition().y - midPoint.getPosition().y,
-            firstPoint.getPosition().x - midPoint.getPosition().x));
-    result = Math.abs(result);
-    if (result > 180) {
-      result = 360.0 - result;
-    }
-    return result;
+
+  private static float getTextY(int line) {
+    return InferenceInfoGraphic.TEXT_SIZE * 3 + InferenceInfoGraphic.TEXT_SIZE * line;
+  }
+
+  private static Paint createTextPaint(float textSize) {
+    Paint paint = new Paint();
+    paint.setColor(Color.WHITE);
+    paint.setTextSize(textSize);
+    return paint;
   }
 }
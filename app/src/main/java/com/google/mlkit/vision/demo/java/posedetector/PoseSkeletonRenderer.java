@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.demo.GraphicOverlay.Graphic;
+import com.google.mlkit.vision.pose.PoseLandmark.Type;
+
+/**
+ * Draws a pose skeleton with one {@link Canvas#drawPoints} call for the landmarks and one {@link
+ * Canvas#drawLines} call per colour group.
+ *
+ * <p>Landmarks are transformed to view coordinates with one {@link Graphic#mapPoints} call per
+ * frame into a preallocated array and the line vertex arrays are gathered from it, so a renderer
+ * can be reused across frames without generating garbage. Redraws of the same landmarks under an
+ * unchanged overlay transformation skip both steps. Instances are not thread safe and must only be
+ * used from the drawing thread.
+ */
+final class PoseSkeletonRenderer {
+
+  static final float DOT_RADIUS = 8.0f;
+
+  // Pairs of landmark types, one pair per line.
+  private static final int[] WHITE_SEGMENTS = {
+    Type.LEFT_SHOULDER, Type.RIGHT_SHOULDER,
+    Type.LEFT_HIP, Type.RIGHT_HIP,
+  };
+  private static final int[] LEFT_SEGMENTS = {
+    Type.LEFT_SHOULDER, Type.LEFT_ELBOW,
+    Type.LEFT_ELBOW, Type.LEFT_WRIST,
+    Type.LEFT_SHOULDER, Type.LEFT_HIP,
+    Type.LEFT_HIP, Type.LEFT_KNEE,
+    Type.LEFT_KNEE, Type.LEFT_ANKLE,
+    Type.LEFT_WRIST, Type.LEFT_THUMB,
+    Type.LEFT_WRIST, Type.LEFT_PINKY,
+    Type.LEFT_WRIST, Type.LEFT_INDEX,
+    Type.LEFT_ANKLE, Type.LEFT_HEEL,
+    Type.LEFT_HEEL, Type.LEFT_FOOT_INDEX,
+  };
+  private static final int[] RIGHT_SEGMENTS = {
+    Type.RIGHT_SHOULDER, Type.RIGHT_ELBOW,
+    Type.RIGHT_ELBOW, Type.RIGHT_WRIST,
+    Type.RIGHT_SHOULDER, Type.RIGHT_HIP,
+    Type.RIGHT_HIP, Type.RIGHT_KNEE,
+    Type.RIGHT_KNEE, Type.RIGHT_ANKLE,
+    Type.RIGHT_WRIST, Type.RIGHT_THUMB,
+    Type.RIGHT_WRIST, Type.RIGHT_PINKY,
+    Type.RIGHT_WRIST, Type.RIGHT_INDEX,
+    Type.RIGHT_ANKLE, Type.RIGHT_HEEL,
+    Type.RIGHT_HEEL, Type.RIGHT_FOOT_INDEX,
+  };
+
+  // Shared by all renderers and never modified after creation.
+  private static final Paint POINT_PAINT = createPointPaint();
+  private static final Paint WHITE_PAINT = createLinePaint(Color.WHITE);
+  private static final Paint LEFT_PAINT = createLinePaint(Color.GREEN);
+  private static final Paint RIGHT_PAINT = createLinePaint(Color.YELLOW);
+
+  private final float[] imagePoints = new float[LandmarkArrays.NUM_LANDMARKS * 2];
+  private final float[] viewPoints = new float[LandmarkArrays.NUM_LANDMARKS * 2];
+  private final float[] whiteLines = new float[WHITE_SEGMENTS.length * 2];
+  private final float[] leftLines = new float[LEFT_SEGMENTS.length * 2];
+  private final float[] rightLines = new float[RIGHT_SEGMENTS.length * 2];
+
+  // What the arrays above were last computed from.
+  @Nullable private LandmarkArrays lastLandmarks;
+  private int lastLandmarksVersion;
+  private int lastTransformationVersion;
+
+  /**
+   * Transforms the landmarks into view coordinates with the given graphic's overlay transform.
+   * Must be called before {@link #draw}.
+   */
+  void transform(Graphic graphic, LandmarkArrays landmarks) {
+    int transformationVersion = graphic.getTransformationVersion();
+    if (landmarks == lastLandmarks
+        && landmarks.getVersion() == lastLandmarksVersion
+        && transformationVersion == lastTransformationVersion) {
+      return;
+    }
+    lastLandmarks = landmarks;
+    lastLandmarksVersion = landmarks.getVersion();
+    lastTransformationVersion = transformationVersion;
+
+    for (int i = 0; i < LandmarkArrays.NUM_LANDMARKS; i++) {
+      imagePoints[2 * i] = landmarks.x[i];
+      imagePoints[2 * i + 1] = landmarks.y[i];
+    }
+    graphic.mapPoints(imagePoints, viewPoints);
+    gatherLines(WHITE_SEGMENTS, whiteLines);
+    gatherLines(LEFT_SEGMENTS, leftLines);
+    gatherLines(RIGHT_SEGMENTS, rightLines);
+  }
+
+  /** Returns the view x coordinate of a landmark from the last {@link #transform}. */
+  float getViewX(int landmarkType) {
+    return viewPoints[2 * landmarkType];
+  }
+
+  /** Returns the view y coordinate of a landmark from the last {@link #transform}. */
+  float getViewY(int landmarkType) {
+    return viewPoints[2 * landmarkType + 1];
+  }
+
+  /** Draws the skeleton of the last transformed landmarks. */
+  void draw(Canvas canvas) {
+    canvas.drawPoints(viewPoints, POINT_PAINT);
+    canvas.drawLines(whiteLines, WHITE_PAINT);
+    canvas.drawLines(leftLines, LEFT_PAINT);
+    canvas.drawLines(rightLines, RIGHT_PAINT);
+  }
+
+  private void gatherLines(int[] segments, float[] lines) {
+    for (int i = 0; i < segments.length; i++) {
+      int type = segments[i];
+      lines[2 * i] = viewPoints[2 * type];
+      lines[2 * i + 1] = viewPoints[2 * type + 1];
+    }
+  }
+
+  private static Paint createPointPaint() {
+    Paint paint = new Paint();
+    paint.setColor(Color.WHITE);
+    // Round caps make drawPoints render the same dots as drawCircle with DOT_RADIUS.
+    paint.setStrokeCap(Paint.Cap.ROUND);
+    paint.setStrokeWidth(DOT_RADIUS * 2);
+    paint.setAntiAlias(true);
+    return paint;
+  }
+
+  private static Paint createLinePaint(int color) {
+    Paint paint = new Paint();
+    paint.setColor(color);
+    return paint;
+  }
+}
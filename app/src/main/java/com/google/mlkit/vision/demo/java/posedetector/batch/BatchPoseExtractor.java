@@ -0,0 +1,379 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector.batch;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.gms.tasks.Task;
+import com.google.common.base.Preconditions;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.demo.BitmapUtils;
+import com.google.mlkit.vision.demo.java.posedetector.LandmarkArrays;
+import com.google.mlkit.vision.demo.java.posedetector.history.LandmarkSeriesWriter;
+import com.google.mlkit.vision.pose.Pose;
+import com.google.mlkit.vision.pose.PoseDetection;
+import com.google.mlkit.vision.pose.PoseDetector;
+import com.google.mlkit.vision.pose.PoseDetectorOptions;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracts the poses of a batch of still images without showing them, e.g. to analyse a library
+ * of photos.
+ *
+ * <p>Images are decoded on a small pool of background threads and detected by one {@link
+ * PoseDetector} in {@link PoseDetectorOptions#SINGLE_IMAGE_MODE}. At most {@code maxInFlight}
+ * images are being decoded or detected at any time, so no more than that many bitmaps are held in
+ * memory however long the batch is, and the next image is started as soon as any of them is done.
+ * Once an image was detected, its bitmap is kept for a later image to be decoded into.
+ *
+ * <p>Poses are appended to a {@link LandmarkSeriesWriter} in batch order, with the position of each
+ * image in the batch as its series timestamp in milliseconds; images without a pose leave a gap.
+ * Poses that are done before those of earlier images wait for them, which only holds their
+ * landmarks. Landmarks are in the pixels of the full size image, upright, not of the subsampled
+ * bitmap they were detected in.
+ */
+public final class BatchPoseExtractor {
+
+  private static final String TAG = "BatchPoseExtractor";
+
+  private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+  /** Receives the progress of a batch, on the main thread. */
+  public interface Listener {
+    /** Called at most every 500 ms while images are processed. */
+    void onProgress(Progress progress);
+
+    /** Called once all images were processed, or the batch was cancelled. */
+    void onFinished(Progress progress);
+  }
+
+  /** How far a batch got. */
+  public static final class Progress {
+    public final int imageCount;
+    /** Images that were decoded and detected, whether or not a pose was found. */
+    public final int processedCount;
+    public final int poseCount;
+    /** Images that could not be decoded or detected. */
+    public final int failedCount;
+    /** Images that were submitted but not decoded because the batch was cancelled. */
+    public final int cancelledCount;
+    public final long elapsedNanos;
+
+    Progress(
+        int imageCount,
+        int processedCount,
+        int poseCount,
+        int failedCount,
+        int cancelledCount,
+        long elapsedNanos) {
+      this.imageCount = imageCount;
+      this.processedCount = processedCount;
+      this.poseCount = poseCount;
+      this.failedCount = failedCount;
+      this.cancelledCount = cancelledCount;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the images processed or failed per second so far. Cancelled images take no work, so
+     * they are not counted.
+     */
+    public double getImagesPerSecond() {
+      return elapsedNanos > 0 ? (processedCount + failedCount) * 1e9 / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "%d/%d images, %d poses, %d failed, %d cancelled, %.1f images/s",
+          processedCount + failedCount,
+          imageCount,
+          poseCount,
+          failedCount,
+          cancelledCount,
+          getImagesPerSecond());
+    }
+  }
+
+  /** The outcome of one image. */
+  private static final class Result {
+    static final Result CANCELLED =
+        new Result(null, /* isFailed= */ false, /* isCancelled= */ true);
+
+    // Null if no pose was found.
+    @Nullable final LandmarkArrays landmarks;
+    final boolean isFailed;
+    // The image was skipped, so it neither failed nor was processed.
+    final boolean isCancelled;
+
+    Result(@Nullable LandmarkArrays landmarks, boolean isFailed) {
+      this(landmarks, isFailed, /* isCancelled= */ false);
+    }
+
+    private Result(@Nullable LandmarkArrays landmarks, boolean isFailed, boolean isCancelled) {
+      this.landmarks = landmarks;
+      this.isFailed = isFailed;
+      this.isCancelled = isCancelled;
+    }
+  }
+
+  private final ContentResolver contentResolver;
+  private final PoseDetector detector;
+  private final int maxInFlight;
+  @Nullable private final LandmarkSeriesWriter writer;
+  private final ExecutorService decodeExecutor;
+  // Collects the results and writes them in order.
+  private final ExecutorService resultExecutor;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // Bitmaps of detected images, taken by the decode threads and given back by the result thread.
+  private final Queue<Bitmap> freeBitmaps = new ConcurrentLinkedQueue<>();
+  private volatile boolean isCancelled;
+
+  // Only accessed on the main thread.
+  private boolean isStarted;
+
+  // Only accessed on the result thread.
+  private List<Uri> images = new ArrayList<>();
+  @Nullable private Listener listener;
+  // Results that arrived before those of earlier images, by position in the batch. They hold no
+  // bitmaps, so a slow image only keeps the landmarks of those after it waiting.
+  private final Map<Integer, Result> pendingResults = new HashMap<>();
+  private int submittedCount;
+  private int writtenCount;
+  private int processedCount;
+  private int poseCount;
+  private int failedCount;
+  private int cancelledCount;
+  private long startNanos;
+  private long lastProgressNanos;
+
+  /**
+   * Creates an extractor that keeps at most {@code maxInFlight} images in memory.
+   *
+   * @param performanceMode one of the {@code PoseDetectorOptions.PERFORMANCE_MODE_*} constants
+   * @param writer the series the poses are appended to, or null to only count them. The caller
+   *     closes it after {@link Listener#onFinished}.
+   */
+  public BatchPoseExtractor(
+      ContentResolver contentResolver,
+      int performanceMode,
+      int maxInFlight,
+      @Nullable LandmarkSeriesWriter writer) {
+    Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+    this.contentResolver = contentResolver;
+    this.maxInFlight = maxInFlight;
+    this.writer = writer;
+    detector =
+        PoseDetection.getClient(
+            new PoseDetectorOptions.Builder()
+                .setDetectorMode(PoseDetectorOptions.SINGLE_IMAGE_MODE)
+                .setPerformanceMode(performanceMode)
+                .build());
+    // Decoding is the part that runs on our threads; the detector has its own.
+    int decodeThreads =
+        Math.max(1, Math.min(maxInFlight, Runtime.getRuntime().availableProcessors() - 1));
+    decodeExecutor = Executors.newFixedThreadPool(decodeThreads, threadFactory("BatchPoseDecode"));
+    resultExecutor = Executors.newSingleThreadExecutor(threadFactory("BatchPoseResults"));
+  }
+
+  /** Starts extracting the poses of {@code images}. Must be called once, on the main thread. */
+  public void start(List<Uri> images, Listener listener) {
+    Preconditions.checkState(!isStarted, "Already started");
+    isStarted = true;
+    List<Uri> batch = new ArrayList<>(images);
+    resultExecutor.execute(
+        () -> {
+          this.images = batch;
+          this.listener = listener;
+          startNanos = System.nanoTime();
+          lastProgressNanos = startNanos;
+          while (submittedCount < Math.min(maxInFlight, batch.size())) {
+            submitNext();
+          }
+          finishIfDone();
+        });
+  }
+
+  /**
+   * Stops taking new images. Images in flight are still written and those not decoded yet are
+   * counted as cancelled, then {@link Listener#onFinished} is called.
+   */
+  public void cancel() {
+    isCancelled = true;
+  }
+
+  private void submitNext() {
+    int index = submittedCount++;
+    Uri uri = images.get(index);
+    decodeExecutor.execute(() -> decodeAndDetect(index, uri));
+  }
+
+  /** Runs on a decode thread. */
+  private void decodeAndDetect(int index, Uri uri) {
+    if (isCancelled) {
+      resultExecutor.execute(() -> onResult(index, Result.CANCELLED));
+      return;
+    }
+    Bitmap reusableBitmap = freeBitmaps.poll();
+    BitmapUtils.DecodedImage image = null;
+    try {
+      image =
+          BitmapUtils.decodeStillImage(
+              contentResolver, uri, BitmapUtils.STILL_IMAGE_TARGET_SIZE, reusableBitmap);
+    } catch (IOException | RuntimeException e) {
+      Log.w(TAG, "Failed to decode " + uri, e);
+    }
+    if (reusableBitmap != null && (image == null || image.bitmap != reusableBitmap)) {
+      // Too small for this image, or only decoded into before rotating.
+      reusableBitmap.recycle();
+    }
+    if (image == null) {
+      resultExecutor.execute(() -> onResult(index, new Result(null, /* isFailed= */ true)));
+      return;
+    }
+    Bitmap decoded = image.bitmap;
+    float scaleX = image.originalWidth / (float) decoded.getWidth();
+    float scaleY = image.originalHeight / (float) decoded.getHeight();
+    Task<Pose> task = detector.process(InputImage.fromBitmap(decoded, 0));
+    task.addOnCompleteListener(
+        resultExecutor,
+        completed -> {
+          releaseBitmap(decoded);
+          if (!completed.isSuccessful()) {
+            Log.w(TAG, "Pose detection failed on " + uri, completed.getException());
+            onResult(index, new Result(null, /* isFailed= */ true));
+            return;
+          }
+          LandmarkArrays landmarks = new LandmarkArrays();
+          landmarks.set(completed.getResult());
+          landmarks.scale(scaleX, scaleY);
+          onResult(
+              index, new Result(landmarks.isEmpty() ? null : landmarks, /* isFailed= */ false));
+        });
+  }
+
+  /** Keeps the bitmap of a detected image for a later one, or recycles it. */
+  private void releaseBitmap(Bitmap bitmap) {
+    // Every bitmap in the pool was taken off an image in flight, so it never holds more than
+    // maxInFlight of them.
+    if (!isCancelled && bitmap.isMutable() && freeBitmaps.size() < maxInFlight) {
+      freeBitmaps.offer(bitmap);
+    } else {
+      bitmap.recycle();
+    }
+  }
+
+  /** Runs on the result thread. */
+  private void onResult(int index, Result result) {
+    // The image's bitmap is released, so the next image can take its place right away.
+    if (!isCancelled && submittedCount < images.size()) {
+      submitNext();
+    }
+    pendingResults.put(index, result);
+    // Write in batch order, as series timestamps must increase.
+    Result next;
+    while ((next = pendingResults.remove(writtenCount)) != null) {
+      write(writtenCount, next);
+      writtenCount++;
+    }
+    long nowNanos = System.nanoTime();
+    if (nowNanos - lastProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+      lastProgressNanos = nowNanos;
+      Progress progress = getProgress(nowNanos);
+      Listener listener = this.listener;
+      mainHandler.post(() -> listener.onProgress(progress));
+    }
+    finishIfDone();
+  }
+
+  private void write(int index, Result result) {
+    if (result.isCancelled) {
+      cancelledCount++;
+      return;
+    }
+    if (result.isFailed) {
+      failedCount++;
+      return;
+    }
+    processedCount++;
+    if (result.landmarks == null) {
+      return;
+    }
+    poseCount++;
+    if (writer != null) {
+      try {
+        writer.appendAt(index, result.landmarks);
+      } catch (InterruptedException e) {
+        Log.d(TAG, "Interrupted while storing poses, cancelling the batch.");
+        isCancelled = true;
+      }
+    }
+  }
+
+  private void finishIfDone() {
+    if (writtenCount < submittedCount || (!isCancelled && submittedCount < images.size())) {
+      return;
+    }
+    decodeExecutor.shutdown();
+    resultExecutor.shutdown();
+    detector.close();
+    // All images were decoded, so no decode thread takes a bitmap anymore.
+    Bitmap bitmap;
+    while ((bitmap = freeBitmaps.poll()) != null) {
+      bitmap.recycle();
+    }
+    Progress progress = getProgress(System.nanoTime());
+    Log.d(TAG, "Batch finished: " + progress);
+    Listener listener = this.listener;
+    mainHandler.post(() -> listener.onFinished(progress));
+  }
+
+  private Progress getProgress(long nowNanos) {
+    return new Progress(
+        images.size(),
+        processedCount,
+        poseCount,
+        failedCount,
+        cancelledCount,
+        nowNanos - startNanos);
+  }
+
+  private static ThreadFactory threadFactory(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    };
+  }
+}
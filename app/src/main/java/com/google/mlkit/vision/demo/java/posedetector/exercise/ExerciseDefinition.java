@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector.exercise;
+
+import androidx.annotation.Keep;
+import java.util.List;
+
+/**
+ * Declarative description of an exercise as read from the {@code exercises.json} asset. Only used
+ * as input to {@link ExerciseProgram#compile(ExerciseDefinition)}; nothing in here is touched per
+ * frame.
+ */
+@Keep
+public class ExerciseDefinition {
+
+  /** Root of the asset file. */
+  @Keep
+  public static class Library {
+    public List<ExerciseDefinition> exercises;
+  }
+
+  /**
+   * A named value computed from landmarks. {@code type} is one of {@code joint} (a standard {@link
+   * com.google.mlkit.vision.demo.java.posedetector.JointAngles} angle named by {@code joint}),
+   * {@code angle} (3 landmarks), {@code distance_ratio} and {@code dx_ratio} (4 landmarks), {@code
+   * dx} and {@code dy} (2 landmarks), or {@code min} and {@code max} over previously declared
+   * {@code metrics}.
+   */
+  @Keep
+  public static class Metric {
+    public String name;
+    public String type;
+    public String joint;
+    public List<String> landmarks;
+    public List<String> metrics;
+  }
+
+  /**
+   * A condition the pose must satisfy, e.g. {@code rightKnee >= 175}. When it does not hold the
+   * message is shown and counting stops. Rules marked {@code idleOnly} are only checked before
+   * counting has started.
+   */
+  @Keep
+  public static class Rule {
+    public String metric;
+    public String op;
+    public float value;
+    public boolean idleOnly;
+    public String message;
+  }
+
+  /**
+   * Phase thresholds of a repetition. Exactly one of {@code activeBelow} / {@code activeAbove} is
+   * set, together with the matching {@code restAbove} / {@code restBelow}; the gap between the two
+   * thresholds provides hysteresis.
+   */
+  @Keep
+  public static class Phase {
+    public String metric;
+    public Float activeBelow;
+    public Float activeAbove;
+    public Float restAbove;
+    public Float restBelow;
+    public String activeLabel;
+    public String restLabel;
+  }
+
+  public String name;
+  public List<Metric> metrics;
+  public List<Rule> rules;
+  public Phase phase;
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector.exercise;
+
+import com.google.mlkit.vision.demo.java.posedetector.JointAngles;
+import com.google.mlkit.vision.demo.java.posedetector.LandmarkArrays;
+
+/**
+ * Runs an {@link ExerciseProgram} over consecutive poses: checks its rules and counts repetitions
+ * with the program's phase thresholds. Not thread safe; all calls are expected on the thread
+ * delivering detection results.
+ */
+public final class ExerciseEvaluator {
+
+  /** Not counting, either because a rule failed or no pose has been seen yet. */
+  public static final int STATE_IDLE = 0;
+  /** Counting, in the rest position of the repetition. */
+  public static final int STATE_REST = 1;
+  /** Counting, in the active position of the repetition. */
+  public static final int STATE_ACTIVE = 2;
+
+  private static final String READY_TEXT = "Gesture ready";
+
+  private final ExerciseProgram program;
+  private final float[] jointAngles = new float[JointAngles.NUM_ANGLES];
+  private final float[] metrics;
+
+  private int state = STATE_IDLE;
+  private int repCount;
+  // Most extreme phase metric value of the current and the last completed repetition.
+  private float repDepth;
+  private float lastRepDepth;
+  private int failedRule = -1;
+  private String feedbackText = "";
+  private String phaseText = "";
+
+  public ExerciseEvaluator(ExerciseProgram program) {
+    this.program = program;
+    this.metrics = new float[program.metricCount];
+  }
+
+  /** Evaluates one pose. Does nothing if the landmarks are empty. */
+  public void evaluate(LandmarkArrays landmarks) {
+    if (landmarks.isEmpty()) {
+      return;
+    }
+    ExerciseProgram p = program;
+    if (p.usesJointAngles) {
+      JointAngles.compute(landmarks, jointAngles, /* useFastAtan= */ true);
+    }
+    p.computeMetrics(landmarks, jointAngles, metrics);
+
+    failedRule = -1;
+    for (int i = 0; i < p.ruleCount; i++) {
+      if (p.ruleIdleOnly[i] && state != STATE_IDLE) {
+        continue;
+      }
+      float metric = metrics[p.ruleMetric[i]];
+      // A metric the pose does not allow to evaluate neither passes nor fails the rule.
+      if (Float.isNaN(metric)) {
+        continue;
+      }
+      if (!ExerciseProgram.compare(p.ruleComparator[i], metric, p.ruleValue[i])) {
+        failedRule = i;
+        state = STATE_IDLE;
+        feedbackText = p.ruleMessage[i];
+        phaseText = "";
+        return;
+      }
+    }
+
+    if (state == STATE_IDLE) {
+      state = STATE_REST;
+      feedbackText = READY_TEXT;
+    }
+
+    float value = metrics[p.phaseMetric];
+    if (Float.isNaN(value)) {
+      // The phase is unknown on this pose, so it stays as it was.
+      return;
+    }
+    boolean isActive =
+        p.phaseActiveBelow ? value < p.phaseActiveThreshold : value > p.phaseActiveThreshold;
+    boolean isRest =
+        p.phaseActiveBelow ? value > p.phaseRestThreshold : value < p.phaseRestThreshold;
+    if (state == STATE_REST && isActive) {
+      state = STATE_ACTIVE;
+      repDepth = value;
+      phaseText = p.phaseActiveLabel;
+    } else if (state == STATE_ACTIVE) {
+      repDepth = p.phaseActiveBelow ? Math.min(repDepth, value) : Math.max(repDepth, value);
+      if (isRest) {
+        state = STATE_REST;
+        repCount++;
+        lastRepDepth = repDepth;
+        phaseText = p.phaseRestLabel;
+      }
+    }
+  }
+
+  /** Clears the repetition count and returns to the idle state. */
+  public void reset() {
+    state = STATE_IDLE;
+    repCount = 0;
+    lastRepDepth = 0;
+    failedRule = -1;
+    feedbackText = "";
+    phaseText = "";
+  }
+
+  public ExerciseProgram getProgram() {
+    return program;
+  }
+
+  public int getState() {
+    return state;
+  }
+
+  public int getRepCount() {
+    return repCount;
+  }
+
+  /**
+   * Returns the most extreme value the phase metric reached during the last completed repetition,
+   * e.g. the smallest knee angle of a squat.
+   */
+  public float getLastRepDepth() {
+    return lastRepDepth;
+  }
+
+  /** Returns the index of the rule that failed on the last evaluated pose, or -1. */
+  public int getFailedRule() {
+    return failedRule;
+  }
+
+  /** Returns the value of a metric computed for the last evaluated pose. */
+  public float getMetric(int index) {
+    return metrics[index];
+  }
+
+  /** Returns the failed rule's message, or a ready message once counting. */
+  public String getFeedbackText() {
+    return feedbackText;
+  }
+
+  /** Returns the label of the last phase transition. */
+  public String getPhaseText() {
+    return phaseText;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector.exercise;
+
+import android.content.Context;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads the exercise definitions from assets and compiles them. Compilation happens once per
+ * process; processors created later (e.g. after switching lens) reuse the compiled programs.
+ */
+public final class ExerciseLibrary {
+
+  public static final String ASSET_FILE = "exercises.json";
+
+  @GuardedBy("ExerciseLibrary.class")
+  @Nullable
+  private static Map<String, ExerciseProgram> programs;
+
+  /** Returns the compiled programs keyed by exercise name, in asset order. */
+  public static synchronized Map<String, ExerciseProgram> getPrograms(Context context) {
+    if (programs == null) {
+      programs = Collections.unmodifiableMap(load(context));
+    }
+    return programs;
+  }
+
+  /**
+   * Returns the program of the named exercise, falling back to the first one in the library if
+   * there is no exercise with that name.
+   */
+  public static ExerciseProgram getProgram(Context context, @Nullable String name) {
+    Map<String, ExerciseProgram> all = getPrograms(context);
+    ExerciseProgram program = all.get(name);
+    if (program == null) {
+      program = all.values().iterator().next();
+    }
+    return program;
+  }
+
+  private static Map<String, ExerciseProgram> load(Context context) {
+    ExerciseDefinition.Library library;
+    try (Reader reader =
+        new InputStreamReader(
+            context.getAssets().open(ASSET_FILE), Charset.forName("UTF-8"))) {
+      library = new Gson().fromJson(reader, ExerciseDefinition.Library.class);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read " + ASSET_FILE, e);
+    }
+    if (library == null || library.exercises == null || library.exercises.isEmpty()) {
+      throw new IllegalStateException("No exercises defined in " + ASSET_FILE);
+    }
+
+    Map<String, ExerciseProgram> result = new LinkedHashMap<>();
+    for (ExerciseDefinition definition : library.exercises) {
+      ExerciseProgram program = ExerciseProgram.compile(definition);
+      result.put(program.getName(), program);
+    }
+    return result;
+  }
+
+  private ExerciseLibrary() {}
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector.exercise;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.mlkit.vision.demo.java.posedetector.JointAngles;
+import com.google.mlkit.vision.demo.java.posedetector.LandmarkArrays;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link ExerciseDefinition} compiled into flat arrays. Metrics are encoded as fixed-size
+ * instructions over landmark indices and rules reference metrics by index, so evaluating a frame
+ * is a couple of loops over primitive arrays without any lookups or allocation.
+ */
+public final class ExerciseProgram {
+
+  static final int OP_ANGLE = 0;
+  static final int OP_DISTANCE_RATIO = 1;
+  static final int OP_DX_RATIO = 2;
+  static final int OP_DX = 3;
+  static final int OP_DY = 4;
+  static final int OP_MIN = 5;
+  static final int OP_MAX = 6;
+  static final int OP_JOINT = 7;
+
+  static final int CMP_LT = 0;
+  static final int CMP_LE = 1;
+  static final int CMP_GT = 2;
+  static final int CMP_GE = 3;
+
+  /**
+   * The value of a metric that cannot be evaluated on a pose, e.g. a ratio over two landmarks that
+   * coincide. Rules on it are skipped, and it is neither in the active nor the rest phase.
+   */
+  static final float NOT_EVALUABLE = Float.NaN;
+
+  // Each metric instruction is an opcode followed by up to four operands, which are landmark types,
+  // indices of earlier metrics for OP_MIN / OP_MAX, or a JointAngles index for OP_JOINT.
+  private static final int METRIC_STRIDE = 5;
+
+  private static final String DEFAULT_ACTIVE_LABEL = "start down";
+  private static final String DEFAULT_REST_LABEL = "start up";
+
+  final String name;
+  final int metricCount;
+  final int[] metricCode;
+  final String[] metricNames;
+  // Whether any metric reads the JointAngles kernel, which is then run once per frame.
+  final boolean usesJointAngles;
+
+  final int ruleCount;
+  final int[] ruleMetric;
+  final int[] ruleComparator;
+  final float[] ruleValue;
+  final boolean[] ruleIdleOnly;
+  final String[] ruleMessage;
+
+  final int phaseMetric;
+  final boolean phaseActiveBelow;
+  final float phaseActiveThreshold;
+  final float phaseRestThreshold;
+  final String phaseActiveLabel;
+  final String phaseRestLabel;
+
+  private ExerciseProgram(
+      String name,
+      int[] metricCode,
+      String[] metricNames,
+      boolean usesJointAngles,
+      int[] ruleMetric,
+      int[] ruleComparator,
+      float[] ruleValue,
+      boolean[] ruleIdleOnly,
+      String[] ruleMessage,
+      int phaseMetric,
+      boolean phaseActiveBelow,
+      float phaseActiveThreshold,
+      float phaseRestThreshold,
+      String phaseActiveLabel,
+      String phaseRestLabel) {
+    this.name = name;
+    this.metricCount = metricNames.length;
+    this.metricCode = metricCode;
+    this.metricNames = metricNames;
+    this.usesJointAngles = usesJointAngles;
+    this.ruleCount = ruleMetric.length;
+    this.ruleMetric = ruleMetric;
+    this.ruleComparator = ruleComparator;
+    this.ruleValue = ruleValue;
+    this.ruleIdleOnly = ruleIdleOnly;
+    this.ruleMessage = ruleMessage;
+    this.phaseMetric = phaseMetric;
+    this.phaseActiveBelow = phaseActiveBelow;
+    this.phaseActiveThreshold = phaseActiveThreshold;
+    this.phaseRestThreshold = phaseRestThreshold;
+    this.phaseActiveLabel = phaseActiveLabel;
+    this.phaseRestLabel = phaseRestLabel;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMetricCount() {
+    return metricCount;
+  }
+
+  public String getMetricName(int index) {
+    return metricNames[index];
+  }
+
+  /**
+   * Evaluates all metrics of this program into {@code out}, which must hold metricCount values.
+   * {@code jointAngles} must hold the output of {@link JointAngles#compute} for the same landmarks
+   * if {@link #usesJointAngles} is set. Metrics that cannot be evaluated, and {@code min} / {@code
+   * max} over them, are {@link #NOT_EVALUABLE}.
+   */
+  void computeMetrics(LandmarkArrays landmarks, float[] jointAngles, float[] out) {
+    float[] x = landmarks.x;
+    float[] y = landmarks.y;
+    int[] code = metricCode;
+    for (int i = 0, pc = 0; i < metricCount; i++, pc += METRIC_STRIDE) {
+      int a = code[pc + 1];
+      int b = code[pc + 2];
+      int c = code[pc + 3];
+      int d = code[pc + 4];
+      float value;
+      switch (code[pc]) {
+        case OP_ANGLE:
+          value =
+              JointAngles.angle(x[a], y[a], x[b], y[b], x[c], y[c], /* useFastAtan= */ false);
+          break;
+        case OP_DISTANCE_RATIO:
+          value = ratio(distance(x[a], y[a], x[b], y[b]), distance(x[c], y[c], x[d], y[d]));
+          break;
+        case OP_DX_RATIO:
+          value = ratio(Math.abs(x[a] - x[b]), Math.abs(x[c] - x[d]));
+          break;
+        case OP_DX:
+          value = x[a] - x[b];
+          break;
+        case OP_DY:
+          value = y[a] - y[b];
+          break;
+        case OP_MIN:
+          value = Math.min(out[a], out[b]);
+          break;
+        case OP_MAX:
+          value = Math.max(out[a], out[b]);
+          break;
+        case OP_JOINT:
+          value = jointAngles[a];
+          break;
+        default:
+          throw new IllegalStateException("Unknown metric opcode: " + code[pc]);
+      }
+      out[i] = value;
+    }
+  }
+
+  // Landmarks that coincide say nothing about the ratio, rather than making it infinite.
+  private static float ratio(float numerator, float denominator) {
+    return denominator == 0f ? NOT_EVALUABLE : numerator / denominator;
+  }
+
+  private static float distance(float x0, float y0, float x1, float y1) {
+    float dx = x1 - x0;
+    float dy = y1 - y0;
+    return (float) Math.sqrt(dx * dx + dy * dy);
+  }
+
+  static boolean compare(int comparator, float value, float threshold) {
+    switch (comparator) {
+      case CMP_LT:
+        return value < threshold;
+      case CMP_LE:
+        return value <= threshold;
+      case CMP_GT:
+        return value > threshold;
+      case CMP_GE:
+        return value >= threshold;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Compiles a definition into a program.
+   *
+   * @throws IllegalArgumentException if the definition references unknown metrics or landmarks or
+   *     is otherwise malformed
+   */
+  public static ExerciseProgram compile(ExerciseDefinition definition) {
+    checkArgument(definition.name != null, "Exercise without a name");
+    checkArgument(
+        definition.metrics != null && !definition.metrics.isEmpty(),
+        "Exercise %s has no metrics",
+        definition.name);
+    checkArgument(definition.phase != null, "Exercise %s has no phase", definition.name);
+
+    List<String> metricNames = new ArrayList<>();
+    int[] metricCode = new int[definition.metrics.size() * METRIC_STRIDE];
+    boolean usesJointAngles = false;
+    int pc = 0;
+    for (ExerciseDefinition.Metric metric : definition.metrics) {
+      checkArgument(
+          metric.name != null && !metricNames.contains(metric.name),
+          "Missing or duplicate metric name in %s",
+          definition.name);
+      int op = parseMetricType(metric.type);
+      metricCode[pc] = op;
+      if (op == OP_JOINT) {
+        int joint = JointAngles.indexOf(metric.joint);
+        checkArgument(joint >= 0, "Unknown joint: %s", metric.joint);
+        metricCode[pc + 1] = joint;
+        usesJointAngles = true;
+      } else if (op == OP_MIN || op == OP_MAX) {
+        checkArgument(
+            metric.metrics != null && metric.metrics.size() == 2,
+            "Metric %s needs exactly 2 metrics",
+            metric.name);
+        for (int i = 0; i < 2; i++) {
+          metricCode[pc + 1 + i] = resolveMetric(metricNames, metric.metrics.get(i));
+        }
+      } else {
+        int operands = landmarkOperandCount(op);
+        checkArgument(
+            metric.landmarks != null && metric.landmarks.size() == operands,
+            "Metric %s needs exactly %s landmarks",
+            metric.name,
+            operands);
+        for (int i = 0; i < operands; i++) {
+          int type = LandmarkArrays.typeOf(metric.landmarks.get(i));
+          checkArgument(type >= 0, "Unknown landmark: %s", metric.landmarks.get(i));
+          metricCode[pc + 1 + i] = type;
+        }
+      }
+      metricNames.add(metric.name);
+      pc += METRIC_STRIDE;
+    }
+
+    int ruleCount = definition.rules == null ? 0 : definition.rules.size();
+    int[] ruleMetric = new int[ruleCount];
+    int[] ruleComparator = new int[ruleCount];
+    float[] ruleValue = new float[ruleCount];
+    boolean[] ruleIdleOnly = new boolean[ruleCount];
+    String[] ruleMessage = new String[ruleCount];
+    for (int i = 0; i < ruleCount; i++) {
+      ExerciseDefinition.Rule rule = definition.rules.get(i);
+      ruleMetric[i] = resolveMetric(metricNames, rule.metric);
+      ruleComparator[i] = parseComparator(rule.op);
+      ruleValue[i] = rule.value;
+      ruleIdleOnly[i] = rule.idleOnly;
+      ruleMessage[i] = rule.message == null ? "" : rule.message;
+    }
+
+    ExerciseDefinition.Phase phase = definition.phase;
+    boolean activeBelow = phase.activeBelow != null;
+    checkArgument(
+        activeBelow
+            ? phase.activeAbove == null && phase.restAbove != null && phase.restBelow == null
+            : phase.activeAbove != null && phase.restBelow != null && phase.restAbove == null,
+        "Phase of %s needs activeBelow/restAbove or activeAbove/restBelow",
+        definition.name);
+
+    return new ExerciseProgram(
+        definition.name,
+        metricCode,
+        metricNames.toArray(new String[0]),
+        usesJointAngles,
+        ruleMetric,
+        ruleComparator,
+        ruleValue,
+        ruleIdleOnly,
+        ruleMessage,
+        resolveMetric(metricNames, phase.metric),
+        activeBelow,
+        activeBelow ? phase.activeBelow : phase.activeAbove,
+        activeBelow ? phase.restAbove : phase.restBelow,
+        phase.activeLabel == null ? DEFAULT_ACTIVE_LABEL : phase.activeLabel,
+        phase.restLabel == null ? DEFAULT_REST_LABEL : phase.restLabel);
+  }
+
+  private static int resolveMetric(List<String> metricNames, String name) {
+    int index = metricNames.indexOf(name);
+    checkArgument(index >= 0, "Unknown or not yet declared metric: %s", name);
+    return index;
+  }
+
+  private static int parseMetricType(String type) {
+    if ("joint".equals(type)) {
+      return OP_JOINT;
+    } else if ("angle".equals(type)) {
+      return OP_ANGLE;
+    } else if ("distance_ratio".equals(type)) {
+      return OP_DISTANCE_RATIO;
+    } else if ("dx_ratio".equals(type)) {
+      return OP_DX_RATIO;
+    } else if ("dx".equals(type)) {
+      return OP_DX;
+    } else if ("dy".equals(type)) {
+      return OP_DY;
+    } else if ("min".equals(type)) {
+      return OP_MIN;
+    } else if ("max".equals(type)) {
+      return OP_MAX;
+    }
+    throw new IllegalArgumentException("Unknown metric type: " + type);
+  }
+
+  private static int landmarkOperandCount(int op) {
+    switch (op) {
+      case OP_ANGLE:
+        return 3;
+      case OP_DISTANCE_RATIO:
+      case OP_DX_RATIO:
+        return 4;
+      default:
+        return 2;
+    }
+  }
+
+  private static int parseComparator(String op) {
+    if ("<".equals(op)) {
+      return CMP_LT;
+    } else if ("<=".equals(op)) {
+      return CMP_LE;
+    } else if (">".equals(op)) {
+      return CMP_GT;
+    } else if (">=".equals(op)) {
+      return CMP_GE;
+    }
+    throw new IllegalArgumentException("Unknown comparator: " + op);
+  }
+}
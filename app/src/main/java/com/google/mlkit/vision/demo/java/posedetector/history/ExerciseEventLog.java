@@ -0,0 +1,469 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector.history;
+
+import androidx.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of the append-only exercise event log written by {@link ExerciseEventStore}, and a reader
+ * for it.
+ *
+ * <p>The file starts with a {@link #FILE_HEADER_SIZE} byte header, followed by records. Each
+ * record is the length and CRC-32 of its payload, followed by the payload: the event type, session
+ * id and time, and the fields of that type. A record that is cut short or fails its checksum
+ * marks the end of the log, since only the last batch written before a crash can be incomplete.
+ * All values are big endian.
+ *
+ * <p>The index file next to the log, named by {@link #getIndexFile}, has an entry per batch of
+ * records with its location, time range and the types of events in it. {@link #query} uses it to
+ * map and decode only the batches that can hold matching events.
+ */
+public final class ExerciseEventLog {
+
+  static final int MAGIC = 0x50444556; // "PDEV"
+  static final int VERSION = 1;
+  static final int FILE_HEADER_SIZE = 8;
+  static final int RECORD_HEADER_SIZE = 8;
+  // Far larger than any event, so a corrupt length is not taken for a record.
+  static final int MAX_PAYLOAD_LENGTH = 4096;
+  /** Magic and version. */
+  static final int INDEX_FILE_HEADER_SIZE = 8;
+  /** Offset, length, first and last time, type mask and event count of a batch. */
+  static final int INDEX_FILE_ENTRY_SIZE = 36;
+
+  static final String INDEX_FILE_SUFFIX = ".idx";
+
+  private ExerciseEventLog() {}
+
+  /** Selects events returned by {@link #query}. */
+  public interface EventFilter {
+    boolean accept(Event event);
+  }
+
+  /** Something that happened during an exercise session. */
+  public static final class Event {
+    /** A session started; {@link #text} is the name of the exercise. */
+    public static final int TYPE_SESSION_START = 1;
+    /**
+     * A session ended; {@link #count} is the number of repetitions. {@link #isRecovered} is set if
+     * the app died during the session and the end was added when the log was opened again.
+     */
+    public static final int TYPE_SESSION_END = 2;
+    /**
+     * A repetition was completed; {@link #count} is its number within the session, {@link
+     * #durationMillis} the time spent in its active phase and {@link #depth} the most extreme
+     * value of the exercise's phase metric during it, e.g. the smallest knee angle of a squat.
+     */
+    public static final int TYPE_REP = 3;
+    /** A form rule failed; {@link #text} is the rule's message. */
+    public static final int TYPE_FORM_WARNING = 4;
+
+    public final int type;
+    public final long sessionId;
+    /** Wall clock time of the event, in milliseconds since the epoch. */
+    public final long timeMillis;
+    public final int count;
+    public final long durationMillis;
+    public final float depth;
+    public final String text;
+    public final boolean isRecovered;
+
+    Event(
+        int type,
+        long sessionId,
+        long timeMillis,
+        int count,
+        long durationMillis,
+        float depth,
+        String text,
+        boolean isRecovered) {
+      this.type = type;
+      this.sessionId = sessionId;
+      this.timeMillis = timeMillis;
+      this.count = count;
+      this.durationMillis = durationMillis;
+      this.depth = depth;
+      this.text = text;
+      this.isRecovered = isRecovered;
+    }
+
+    static Event sessionStart(long sessionId, long timeMillis, String exercise) {
+      return new Event(TYPE_SESSION_START, sessionId, timeMillis, 0, 0, 0, exercise, false);
+    }
+
+    static Event sessionEnd(long sessionId, long timeMillis, int repCount, boolean isRecovered) {
+      return new Event(TYPE_SESSION_END, sessionId, timeMillis, repCount, 0, 0, "", isRecovered);
+    }
+
+    static Event rep(
+        long sessionId, long timeMillis, int repNumber, long durationMillis, float depth) {
+      return new Event(
+          TYPE_REP, sessionId, timeMillis, repNumber, durationMillis, depth, "", false);
+    }
+
+    static Event formWarning(long sessionId, long timeMillis, String message) {
+      return new Event(TYPE_FORM_WARNING, sessionId, timeMillis, 0, 0, 0, message, false);
+    }
+  }
+
+  /** Where a batch of records is stored and which events it holds. */
+  static final class BatchInfo {
+    final long offset;
+    final int length;
+    final long firstTimeMillis;
+    final long lastTimeMillis;
+    /** Has bit {@code 1 << type} set for every event type in the batch. */
+    final int typeMask;
+    final int eventCount;
+
+    BatchInfo(
+        long offset,
+        int length,
+        long firstTimeMillis,
+        long lastTimeMillis,
+        int typeMask,
+        int eventCount) {
+      this.offset = offset;
+      this.length = length;
+      this.firstTimeMillis = firstTimeMillis;
+      this.lastTimeMillis = lastTimeMillis;
+      this.typeMask = typeMask;
+      this.eventCount = eventCount;
+    }
+
+    /** Describes the batch of {@code events} stored in {@code length} bytes at {@code offset}. */
+    static BatchInfo of(long offset, int length, List<Event> events) {
+      long firstTimeMillis = Long.MAX_VALUE;
+      long lastTimeMillis = Long.MIN_VALUE;
+      int typeMask = 0;
+      for (int i = 0; i < events.size(); i++) {
+        Event event = events.get(i);
+        // The wall clock can go back, so take the extremes rather than the ends.
+        firstTimeMillis = Math.min(firstTimeMillis, event.timeMillis);
+        lastTimeMillis = Math.max(lastTimeMillis, event.timeMillis);
+        typeMask |= 1 << event.type;
+      }
+      return new BatchInfo(
+          offset, length, firstTimeMillis, lastTimeMillis, typeMask, events.size());
+    }
+
+    boolean mayContain(int typeMask, long fromMillis, long toMillis) {
+      return (this.typeMask & typeMask) != 0
+          && lastTimeMillis >= fromMillis
+          && firstTimeMillis <= toMillis;
+    }
+  }
+
+  /** Returns the index file kept next to a log. */
+  public static File getIndexFile(File log) {
+    return new File(log.getPath() + INDEX_FILE_SUFFIX);
+  }
+
+  /** Returns a type mask for {@link #query} that selects the given event type. */
+  public static int typeMaskOf(int type) {
+    return 1 << type;
+  }
+
+  /**
+   * Returns the events of a log of the types in {@code typeMask} from {@code fromMillis} to {@code
+   * toMillis}, both inclusive, that pass {@code filter}, in the order they were recorded.
+   *
+   * <p>Only batches whose index entry overlaps the query are mapped and decoded, along with any
+   * records written after the last indexed batch. A log without a usable index is read whole.
+   *
+   * @param typeMask bits made with {@link #typeMaskOf}
+   */
+  public static List<Event> query(
+      File file, int typeMask, long fromMillis, long toMillis, @Nullable EventFilter filter)
+      throws IOException {
+    List<Event> found = new ArrayList<>();
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      long length = input.length();
+      List<BatchInfo> batches = readIndexFile(file, length);
+      if (batches == null) {
+        List<Event> events = new ArrayList<>();
+        scan(input, events);
+        addMatches(events, typeMask, fromMillis, toMillis, filter, found);
+        return found;
+      }
+      FileChannel channel = input.getChannel();
+      List<Event> events = new ArrayList<>();
+      long indexedEnd = FILE_HEADER_SIZE;
+      for (BatchInfo batch : batches) {
+        indexedEnd = batch.offset + batch.length;
+        if (!batch.mayContain(typeMask, fromMillis, toMillis)) {
+          continue;
+        }
+        events.clear();
+        readBatch(channel, batch, events);
+        addMatches(events, typeMask, fromMillis, toMillis, filter, found);
+      }
+      if (indexedEnd < length) {
+        // Written after the index was last updated, e.g. before a crash.
+        events.clear();
+        scan(input, indexedEnd, events, /* eventEnds= */ null);
+        addMatches(events, typeMask, fromMillis, toMillis, filter, found);
+      }
+    } finally {
+      input.close();
+    }
+    return found;
+  }
+
+  private static void addMatches(
+      List<Event> events,
+      int typeMask,
+      long fromMillis,
+      long toMillis,
+      @Nullable EventFilter filter,
+      List<Event> found) {
+    for (int i = 0; i < events.size(); i++) {
+      Event event = events.get(i);
+      if ((typeMask & typeMaskOf(event.type)) != 0
+          && event.timeMillis >= fromMillis
+          && event.timeMillis <= toMillis
+          && (filter == null || filter.accept(event))) {
+        found.add(event);
+      }
+    }
+  }
+
+  /** Reads the complete records of a log, ignoring a torn record at its end. */
+  public static List<Event> read(File file) throws IOException {
+    List<Event> events = new ArrayList<>();
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      scan(input, events);
+    } finally {
+      input.close();
+    }
+    return events;
+  }
+
+  /**
+   * Reads the complete records of a log into {@code events} and returns the offset just past the
+   * last one.
+   */
+  static long scan(RandomAccessFile input, List<Event> events) throws IOException {
+    return scan(input, FILE_HEADER_SIZE, events, null);
+  }
+
+  /**
+   * Like {@link #scan(RandomAccessFile, List)}, but starts at {@code offset}, which must be where a
+   * record starts, and also adds the offset just past the record of each event to {@code
+   * eventEnds}. The records are read through a mapping, not a read per value.
+   */
+  static long scan(
+      RandomAccessFile input, long offset, List<Event> events, @Nullable List<Long> eventEnds)
+      throws IOException {
+    FileChannel channel = input.getChannel();
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    if (channel.read(header, 0) < FILE_HEADER_SIZE) {
+      throw new IOException("Not an exercise event log");
+    }
+    header.flip();
+    if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+      throw new IOException("Not an exercise event log");
+    }
+    long length = input.length();
+    if (offset >= length) {
+      return offset;
+    }
+    return decodeRecords(
+        channel.map(FileChannel.MapMode.READ_ONLY, offset, length - offset),
+        offset,
+        events,
+        eventEnds);
+  }
+
+  /**
+   * Maps and decodes the records of an indexed batch into {@code events}, and returns the offset
+   * just past the last complete one.
+   */
+  static long readBatch(FileChannel channel, BatchInfo batch, List<Event> events)
+      throws IOException {
+    return decodeRecords(
+        channel.map(FileChannel.MapMode.READ_ONLY, batch.offset, batch.length),
+        batch.offset,
+        events,
+        /* eventEnds= */ null);
+  }
+
+  /**
+   * Decodes the complete records in {@code buffer}, which holds the log from {@code offset} on,
+   * into {@code events}, and returns the offset just past the last one. Also adds the offset just
+   * past the record of each event to {@code eventEnds}, if given.
+   */
+  static long decodeRecords(
+      ByteBuffer buffer, long offset, List<Event> events, @Nullable List<Long> eventEnds)
+      throws IOException {
+    byte[] payload = new byte[MAX_PAYLOAD_LENGTH];
+    CRC32 crc = new CRC32();
+    long end = offset;
+    while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+      int payloadLength = buffer.getInt();
+      int checksum = buffer.getInt();
+      if (payloadLength <= 0
+          || payloadLength > MAX_PAYLOAD_LENGTH
+          || payloadLength > buffer.remaining()) {
+        break;
+      }
+      buffer.get(payload, 0, payloadLength);
+      crc.reset();
+      crc.update(payload, 0, payloadLength);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      Event event;
+      try {
+        event = decode(payload, payloadLength);
+      } catch (EOFException e) {
+        break;
+      }
+      end = offset + buffer.position();
+      if (event != null) {
+        events.add(event);
+        if (eventEnds != null) {
+          eventEnds.add(end);
+        }
+      }
+    }
+    return end;
+  }
+
+  static void writeIndexFileHeader(DataOutputStream output) throws IOException {
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+  }
+
+  static void writeIndexFileEntry(DataOutputStream output, BatchInfo batch) throws IOException {
+    output.writeLong(batch.offset);
+    output.writeInt(batch.length);
+    output.writeLong(batch.firstTimeMillis);
+    output.writeLong(batch.lastTimeMillis);
+    output.writeInt(batch.typeMask);
+    output.writeInt(batch.eventCount);
+  }
+
+  /**
+   * Reads the batches listed in the index file of a log that are completely stored in its first
+   * {@code logLength} bytes, or returns null if there is no usable index file.
+   */
+  @Nullable
+  static List<BatchInfo> readIndexFile(File log, long logLength) {
+    File indexFile = getIndexFile(log);
+    if (indexFile.length() < INDEX_FILE_HEADER_SIZE) {
+      return null;
+    }
+    long entries = (indexFile.length() - INDEX_FILE_HEADER_SIZE) / INDEX_FILE_ENTRY_SIZE;
+    List<BatchInfo> batches = new ArrayList<>();
+    try {
+      DataInputStream input =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+          return null;
+        }
+        long expectedOffset = FILE_HEADER_SIZE;
+        for (long i = 0; i < entries; i++) {
+          BatchInfo batch =
+              new BatchInfo(
+                  input.readLong(),
+                  input.readInt(),
+                  input.readLong(),
+                  input.readLong(),
+                  input.readInt(),
+                  input.readInt());
+          // Batches are contiguous; stop at anything else, or at a batch past the end of the log.
+          if (batch.offset != expectedOffset
+              || batch.length <= 0
+              || batch.offset + batch.length > logLength) {
+            break;
+          }
+          batches.add(batch);
+          expectedOffset += batch.length;
+        }
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    return batches;
+  }
+
+  /** Writes the payload of a record for {@code event}. */
+  static void encode(Event event, DataOutputStream output) throws IOException {
+    output.writeByte(event.type);
+    output.writeLong(event.sessionId);
+    output.writeLong(event.timeMillis);
+    switch (event.type) {
+      case Event.TYPE_SESSION_START:
+      case Event.TYPE_FORM_WARNING:
+        output.writeUTF(event.text);
+        break;
+      case Event.TYPE_SESSION_END:
+        output.writeInt(event.count);
+        output.writeBoolean(event.isRecovered);
+        break;
+      case Event.TYPE_REP:
+        output.writeInt(event.count);
+        output.writeInt((int) Math.min(event.durationMillis, Integer.MAX_VALUE));
+        output.writeFloat(event.depth);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown event type " + event.type);
+    }
+  }
+
+  /** Decodes a payload, or returns null for event types added by later versions. */
+  @Nullable
+  private static Event decode(byte[] payload, int length) throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+    int type = input.readByte();
+    long sessionId = input.readLong();
+    long timeMillis = input.readLong();
+    switch (type) {
+      case Event.TYPE_SESSION_START:
+        return Event.sessionStart(sessionId, timeMillis, input.readUTF());
+      case Event.TYPE_SESSION_END:
+        return Event.sessionEnd(sessionId, timeMillis, input.readInt(), input.readBoolean());
+      case Event.TYPE_REP:
+        return Event.rep(
+            sessionId, timeMillis, input.readInt(), input.readInt(), input.readFloat());
+      case Event.TYPE_FORM_WARNING:
+        return Event.formWarning(sessionId, timeMillis, input.readUTF());
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector.history;
+
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.demo.java.posedetector.history.ExerciseEventLog.BatchInfo;
+import com.google.mlkit.vision.demo.java.posedetector.history.ExerciseEventLog.Event;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persists exercise sessions, repetitions and form warnings to an {@link ExerciseEventLog}.
+ *
+ * <p>Recording an event only adds it to an in-memory queue. A background thread writes the queue
+ * every {@link #FLUSH_INTERVAL_MILLIS}, or sooner once {@link #FLUSH_BATCH_SIZE} events are
+ * waiting, as one append followed by a single sync, so a busy day costs one disk sync per batch
+ * rather than per repetition and the thread delivering results never touches the disk.
+ *
+ * <p>When the log is opened, a record torn by a crash is cut off, and sessions that were still
+ * running are ended with the time and count of their last repetition. Only the records after the
+ * last indexed batch are scanned for that, plus the indexed batches from the last session start
+ * on, so opening does not slow down as the log grows.
+ *
+ * <p>Every batch also gets an entry in the log's index file once it is synced. The index is not
+ * synced itself: if it does not match the log when opened, it is rebuilt from the records.
+ */
+public final class ExerciseEventStore implements Closeable {
+
+  private static final String TAG = "ExerciseEventStore";
+
+  static final long FLUSH_INTERVAL_MILLIS = 2000;
+  static final int FLUSH_BATCH_SIZE = 64;
+  private static final int MAX_TEXT_LENGTH = 256;
+
+  private final File file;
+  private final Thread flushThread;
+
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private List<Event> pendingEvents = new ArrayList<>();
+
+  @GuardedBy("lock")
+  private boolean isFlushRequested;
+
+  @GuardedBy("lock")
+  private boolean isClosed;
+
+  @GuardedBy("lock")
+  private long lastSessionId;
+
+  private volatile boolean isFailed;
+
+  // Only accessed on the flush thread.
+  @Nullable private RandomAccessFile output;
+  @Nullable private RandomAccessFile indexOutput;
+  private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+  private final DataOutputStream indexEntryOutput = new DataOutputStream(indexBytes);
+  private final ByteArrayOutputStream batchBytes = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+  private final DataOutputStream recordOutput = new DataOutputStream(recordBytes);
+  private final CRC32 crc = new CRC32();
+
+  /** Opens {@code file}, creating it if needed. Recovery and all writes run in the background. */
+  public ExerciseEventStore(File file) {
+    this.file = file;
+    flushThread = new Thread(this::flushLoop, "ExerciseEventStore");
+    flushThread.setPriority(Thread.MIN_PRIORITY);
+    flushThread.start();
+  }
+
+  /** Records the start of a session and returns its id. */
+  public long startSession(String exercise) {
+    long now = System.currentTimeMillis();
+    long sessionId;
+    synchronized (lock) {
+      // Start times make ids that stay unique across restarts.
+      sessionId = Math.max(now, lastSessionId + 1);
+      lastSessionId = sessionId;
+    }
+    add(Event.sessionStart(sessionId, now, truncate(exercise)));
+    return sessionId;
+  }
+
+  /** Records a completed repetition. See {@link Event#TYPE_REP} for the fields. */
+  public void recordRep(long sessionId, int repNumber, long durationMillis, float depth) {
+    add(Event.rep(sessionId, System.currentTimeMillis(), repNumber, durationMillis, depth));
+  }
+
+  /** Records that a form rule failed. */
+  public void recordFormWarning(long sessionId, String message) {
+    add(Event.formWarning(sessionId, System.currentTimeMillis(), truncate(message)));
+  }
+
+  /** Records the end of a session, and has the queue written soon. */
+  public void endSession(long sessionId, int repCount) {
+    add(Event.sessionEnd(sessionId, System.currentTimeMillis(), repCount, false));
+    flush();
+  }
+
+  /** Has the queued events written soon, e.g. before the app may be killed. Does not block. */
+  public void flush() {
+    synchronized (lock) {
+      isFlushRequested = true;
+      lock.notifyAll();
+    }
+  }
+
+  /** Writes all queued events and closes the log. Later events are discarded. */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      if (isClosed) {
+        return;
+      }
+      isClosed = true;
+      lock.notifyAll();
+    }
+    try {
+      flushThread.join();
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Interrupted while waiting for the event store to close.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void add(Event event) {
+    if (isFailed) {
+      return;
+    }
+    synchronized (lock) {
+      if (isClosed) {
+        return;
+      }
+      pendingEvents.add(event);
+      if (pendingEvents.size() >= FLUSH_BATCH_SIZE) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private static String truncate(String text) {
+    return text.length() > MAX_TEXT_LENGTH ? text.substring(0, MAX_TEXT_LENGTH) : text;
+  }
+
+  private void flushLoop() {
+    List<Event> batch = new ArrayList<>();
+    try {
+      open();
+      boolean isLastBatch = false;
+      while (!isLastBatch) {
+        synchronized (lock) {
+          long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MILLIS;
+          long remaining = FLUSH_INTERVAL_MILLIS;
+          while (!isClosed
+              && !isFlushRequested
+              && pendingEvents.size() < FLUSH_BATCH_SIZE
+              && remaining > 0) {
+            lock.wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+          }
+          // Swap the lists, so recording continues into an empty one while this batch is written.
+          List<Event> swapped = pendingEvents;
+          pendingEvents = batch;
+          batch = swapped;
+          isFlushRequested = false;
+          isLastBatch = isClosed;
+        }
+        if (!batch.isEmpty()) {
+          write(batch);
+          batch.clear();
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write " + file + ", discarding further events", e);
+      isFailed = true;
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Event store interrupted.", e);
+    } finally {
+      if (output != null) {
+        try {
+          output.close();
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to close " + file, e);
+        }
+        output = null;
+      }
+      if (indexOutput != null) {
+        try {
+          indexOutput.close();
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to close the index of " + file, e);
+        }
+        indexOutput = null;
+      }
+    }
+  }
+
+  /** Opens the log, repairing what a crash may have left behind. */
+  private void open() throws IOException {
+    output = new RandomAccessFile(file, "rw");
+    indexOutput = new RandomAccessFile(ExerciseEventLog.getIndexFile(file), "rw");
+    if (output.length() < ExerciseEventLog.FILE_HEADER_SIZE) {
+      output.setLength(0);
+      output.writeInt(ExerciseEventLog.MAGIC);
+      output.writeInt(ExerciseEventLog.VERSION);
+      output.getFD().sync();
+      rewriteIndex(new ArrayList<BatchInfo>());
+      return;
+    }
+
+    List<BatchInfo> batches = readValidIndex(output.length());
+    long indexedEnd = ExerciseEventLog.FILE_HEADER_SIZE;
+    // A processor ends its session before it starts the next, and the sessions of an earlier run
+    // were ended when the log was opened after it, so only the latest session can still be
+    // running. Its events are all in the batch holding the last session start and those after.
+    int firstRecentBatch = batches.size();
+    for (int i = 0; i < batches.size(); i++) {
+      BatchInfo batch = batches.get(i);
+      indexedEnd = batch.offset + batch.length;
+      if ((batch.typeMask & ExerciseEventLog.typeMaskOf(Event.TYPE_SESSION_START)) != 0) {
+        firstRecentBatch = i;
+      }
+    }
+    List<Event> events = new ArrayList<>();
+    for (int i = firstRecentBatch; i < batches.size(); i++) {
+      ExerciseEventLog.readBatch(output.getChannel(), batches.get(i), events);
+    }
+
+    // Only the records written after the last indexed batch are scanned.
+    List<Event> tailEvents = new ArrayList<>();
+    List<Long> tailEventEnds = new ArrayList<>();
+    long end = ExerciseEventLog.scan(output, indexedEnd, tailEvents, tailEventEnds);
+    if (end < output.length()) {
+      Log.w(TAG, "Discarding " + (output.length() - end) + " bytes of a torn record");
+      output.setLength(end);
+    }
+    output.seek(end);
+    indexTail(batches, indexedEnd, tailEvents, tailEventEnds, end);
+    events.addAll(tailEvents);
+
+    // Sessions that were still running when the app died, by id, with their last event.
+    Map<Long, Event> openSessions = new LinkedHashMap<>();
+    Map<Long, Integer> repCounts = new LinkedHashMap<>();
+    long maxSessionId = 0;
+    for (Event event : events) {
+      maxSessionId = Math.max(maxSessionId, event.sessionId);
+      if (event.type == Event.TYPE_SESSION_END) {
+        openSessions.remove(event.sessionId);
+        repCounts.remove(event.sessionId);
+        continue;
+      }
+      openSessions.put(event.sessionId, event);
+      if (event.type == Event.TYPE_REP) {
+        repCounts.put(event.sessionId, event.count);
+      }
+    }
+    synchronized (lock) {
+      lastSessionId = Math.max(lastSessionId, maxSessionId);
+    }
+    if (openSessions.isEmpty()) {
+      return;
+    }
+    List<Event> recovered = new ArrayList<>(openSessions.size());
+    for (Event last : openSessions.values()) {
+      Integer repCount = repCounts.get(last.sessionId);
+      recovered.add(
+          Event.sessionEnd(
+              last.sessionId,
+              last.timeMillis,
+              repCount == null ? 0 : repCount,
+              /* isRecovered= */ true));
+    }
+    Log.w(TAG, "Ending " + recovered.size() + " sessions interrupted by a crash");
+    write(recovered);
+  }
+
+  /**
+   * Returns the entries of the index that match the log, or none if the index does not belong to
+   * it. The entries are contiguous and within the log; the last one is also checked against the
+   * records it points to, which catches an index left over from an earlier log.
+   */
+  private List<BatchInfo> readValidIndex(long logLength) throws IOException {
+    List<BatchInfo> batches = ExerciseEventLog.readIndexFile(file, logLength);
+    if (batches == null) {
+      return new ArrayList<>();
+    }
+    if (!batches.isEmpty()) {
+      BatchInfo last = batches.get(batches.size() - 1);
+      List<Event> events = new ArrayList<>();
+      if (ExerciseEventLog.readBatch(output.getChannel(), last, events) != last.offset + last.length
+          || events.size() != last.eventCount) {
+        Log.w(TAG, "The index does not match " + file + ", indexing it again");
+        batches.clear();
+      }
+    }
+    return batches;
+  }
+
+  /**
+   * Adds entries for the records from {@code indexedEnd} to {@code end} to the index, so it covers
+   * the log up to {@code end}.
+   */
+  private void indexTail(
+      List<BatchInfo> batches,
+      long indexedEnd,
+      List<Event> tailEvents,
+      List<Long> tailEventEnds,
+      long end)
+      throws IOException {
+    long expectedIndexLength =
+        ExerciseEventLog.INDEX_FILE_HEADER_SIZE
+            + (long) batches.size() * ExerciseEventLog.INDEX_FILE_ENTRY_SIZE;
+    if (tailEvents.isEmpty() && indexOutput.length() == expectedIndexLength) {
+      indexOutput.seek(expectedIndexLength);
+      return;
+    }
+    if (!tailEvents.isEmpty()) {
+      Log.w(TAG, "Indexing " + tailEvents.size() + " events of " + file);
+    }
+    // Group the records like the batches they were written in.
+    long batchStart = indexedEnd;
+    for (int i = 0; i < tailEvents.size(); i += FLUSH_BATCH_SIZE) {
+      int batchEnd = Math.min(i + FLUSH_BATCH_SIZE, tailEvents.size());
+      // The last batch also takes any records of unknown types after the last event.
+      long batchEndOffset = batchEnd == tailEvents.size() ? end : tailEventEnds.get(batchEnd - 1);
+      int length = (int) (batchEndOffset - batchStart);
+      batches.add(BatchInfo.of(batchStart, length, tailEvents.subList(i, batchEnd)));
+      batchStart = batchEndOffset;
+    }
+    rewriteIndex(batches);
+  }
+
+  private void rewriteIndex(List<BatchInfo> batches) throws IOException {
+    indexBytes.reset();
+    ExerciseEventLog.writeIndexFileHeader(indexEntryOutput);
+    for (BatchInfo batch : batches) {
+      ExerciseEventLog.writeIndexFileEntry(indexEntryOutput, batch);
+    }
+    indexOutput.setLength(0);
+    indexOutput.write(indexBytes.toByteArray());
+  }
+
+  /** Appends a batch of events as one write followed by one sync, then indexes it. */
+  private void write(List<Event> events) throws IOException {
+    long batchOffset = output.getFilePointer();
+    batchBytes.reset();
+    DataOutputStream batchOutput = new DataOutputStream(batchBytes);
+    for (int i = 0; i < events.size(); i++) {
+      recordBytes.reset();
+      ExerciseEventLog.encode(events.get(i), recordOutput);
+      byte[] payload = recordBytes.toByteArray();
+      crc.reset();
+      crc.update(payload, 0, payload.length);
+      batchOutput.writeInt(payload.length);
+      batchOutput.writeInt((int) crc.getValue());
+      batchOutput.write(payload);
+    }
+    output.write(batchBytes.toByteArray());
+    output.getFD().sync();
+
+    indexBytes.reset();
+    ExerciseEventLog.writeIndexFileEntry(
+        indexEntryOutput, BatchInfo.of(batchOffset, batchBytes.size(), events));
+    indexOutput.write(indexBytes.toByteArray());
+  }
+}
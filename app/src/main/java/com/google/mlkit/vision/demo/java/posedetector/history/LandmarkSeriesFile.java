@@ -0,0 +1,614 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector.history;
+
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.demo.java.posedetector.LandmarkArrays;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Layout of the landmark time series written by {@link LandmarkSeriesWriter}, and a reader for it.
+ *
+ * <p>The file starts with a {@link #FILE_HEADER_SIZE} byte header, followed by chunks of up to
+ * {@link #MAX_CHUNK_FRAMES} frames. Each chunk has a {@link #CHUNK_HEADER_SIZE} byte header with
+ * its frame count and time range, followed by a deflated, columnar payload: the frame timestamps,
+ * then for every landmark its x, y and in-frame likelihood over all frames of the chunk. Values
+ * are quantised to 16 bits and stored as zigzag varints of the difference to the previous frame,
+ * so a still or slowly moving landmark costs about a byte per frame before deflating.
+ *
+ * <p>When the writer is closed it appends an index of all chunks and a {@link #TRAILER_SIZE} byte
+ * trailer pointing at it. Files without a trailer, e.g. after a crash, are indexed by scanning the
+ * chunk headers. Timestamps are in milliseconds since the start of the series. All values are big
+ * endian.
+ *
+ * <p>While writing, the writer also grows an index file next to the series, named by {@link
+ * #getIndexFile}, with the start time and one entry per chunk written. It lets readers find chunks
+ * of a series that is still being written or was cut short without scanning it, and lets queries
+ * skip series by time without opening them.
+ */
+public final class LandmarkSeriesFile {
+
+  static final int MAGIC = 0x50444c53; // "PDLS"
+  static final int VERSION = 1;
+  static final int CHUNK_MAGIC = 0x43484e4b; // "CHNK"
+  static final int INDEX_MAGIC = 0x494e4458; // "INDX"
+
+  /** Magic, version, landmark count, coordinate scale, likelihood scale and the start time. */
+  static final int FILE_HEADER_SIZE = 28;
+  /** Magic, frame count, first and last timestamp, payload and unpacked payload length. */
+  static final int CHUNK_HEADER_SIZE = 32;
+  /** Offset, first and last timestamp and frame count of a chunk. */
+  static final int INDEX_ENTRY_SIZE = 28;
+  /** Offset of the index and the index magic. */
+  static final int TRAILER_SIZE = 12;
+  /** Index magic, version and the start time. */
+  static final int INDEX_FILE_HEADER_SIZE = 16;
+  /** Offset, length, first and last timestamp and frame count of a chunk. */
+  static final int INDEX_FILE_ENTRY_SIZE = 32;
+
+  /** Extension of series files. */
+  public static final String FILE_EXTENSION = ".pdls";
+
+  static final String INDEX_FILE_SUFFIX = ".idx";
+
+  static final int MAX_CHUNK_FRAMES = 256;
+
+  /** Channels stored per landmark: x, y and in-frame likelihood. */
+  static final int CHANNELS = 3;
+  static final int VALUES_PER_FRAME = LandmarkArrays.NUM_LANDMARKS * CHANNELS;
+
+  // Quantisation steps per pixel of the x and y coordinates. Half a pixel of rounding error is well
+  // below the frame to frame jitter of the detector; finer steps would mostly store that jitter.
+  static final int COORDINATE_SCALE = 1;
+  // Quantisation steps of the in-frame likelihood between 0 and 1.
+  static final int LIKELIHOOD_SCALE = 20;
+
+  private LandmarkSeriesFile() {}
+
+  /** Receives frames read from a series. */
+  public interface FrameCallback {
+    /**
+     * Called for every frame read. {@code landmarks} is reused for the next frame.
+     *
+     * @param timestamp the timestamp of the frame within its series
+     */
+    void onFrame(long timestamp, LandmarkArrays landmarks);
+  }
+
+  /** Returns the index file kept next to a series. */
+  public static File getIndexFile(File series) {
+    return new File(series.getPath() + INDEX_FILE_SUFFIX);
+  }
+
+  static void writeIndexFileHeader(DataOutputStream output, long startTimeMillis)
+      throws IOException {
+    output.writeInt(INDEX_MAGIC);
+    output.writeInt(VERSION);
+    output.writeLong(startTimeMillis);
+  }
+
+  static void writeIndexFileEntry(DataOutputStream output, ChunkInfo chunk) throws IOException {
+    output.writeLong(chunk.offset);
+    output.writeInt(chunk.length);
+    output.writeLong(chunk.firstTimestamp);
+    output.writeLong(chunk.lastTimestamp);
+    output.writeInt(chunk.frameCount);
+  }
+
+  /**
+   * Reads the start time of a series from its index file, or returns -1 if it has none. Lets
+   * queries skip series without opening them.
+   */
+  static long readIndexFileStartTime(File series) {
+    File indexFile = getIndexFile(series);
+    if (indexFile.length() < INDEX_FILE_HEADER_SIZE) {
+      return -1;
+    }
+    try {
+      DataInputStream input = new DataInputStream(new FileInputStream(indexFile));
+      try {
+        if (input.readInt() != INDEX_MAGIC || input.readInt() != VERSION) {
+          return -1;
+        }
+        return input.readLong();
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Reads the chunks listed in the index file of a series that are completely stored in its first
+   * {@code seriesLength} bytes, or returns null if there is no usable index file.
+   */
+  @Nullable
+  static List<ChunkInfo> readIndexFile(File series, long seriesLength) {
+    File indexFile = getIndexFile(series);
+    if (indexFile.length() < INDEX_FILE_HEADER_SIZE) {
+      return null;
+    }
+    long entries = (indexFile.length() - INDEX_FILE_HEADER_SIZE) / INDEX_FILE_ENTRY_SIZE;
+    List<ChunkInfo> chunks = new ArrayList<>();
+    try {
+      DataInputStream input =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if (input.readInt() != INDEX_MAGIC || input.readInt() != VERSION) {
+          return null;
+        }
+        input.readLong();
+        long expectedOffset = FILE_HEADER_SIZE;
+        for (long i = 0; i < entries; i++) {
+          ChunkInfo chunk =
+              new ChunkInfo(
+                  input.readLong(),
+                  input.readInt(),
+                  input.readLong(),
+                  input.readLong(),
+                  input.readInt());
+          // Chunks are contiguous; stop at anything else, or at a chunk past the end of the data.
+          if (chunk.offset != expectedOffset
+              || chunk.length <= CHUNK_HEADER_SIZE
+              || chunk.offset + chunk.length > seriesLength) {
+            break;
+          }
+          chunks.add(chunk);
+          expectedOffset += chunk.length;
+        }
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    return chunks;
+  }
+
+  static short quantise(float value, int scale) {
+    return (short)
+        Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value * scale)));
+  }
+
+  /** Returns the largest number of bytes an unpacked chunk payload of {@code frames} takes. */
+  static int getMaxPayloadLength(int frames) {
+    // Timestamp deltas take up to 10 bytes, value deltas up to 17 bits, i.e. 3 bytes.
+    return frames * (10 + VALUES_PER_FRAME * 3);
+  }
+
+  /**
+   * Encodes the payload of a chunk into {@code out} and returns its length.
+   *
+   * @param timestamps the timestamp of every frame
+   * @param values the quantised values of every frame, {@link #VALUES_PER_FRAME} per frame, ordered
+   *     by landmark and channel
+   */
+  static int encodePayload(long[] timestamps, short[] values, int frames, byte[] out) {
+    int position = 0;
+    long previousTimestamp = timestamps[0];
+    for (int frame = 0; frame < frames; frame++) {
+      position = writeVarint(out, position, zigzag(timestamps[frame] - previousTimestamp));
+      previousTimestamp = timestamps[frame];
+    }
+    // Column by column, so the deltas of one landmark are adjacent for the deflater.
+    for (int column = 0; column < VALUES_PER_FRAME; column++) {
+      int previous = 0;
+      for (int frame = 0; frame < frames; frame++) {
+        int value = values[frame * VALUES_PER_FRAME + column];
+        position = writeVarint(out, position, zigzag(value - previous));
+        previous = value;
+      }
+    }
+    return position;
+  }
+
+  /** Decodes a payload written by {@link #encodePayload} into the given arrays. */
+  static void decodePayload(
+      byte[] in, int length, long firstTimestamp, int frames, long[] timestamps, short[] values)
+      throws IOException {
+    int[] position = new int[1];
+    long timestamp = firstTimestamp;
+    for (int frame = 0; frame < frames; frame++) {
+      timestamp += unzigzag(readVarint(in, length, position));
+      timestamps[frame] = timestamp;
+    }
+    for (int column = 0; column < VALUES_PER_FRAME; column++) {
+      int value = 0;
+      for (int frame = 0; frame < frames; frame++) {
+        value += (int) unzigzag(readVarint(in, length, position));
+        values[frame * VALUES_PER_FRAME + column] = (short) value;
+      }
+    }
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static int writeVarint(byte[] out, int position, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out[position++] = (byte) value;
+    return position;
+  }
+
+  private static long readVarint(byte[] in, int length, int[] position) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (position[0] >= length) {
+        throw new EOFException("Truncated chunk payload");
+      }
+      byte b = in[position[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in chunk payload");
+  }
+
+  /** Where a chunk is stored and which frames it holds. */
+  static final class ChunkInfo {
+    final long offset;
+    /** Length of the chunk including its header. */
+    final int length;
+    final long firstTimestamp;
+    final long lastTimestamp;
+    final int frameCount;
+
+    ChunkInfo(long offset, int length, long firstTimestamp, long lastTimestamp, int frameCount) {
+      this.offset = offset;
+      this.length = length;
+      this.firstTimestamp = firstTimestamp;
+      this.lastTimestamp = lastTimestamp;
+      this.frameCount = frameCount;
+    }
+  }
+
+  /**
+   * Reads frames of a series by timestamp. Only the chunks that hold requested frames are mapped
+   * and decoded. Not thread safe.
+   */
+  public static final class Reader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int coordinateScale;
+    private final int likelihoodScale;
+    private final long startTimeMillis;
+    private final List<ChunkInfo> chunks;
+    private final boolean hasIndex;
+    private final Inflater inflater = new Inflater();
+
+    // The most recently decoded chunk, since consecutive reads usually hit the same one.
+    private int decodedChunk = -1;
+    private final long[] decodedTimestamps = new long[MAX_CHUNK_FRAMES];
+    private final short[] decodedValues = new short[MAX_CHUNK_FRAMES * VALUES_PER_FRAME];
+    private byte[] packed = new byte[0];
+    private byte[] unpacked = new byte[0];
+    private final LandmarkArrays frame = new LandmarkArrays();
+
+    public Reader(File path) throws IOException {
+      file = new RandomAccessFile(path, "r");
+      channel = file.getChannel();
+      try {
+        if (file.length() < FILE_HEADER_SIZE
+            || file.readInt() != MAGIC
+            || file.readInt() != VERSION) {
+          throw new IOException("Not a landmark series file: " + path);
+        }
+        if (file.readInt() != LandmarkArrays.NUM_LANDMARKS) {
+          throw new IOException("Unsupported landmark count in " + path);
+        }
+        coordinateScale = file.readInt();
+        likelihoodScale = file.readInt();
+        startTimeMillis = file.readLong();
+        List<ChunkInfo> indexed = readIndex();
+        hasIndex = indexed != null;
+        if (!hasIndex) {
+          // The index file lags behind the series, so the chunks after it are found by scanning.
+          indexed = readIndexFile(path, file.length());
+          indexed = scanChunks(indexed != null ? indexed : new ArrayList<ChunkInfo>());
+        }
+        chunks = indexed;
+      } catch (IOException e) {
+        file.close();
+        throw e;
+      }
+    }
+
+    /** Returns the wall clock time the series started at, in milliseconds since the epoch. */
+    public long getStartTimeMillis() {
+      return startTimeMillis;
+    }
+
+    /**
+     * Returns whether the series was closed properly. If not, its chunks were taken from its index
+     * file, and those written after the index file was last updated were found by scanning.
+     */
+    public boolean hasIndex() {
+      return hasIndex;
+    }
+
+    public int getChunkCount() {
+      return chunks.size();
+    }
+
+    public int getFrameCount() {
+      int count = 0;
+      for (ChunkInfo chunk : chunks) {
+        count += chunk.frameCount;
+      }
+      return count;
+    }
+
+    /** Returns the timestamp of the first frame, or -1 if the series is empty. */
+    public long getFirstTimestamp() {
+      return chunks.isEmpty() ? -1 : chunks.get(0).firstTimestamp;
+    }
+
+    /** Returns the timestamp of the last frame, or -1 if the series is empty. */
+    public long getLastTimestamp() {
+      return chunks.isEmpty() ? -1 : chunks.get(chunks.size() - 1).lastTimestamp;
+    }
+
+    /**
+     * Reads the last frame at or before {@code timestamp} into {@code out}.
+     *
+     * @return the timestamp of the frame read, or -1 if there is no frame at or before it
+     */
+    public long readFrame(long timestamp, LandmarkArrays out) throws IOException {
+      int chunk = findChunk(timestamp);
+      if (chunk < 0) {
+        return -1;
+      }
+      decodeChunk(chunk);
+      int frameCount = chunks.get(chunk).frameCount;
+      int frame = findLastAtOrBefore(decodedTimestamps, frameCount, timestamp);
+      copyDecodedFrame(frame, out);
+      return decodedTimestamps[frame];
+    }
+
+    /**
+     * Reads all frames from {@code fromTimestamp} to {@code toTimestamp}, both inclusive, in order.
+     *
+     * @return the number of frames read
+     */
+    public int readFrames(long fromTimestamp, long toTimestamp, FrameCallback callback)
+        throws IOException {
+      int count = 0;
+      for (int i = Math.max(0, findChunk(fromTimestamp)); i < chunks.size(); i++) {
+        ChunkInfo chunk = chunks.get(i);
+        if (chunk.firstTimestamp > toTimestamp) {
+          break;
+        }
+        if (chunk.lastTimestamp < fromTimestamp) {
+          continue;
+        }
+        decodeChunk(i);
+        for (int j = 0; j < chunk.frameCount; j++) {
+          long timestamp = decodedTimestamps[j];
+          if (timestamp < fromTimestamp || timestamp > toTimestamp) {
+            continue;
+          }
+          copyDecodedFrame(j, frame);
+          callback.onFrame(timestamp, frame);
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inflater.end();
+      file.close();
+    }
+
+    private void copyDecodedFrame(int index, LandmarkArrays out) {
+      int base = index * VALUES_PER_FRAME;
+      for (int landmark = 0; landmark < LandmarkArrays.NUM_LANDMARKS; landmark++) {
+        int column = base + landmark * CHANNELS;
+        out.x[landmark] = decodedValues[column] / (float) coordinateScale;
+        out.y[landmark] = decodedValues[column + 1] / (float) coordinateScale;
+        out.inFrameLikelihood[landmark] = decodedValues[column + 2] / (float) likelihoodScale;
+      }
+      out.setPopulated();
+    }
+
+    /** Returns the last chunk starting at or before {@code timestamp}, or -1 if there is none. */
+    private int findChunk(long timestamp) {
+      int low = 0;
+      int high = chunks.size() - 1;
+      int found = -1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        if (chunks.get(middle).firstTimestamp <= timestamp) {
+          found = middle;
+          low = middle + 1;
+        } else {
+          high = middle - 1;
+        }
+      }
+      return found;
+    }
+
+    private static int findLastAtOrBefore(long[] timestamps, int count, long timestamp) {
+      int low = 0;
+      int high = count - 1;
+      while (low < high) {
+        int middle = (low + high + 1) >>> 1;
+        if (timestamps[middle] <= timestamp) {
+          low = middle;
+        } else {
+          high = middle - 1;
+        }
+      }
+      return low;
+    }
+
+    private void decodeChunk(int index) throws IOException {
+      if (decodedChunk == index) {
+        return;
+      }
+      decodedChunk = -1;
+      ChunkInfo chunk = chunks.get(index);
+      MappedByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_ONLY, chunk.offset, chunk.length);
+      if (buffer.getInt() != CHUNK_MAGIC) {
+        throw new IOException("Corrupt chunk at " + chunk.offset);
+      }
+      int frameCount = buffer.getInt();
+      long firstTimestamp = buffer.getLong();
+      buffer.getLong();
+      int packedLength = buffer.getInt();
+      int unpackedLength = buffer.getInt();
+      if (frameCount != chunk.frameCount
+          || unpackedLength > getMaxPayloadLength(frameCount)
+          || packedLength != chunk.length - CHUNK_HEADER_SIZE) {
+        throw new IOException("Corrupt chunk at " + chunk.offset);
+      }
+      if (packed.length < packedLength) {
+        packed = new byte[packedLength];
+      }
+      if (unpacked.length < unpackedLength) {
+        unpacked = new byte[unpackedLength];
+      }
+      buffer.get(packed, 0, packedLength);
+      inflater.reset();
+      inflater.setInput(packed, 0, packedLength);
+      try {
+        if (inflater.inflate(unpacked, 0, unpackedLength) != unpackedLength) {
+          throw new IOException("Truncated chunk at " + chunk.offset);
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt chunk at " + chunk.offset, e);
+      }
+      decodePayload(
+          unpacked, unpackedLength, firstTimestamp, frameCount, decodedTimestamps, decodedValues);
+      decodedChunk = index;
+    }
+
+    /** Reads the index the writer appended when closed, or returns null if there is none. */
+    @Nullable
+    private List<ChunkInfo> readIndex() throws IOException {
+      long length = file.length();
+      if (length < FILE_HEADER_SIZE + TRAILER_SIZE) {
+        return null;
+      }
+      file.seek(length - TRAILER_SIZE);
+      long indexOffset = file.readLong();
+      if (file.readInt() != INDEX_MAGIC
+          || indexOffset < FILE_HEADER_SIZE
+          || indexOffset > length - TRAILER_SIZE - 8) {
+        return null;
+      }
+      file.seek(indexOffset);
+      if (file.readInt() != INDEX_MAGIC) {
+        return null;
+      }
+      int count = file.readInt();
+      if (count < 0 || indexOffset + 8 + (long) count * INDEX_ENTRY_SIZE > length - TRAILER_SIZE) {
+        return null;
+      }
+      List<ChunkInfo> index = new ArrayList<>(count);
+      long[] offsets = new long[count + 1];
+      long[] firstTimestamps = new long[count];
+      long[] lastTimestamps = new long[count];
+      int[] frameCounts = new int[count];
+      for (int i = 0; i < count; i++) {
+        offsets[i] = file.readLong();
+        firstTimestamps[i] = file.readLong();
+        lastTimestamps[i] = file.readLong();
+        frameCounts[i] = file.readInt();
+      }
+      // Chunks are contiguous and followed by the index.
+      offsets[count] = indexOffset;
+      for (int i = 0; i < count; i++) {
+        long chunkLength = offsets[i + 1] - offsets[i];
+        if (chunkLength <= CHUNK_HEADER_SIZE || chunkLength > Integer.MAX_VALUE) {
+          return null;
+        }
+        index.add(
+            new ChunkInfo(
+                offsets[i],
+                (int) chunkLength,
+                firstTimestamps[i],
+                lastTimestamps[i],
+                frameCounts[i]));
+      }
+      return index;
+    }
+
+    /**
+     * Finds the complete chunks that follow those already {@code found} in a file without an index,
+     * adds them to {@code found} and returns it. Reads nothing if those already cover the file.
+     */
+    private List<ChunkInfo> scanChunks(List<ChunkInfo> found) throws IOException {
+      long length = file.length();
+      long offset = FILE_HEADER_SIZE;
+      if (!found.isEmpty()) {
+        ChunkInfo last = found.get(found.size() - 1);
+        offset = last.offset + last.length;
+      }
+      while (offset + CHUNK_HEADER_SIZE <= length) {
+        file.seek(offset);
+        if (file.readInt() != CHUNK_MAGIC) {
+          break;
+        }
+        int frameCount = file.readInt();
+        long firstTimestamp = file.readLong();
+        long lastTimestamp = file.readLong();
+        int packedLength = file.readInt();
+        long next = offset + CHUNK_HEADER_SIZE + packedLength;
+        if (frameCount <= 0 || frameCount > MAX_CHUNK_FRAMES || packedLength < 0 || next > length) {
+          break;
+        }
+        found.add(
+            new ChunkInfo(
+                offset,
+                CHUNK_HEADER_SIZE + packedLength,
+                firstTimestamp,
+                lastTimestamp,
+                frameCount));
+        offset = next;
+      }
+      return found;
+    }
+  }
+}
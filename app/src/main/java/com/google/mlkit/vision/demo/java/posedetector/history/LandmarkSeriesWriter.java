@@ -0,0 +1,346 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector.history;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.demo.java.posedetector.LandmarkArrays;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Streams poses into a {@link LandmarkSeriesFile}.
+ *
+ * <p>{@link #append} only quantises the landmarks into the current chunk, which is handed to a
+ * background thread for encoding and writing once it is full. If the writer falls so far behind
+ * that no chunk is free, frames are dropped and counted instead of blocking the caller. Each chunk
+ * is flushed to the file when written, so a crash loses at most the chunk being filled.
+ *
+ * <p>The index file next to the series gets an entry as each chunk is written, so the series can be
+ * queried by time while it is still being recorded, or after a crash, without scanning it.
+ */
+public final class LandmarkSeriesWriter implements Closeable {
+
+  private static final String TAG = "LandmarkSeriesWriter";
+
+  private static final int CHUNK_POOL_SIZE = 3;
+  private static final long FREE_CHUNK_POLL_MILLIS = 100;
+
+  /** The frames of one chunk, quantised on the caller thread. */
+  private static final class Chunk {
+    final long[] timestamps = new long[LandmarkSeriesFile.MAX_CHUNK_FRAMES];
+    final short[] values =
+        new short[LandmarkSeriesFile.MAX_CHUNK_FRAMES * LandmarkSeriesFile.VALUES_PER_FRAME];
+    int frameCount;
+  }
+
+  // Queued to stop the writer thread.
+  private static final Chunk STOP = new Chunk();
+
+  private final File file;
+  private final long startTimeMillis;
+  private final long startNanos;
+  private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(CHUNK_POOL_SIZE);
+  private final BlockingQueue<Chunk> queuedChunks = new ArrayBlockingQueue<>(CHUNK_POOL_SIZE + 1);
+  private final AtomicLong droppedFrameCount = new AtomicLong();
+  private final Thread writerThread;
+  private volatile boolean isClosed;
+
+  // Only accessed on the caller thread.
+  @Nullable private Chunk currentChunk;
+  private long lastTimestamp = -1;
+
+  // Only accessed on the writer thread.
+  private final List<LandmarkSeriesFile.ChunkInfo> writtenChunks = new ArrayList<>();
+  private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+  private final byte[] unpacked =
+      new byte[LandmarkSeriesFile.getMaxPayloadLength(LandmarkSeriesFile.MAX_CHUNK_FRAMES)];
+  private byte[] packed = new byte[unpacked.length];
+  @Nullable private DataOutputStream output;
+  @Nullable private DataOutputStream indexOutput;
+  private long outputOffset;
+
+  /**
+   * Creates a writer to {@code file}, which is replaced, and starts its writer thread. Timestamps
+   * of the series are counted from now.
+   */
+  public LandmarkSeriesWriter(File file) {
+    this.file = file;
+    startTimeMillis = System.currentTimeMillis();
+    startNanos = System.nanoTime();
+    for (int i = 0; i < CHUNK_POOL_SIZE; i++) {
+      freeChunks.add(new Chunk());
+    }
+    writerThread = new Thread(this::writeLoop, "LandmarkSeriesWriter");
+    writerThread.setPriority(Thread.MIN_PRIORITY);
+    writerThread.start();
+  }
+
+  /**
+   * Adds a pose to the series. Never blocks; returns false if the frame was dropped. Empty poses
+   * are not stored, so the series has gaps while nobody is in view.
+   *
+   * @param timestampNanos when the pose was detected, in the {@link System#nanoTime()} base
+   */
+  public boolean append(long timestampNanos, LandmarkArrays landmarks) {
+    if (landmarks.isEmpty()) {
+      return false;
+    }
+    Chunk chunk = currentChunk;
+    if (chunk == null) {
+      chunk = isClosed ? null : freeChunks.poll();
+      if (chunk == null) {
+        droppedFrameCount.incrementAndGet();
+        return false;
+      }
+      chunk.frameCount = 0;
+      currentChunk = chunk;
+    }
+    add(chunk, TimeUnit.NANOSECONDS.toMillis(timestampNanos - startNanos), landmarks);
+    return true;
+  }
+
+  /**
+   * Adds a pose with an explicit series timestamp, waiting for the writer thread if it fell behind
+   * instead of dropping the pose. For offline use, e.g. to store the poses of a batch of images by
+   * their position in the batch. Empty poses are not stored.
+   *
+   * @return false if the pose was empty or the writer is closed
+   */
+  public boolean appendAt(long timestampMillis, LandmarkArrays landmarks)
+      throws InterruptedException {
+    if (landmarks.isEmpty() || isClosed) {
+      return false;
+    }
+    Chunk chunk = currentChunk;
+    if (chunk == null) {
+      do {
+        chunk = freeChunks.poll(FREE_CHUNK_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        // Chunks are not returned once the writer thread failed.
+        if (chunk == null && isClosed) {
+          return false;
+        }
+      } while (chunk == null);
+      chunk.frameCount = 0;
+      currentChunk = chunk;
+    }
+    add(chunk, timestampMillis, landmarks);
+    return true;
+  }
+
+  private void add(Chunk chunk, long timestampMillis, LandmarkArrays landmarks) {
+    // Keep timestamps increasing, the reader searches them.
+    long timestamp = Math.max(lastTimestamp, timestampMillis);
+    int frame = chunk.frameCount;
+    chunk.timestamps[frame] = timestamp;
+    short[] values = chunk.values;
+    int base = frame * LandmarkSeriesFile.VALUES_PER_FRAME;
+    int coordinateScale = LandmarkSeriesFile.COORDINATE_SCALE;
+    int likelihoodScale = LandmarkSeriesFile.LIKELIHOOD_SCALE;
+    for (int landmark = 0; landmark < LandmarkArrays.NUM_LANDMARKS; landmark++) {
+      int column = base + landmark * LandmarkSeriesFile.CHANNELS;
+      values[column] = LandmarkSeriesFile.quantise(landmarks.x[landmark], coordinateScale);
+      values[column + 1] = LandmarkSeriesFile.quantise(landmarks.y[landmark], coordinateScale);
+      values[column + 2] =
+          LandmarkSeriesFile.quantise(landmarks.inFrameLikelihood[landmark], likelihoodScale);
+    }
+    chunk.frameCount++;
+    lastTimestamp = timestamp;
+    if (chunk.frameCount == LandmarkSeriesFile.MAX_CHUNK_FRAMES) {
+      queueCurrentChunk();
+    }
+  }
+
+  /** Returns the number of frames dropped so far. */
+  public long getDroppedFrameCount() {
+    return droppedFrameCount.get();
+  }
+
+  /**
+   * Writes the remaining frames and the index, and closes the file. Must be called on the thread
+   * that calls {@link #append}.
+   */
+  @Override
+  public void close() {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    queueCurrentChunk();
+    queuedChunks.add(STOP);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Interrupted while waiting for the landmark writer to stop.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void queueCurrentChunk() {
+    Chunk chunk = currentChunk;
+    currentChunk = null;
+    if (chunk != null && chunk.frameCount > 0) {
+      // Cannot fail, the queue has room for every pooled chunk.
+      queuedChunks.add(chunk);
+    } else if (chunk != null) {
+      freeChunks.add(chunk);
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      openFile();
+      while (true) {
+        Chunk chunk;
+        try {
+          chunk = queuedChunks.take();
+        } catch (InterruptedException e) {
+          Log.d(TAG, "Landmark writer interrupted.", e);
+          return;
+        }
+        if (chunk == STOP) {
+          writeIndex();
+          return;
+        }
+        try {
+          writeChunk(chunk);
+        } finally {
+          freeChunks.add(chunk);
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write " + file + ", stopping the writer", e);
+      isClosed = true;
+    } finally {
+      closeFile();
+    }
+  }
+
+  private void openFile() throws IOException {
+    output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    output.writeInt(LandmarkSeriesFile.MAGIC);
+    output.writeInt(LandmarkSeriesFile.VERSION);
+    output.writeInt(LandmarkArrays.NUM_LANDMARKS);
+    output.writeInt(LandmarkSeriesFile.COORDINATE_SCALE);
+    output.writeInt(LandmarkSeriesFile.LIKELIHOOD_SCALE);
+    output.writeLong(startTimeMillis);
+    output.flush();
+    outputOffset = LandmarkSeriesFile.FILE_HEADER_SIZE;
+
+    indexOutput =
+        new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(LandmarkSeriesFile.getIndexFile(file))));
+    LandmarkSeriesFile.writeIndexFileHeader(indexOutput, startTimeMillis);
+    indexOutput.flush();
+  }
+
+  private void writeChunk(Chunk chunk) throws IOException {
+    int frames = chunk.frameCount;
+    int unpackedLength =
+        LandmarkSeriesFile.encodePayload(chunk.timestamps, chunk.values, frames, unpacked);
+    int packedLength = deflate(unpackedLength);
+    long firstTimestamp = chunk.timestamps[0];
+    long lastTimestamp = chunk.timestamps[frames - 1];
+
+    output.writeInt(LandmarkSeriesFile.CHUNK_MAGIC);
+    output.writeInt(frames);
+    output.writeLong(firstTimestamp);
+    output.writeLong(lastTimestamp);
+    output.writeInt(packedLength);
+    output.writeInt(unpackedLength);
+    output.write(packed, 0, packedLength);
+    output.flush();
+    LandmarkSeriesFile.ChunkInfo written =
+        new LandmarkSeriesFile.ChunkInfo(
+            outputOffset,
+            LandmarkSeriesFile.CHUNK_HEADER_SIZE + packedLength,
+            firstTimestamp,
+            lastTimestamp,
+            frames);
+    writtenChunks.add(written);
+    outputOffset += written.length;
+    // After the chunk, so the index never points past the data.
+    LandmarkSeriesFile.writeIndexFileEntry(indexOutput, written);
+    indexOutput.flush();
+  }
+
+  private int deflate(int length) {
+    deflater.reset();
+    deflater.setInput(unpacked, 0, length);
+    deflater.finish();
+    int packedLength = 0;
+    while (!deflater.finished()) {
+      if (packedLength == packed.length) {
+        byte[] larger = new byte[packed.length * 2];
+        System.arraycopy(packed, 0, larger, 0, packedLength);
+        packed = larger;
+      }
+      packedLength += deflater.deflate(packed, packedLength, packed.length - packedLength);
+    }
+    return packedLength;
+  }
+
+  private void writeIndex() throws IOException {
+    long indexOffset = outputOffset;
+    output.writeInt(LandmarkSeriesFile.INDEX_MAGIC);
+    output.writeInt(writtenChunks.size());
+    for (LandmarkSeriesFile.ChunkInfo chunk : writtenChunks) {
+      output.writeLong(chunk.offset);
+      output.writeLong(chunk.firstTimestamp);
+      output.writeLong(chunk.lastTimestamp);
+      output.writeInt(chunk.frameCount);
+    }
+    output.writeLong(indexOffset);
+    output.writeInt(LandmarkSeriesFile.INDEX_MAGIC);
+    output.flush();
+  }
+
+  private void closeFile() {
+    deflater.end();
+    if (output != null) {
+      try {
+        output.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close " + file, e);
+      }
+      output = null;
+    }
+    if (indexOutput != null) {
+      try {
+        indexOutput.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close the index of " + file, e);
+      }
+      indexOutput = null;
+    }
+    Log.d(
+        TAG,
+        "Wrote " + writtenChunks.size() + " chunks to " + file + ", dropped "
+            + droppedFrameCount.get() + " frames");
+  }
+}
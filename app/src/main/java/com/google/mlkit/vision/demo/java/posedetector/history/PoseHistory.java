@@ -0,0 +1,171 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java.posedetector.history;
+
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.demo.java.posedetector.history.ExerciseEventLog.Event;
+import com.google.mlkit.vision.demo.java.posedetector.history.ExerciseEventLog.EventFilter;
+import com.google.mlkit.vision.demo.java.posedetector.history.LandmarkSeriesFile.FrameCallback;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Queries over recorded sessions: the events of an {@link ExerciseEventLog} and the poses of the
+ * {@link LandmarkSeriesFile}s in a directory, both by wall clock time.
+ *
+ * <p>Queries go through the index files kept next to the recordings, so only the batches of events
+ * and chunks of poses that overlap the requested time range are read, e.g. to find all reps slower
+ * than 3 s last week and then the poses around one of them. Blocks on disk; call off the main
+ * thread.
+ */
+public final class PoseHistory {
+
+  private final File eventLog;
+  private final File landmarkDirectory;
+
+  public PoseHistory(File eventLog, File landmarkDirectory) {
+    this.eventLog = eventLog;
+    this.landmarkDirectory = landmarkDirectory;
+  }
+
+  /**
+   * Returns the events of the types in {@code typeMask} from {@code fromMillis} to {@code
+   * toMillis}, both inclusive, that pass {@code filter}. See {@link ExerciseEventLog#query}.
+   */
+  public List<Event> findEvents(
+      int typeMask, long fromMillis, long toMillis, @Nullable EventFilter filter)
+      throws IOException {
+    if (!eventLog.exists()) {
+      return new ArrayList<>();
+    }
+    return ExerciseEventLog.query(eventLog, typeMask, fromMillis, toMillis, filter);
+  }
+
+  /**
+   * Returns the repetitions from {@code fromMillis} to {@code toMillis} whose active phase took at
+   * least {@code minDurationMillis}.
+   */
+  public List<Event> findSlowReps(long minDurationMillis, long fromMillis, long toMillis)
+      throws IOException {
+    return findEvents(
+        ExerciseEventLog.typeMaskOf(Event.TYPE_REP),
+        fromMillis,
+        toMillis,
+        event -> event.durationMillis >= minDurationMillis);
+  }
+
+  /**
+   * Reads the recorded poses from {@code fromMillis} to {@code toMillis}, both inclusive, in order.
+   * The timestamps passed to {@code callback} are wall clock times in milliseconds since the epoch.
+   *
+   * @return the number of poses read
+   */
+  public int readFrames(long fromMillis, long toMillis, FrameCallback callback)
+      throws IOException {
+    List<Series> series = listSeries();
+    int count = 0;
+    for (int i = 0; i < series.size(); i++) {
+      Series current = series.get(i);
+      if (current.startTimeMillis > toMillis) {
+        break;
+      }
+      // Series are recorded one after another, so each ends before the next one starts.
+      if (i + 1 < series.size() && series.get(i + 1).startTimeMillis <= fromMillis) {
+        continue;
+      }
+      LandmarkSeriesFile.Reader reader = new LandmarkSeriesFile.Reader(current.file);
+      try {
+        long startTimeMillis = reader.getStartTimeMillis();
+        count +=
+            reader.readFrames(
+                fromMillis - startTimeMillis,
+                toMillis - startTimeMillis,
+                (timestamp, landmarks) -> callback.onFrame(startTimeMillis + timestamp, landmarks));
+      } finally {
+        reader.close();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Reads the recorded poses from {@code windowMillis} before to {@code windowMillis} after an
+   * event. See {@link #readFrames}.
+   */
+  public int readFramesAround(Event event, long windowMillis, FrameCallback callback)
+      throws IOException {
+    return readFrames(event.timeMillis - windowMillis, event.timeMillis + windowMillis, callback);
+  }
+
+  /** A series file and its start time. */
+  private static final class Series implements Comparable<Series> {
+    final File file;
+    final long startTimeMillis;
+
+    Series(File file, long startTimeMillis) {
+      this.file = file;
+      this.startTimeMillis = startTimeMillis;
+    }
+
+    @Override
+    public int compareTo(Series other) {
+      return startTimeMillis < other.startTimeMillis
+          ? -1
+          : (startTimeMillis == other.startTimeMillis ? 0 : 1);
+    }
+  }
+
+  /** Lists the series in the directory by start time, taken from their index files if possible. */
+  private List<Series> listSeries() {
+    List<Series> series = new ArrayList<>();
+    File[] files = landmarkDirectory.listFiles();
+    if (files == null) {
+      return series;
+    }
+    for (File file : files) {
+      if (!file.getName().endsWith(LandmarkSeriesFile.FILE_EXTENSION)) {
+        continue;
+      }
+      long startTimeMillis = LandmarkSeriesFile.readIndexFileStartTime(file);
+      if (startTimeMillis < 0) {
+        startTimeMillis = readStartTime(file);
+      }
+      if (startTimeMillis >= 0) {
+        series.add(new Series(file, startTimeMillis));
+      }
+    }
+    Collections.sort(series);
+    return series;
+  }
+
+  private static long readStartTime(File file) {
+    try {
+      LandmarkSeriesFile.Reader reader = new LandmarkSeriesFile.Reader(file);
+      try {
+        return reader.getStartTimeMillis();
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      // Not a series, or too short to hold its header.
+      return -1;
+    }
+  }
+}
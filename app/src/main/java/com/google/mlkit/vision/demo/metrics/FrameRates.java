@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.metrics;
+
+import android.util.Log;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sliding-window rates of the frames entering a processor, the frames it finished processing, the
+ * frames it dropped without producing a result and the frames it showed earlier results for
+ * instead of processing them.
+ */
+public final class FrameRates {
+
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+  // Enough for a 240 fps camera within the window.
+  private static final int CAPACITY = 256;
+
+  private final RateMeter input = new RateMeter(WINDOW_NANOS, CAPACITY);
+  private final RateMeter processed = new RateMeter(WINDOW_NANOS, CAPACITY);
+  private final RateMeter dropped = new RateMeter(WINDOW_NANOS, CAPACITY);
+  private final RateMeter skipped = new RateMeter(WINDOW_NANOS, CAPACITY);
+
+  /** Records a frame handed to the processor. */
+  public void markInput(long nowNanos) {
+    input.mark(nowNanos);
+  }
+
+  /** Records a frame the processor produced a result for. */
+  public void markProcessed(long nowNanos) {
+    processed.mark(nowNanos);
+  }
+
+  /** Records a frame the processor discarded, or failed to produce a result for. */
+  public void markDropped(long nowNanos) {
+    dropped.mark(nowNanos);
+  }
+
+  /** Records a frame that was not processed because the results of an earlier one still held. */
+  public void markSkipped(long nowNanos) {
+    skipped.mark(nowNanos);
+  }
+
+  public float getInputFps(long nowNanos) {
+    return input.getRatePerSecond(nowNanos);
+  }
+
+  public float getProcessedFps(long nowNanos) {
+    return processed.getRatePerSecond(nowNanos);
+  }
+
+  public float getDroppedFps(long nowNanos) {
+    return dropped.getRatePerSecond(nowNanos);
+  }
+
+  public float getSkippedFps(long nowNanos) {
+    return skipped.getRatePerSecond(nowNanos);
+  }
+
+  /** Returns the number of frames handed to the processor so far. */
+  public long getInputCount() {
+    return input.getTotalCount();
+  }
+
+  /** Returns the number of frames processed so far. */
+  public long getProcessedCount() {
+    return processed.getTotalCount();
+  }
+
+  /** Returns the number of frames dropped so far. */
+  public long getDroppedCount() {
+    return dropped.getTotalCount();
+  }
+
+  /** Returns the number of frames skipped so far. */
+  public long getSkippedCount() {
+    return skipped.getTotalCount();
+  }
+
+  /** Logs all four rates as of {@code nowNanos}. */
+  public void log(String tag, long nowNanos) {
+    Log.d(
+        tag,
+        String.format(
+            Locale.US,
+            "FPS input: %.1f, processed: %.1f, dropped: %.1f (%d total), skipped: %.1f (%d total)",
+            getInputFps(nowNanos),
+            getProcessedFps(nowNanos),
+            getDroppedFps(nowNanos),
+            getDroppedCount(),
+            getSkippedFps(nowNanos),
+            getSkippedCount()));
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.metrics;
+
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.os.Trace;
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.demo.BuildConfig;
+
+/**
+ * Begin/end trace sections for the stages of the frame pipeline, each tagged with the sequence
+ * number of the frame it belongs to.
+ *
+ * <p>Sections go to {@link Trace android.os.Trace} while system tracing is switched on, which is
+ * the default in debug builds, so they show up in systrace and Perfetto captures. They also go to
+ * a {@link TraceRecorder} while one is recording. With both off a section costs two volatile reads.
+ * When {@link #ENABLED} is false, set through the {@code FRAME_TRACING} build config field, every
+ * method is empty and compiles away.
+ *
+ * <p>Synchronous sections must end on the thread they began on. Async sections may end on any
+ * thread and are matched by name and frame number.
+ */
+public final class FrameTracer {
+
+  /** Whether tracing is compiled in at all. */
+  public static final boolean ENABLED = BuildConfig.FRAME_TRACING;
+
+  public static final String SECTION_INTAKE = "intake";
+  public static final String SECTION_CONVERSION = "conversion";
+  public static final String SECTION_INFERENCE = "inference";
+  public static final String SECTION_RESULT_HANDLING = "result_handling";
+  public static final String SECTION_DRAW = "draw";
+
+  // On by default in debug builds, whose sections are expected in system traces.
+  private static volatile boolean isSystemTracingEnabled =
+      BuildConfig.DEBUG && VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR2;
+  @Nullable private static volatile TraceRecorder recorder;
+
+  private FrameTracer() {}
+
+  /**
+   * Sets whether sections are emitted to {@link Trace}. Requires API 18. Only change this while no
+   * traced section is open, otherwise the system trace may get unbalanced sections.
+   */
+  public static void setSystemTracingEnabled(boolean enabled) {
+    isSystemTracingEnabled = enabled && VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR2;
+  }
+
+  /** Starts recording sections into a new ring buffer of the given capacity and returns it. */
+  public static TraceRecorder startRecording(int capacity) {
+    TraceRecorder newRecorder = new TraceRecorder(capacity);
+    recorder = newRecorder;
+    return newRecorder;
+  }
+
+  /** Stops recording sections. The previous recorder keeps its events for export. */
+  public static void stopRecording() {
+    recorder = null;
+  }
+
+  /** Begins a section on the current thread. */
+  public static void beginSection(String name, long frameNumber) {
+    if (!ENABLED) {
+      return;
+    }
+    TraceRecorder currentRecorder = recorder;
+    if (currentRecorder != null) {
+      currentRecorder.record(name, TraceRecorder.PHASE_BEGIN, frameNumber);
+    }
+    if (isSystemTracingEnabled) {
+      Trace.beginSection(getSectionName(name, frameNumber));
+    }
+  }
+
+  /** Ends the section most recently begun on the current thread. */
+  public static void endSection(String name, long frameNumber) {
+    if (!ENABLED) {
+      return;
+    }
+    if (isSystemTracingEnabled) {
+      Trace.endSection();
+    }
+    TraceRecorder currentRecorder = recorder;
+    if (currentRecorder != null) {
+      currentRecorder.record(name, TraceRecorder.PHASE_END, frameNumber);
+    }
+  }
+
+  /** Begins a section that may end on a different thread. */
+  public static void beginAsyncSection(String name, long frameNumber) {
+    if (!ENABLED) {
+      return;
+    }
+    TraceRecorder currentRecorder = recorder;
+    if (currentRecorder != null) {
+      currentRecorder.record(name, TraceRecorder.PHASE_ASYNC_BEGIN, frameNumber);
+    }
+    if (isSystemTracingEnabled && VERSION.SDK_INT >= VERSION_CODES.Q) {
+      Trace.beginAsyncSection(name, (int) frameNumber);
+    }
+  }
+
+  /** Ends a section begun by {@link #beginAsyncSection} with the same name and frame number. */
+  public static void endAsyncSection(String name, long frameNumber) {
+    if (!ENABLED) {
+      return;
+    }
+    if (isSystemTracingEnabled && VERSION.SDK_INT >= VERSION_CODES.Q) {
+      Trace.endAsyncSection(name, (int) frameNumber);
+    }
+    TraceRecorder currentRecorder = recorder;
+    if (currentRecorder != null) {
+      currentRecorder.record(name, TraceRecorder.PHASE_ASYNC_END, frameNumber);
+    }
+  }
+
+  private static String getSectionName(String name, long frameNumber) {
+    // Only allocates while system tracing is on.
+    return name + " #" + frameNumber;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.metrics;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size log-linear histogram of durations in nanoseconds, in the style of HdrHistogram.
+ *
+ * <p>Values below {@link #SUB_BUCKET_COUNT} are counted exactly. Above that every power of two is
+ * split into {@link #SUB_BUCKET_COUNT}/2 linear sub-buckets, so any recorded value is reported with
+ * a relative error below 1/64 (about 1.6%), up to {@link #MAX_TRACKABLE_NANOS}. Larger values are
+ * clamped. Recording is O(1) and never allocates, which keeps it cheap enough for every frame.
+ *
+ * <p>All methods are synchronized, so values can be recorded on one thread while another thread
+ * takes snapshots; the lock is uncontended on the recording path in practice.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 7;
+  /** Number of values counted exactly, and twice the number of sub-buckets per power of two. */
+  public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+  private static final int MAX_MAGNITUDE = 40;
+  /** Largest duration that can be recorded, about 18 minutes. Larger ones are clamped to it. */
+  public static final long MAX_TRACKABLE_NANOS = (1L << MAX_MAGNITUDE) - 1;
+
+  private static final int NUM_BUCKETS = indexOf(MAX_TRACKABLE_NANOS) + 1;
+
+  private final int[] counts = new int[NUM_BUCKETS];
+  private long totalCount;
+  private long totalNanos;
+  private long minNanos = Long.MAX_VALUE;
+  private long maxNanos;
+
+  /** Records one duration. Negative durations are recorded as zero. */
+  public synchronized void recordNanos(long nanos) {
+    nanos = Math.max(0, Math.min(nanos, MAX_TRACKABLE_NANOS));
+    counts[indexOf(nanos)]++;
+    totalCount++;
+    totalNanos += nanos;
+    minNanos = Math.min(minNanos, nanos);
+    maxNanos = Math.max(maxNanos, nanos);
+  }
+
+  /** Removes all recorded values. */
+  public synchronized void reset() {
+    Arrays.fill(counts, 0);
+    totalCount = 0;
+    totalNanos = 0;
+    minNanos = Long.MAX_VALUE;
+    maxNanos = 0;
+  }
+
+  /**
+   * Copies the content of this histogram into {@code snapshot} and resets this one, so each
+   * snapshot covers exactly one interval.
+   */
+  public synchronized void takeIntervalSnapshot(LatencyHistogram snapshot) {
+    synchronized (snapshot) {
+      System.arraycopy(counts, 0, snapshot.counts, 0, NUM_BUCKETS);
+      snapshot.totalCount = totalCount;
+      snapshot.totalNanos = totalNanos;
+      snapshot.minNanos = minNanos;
+      snapshot.maxNanos = maxNanos;
+    }
+    reset();
+  }
+
+  /** Adds all values recorded in {@code other} to this histogram. */
+  public synchronized void add(LatencyHistogram other) {
+    synchronized (other) {
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        counts[i] += other.counts[i];
+      }
+      totalCount += other.totalCount;
+      totalNanos += other.totalNanos;
+      minNanos = Math.min(minNanos, other.minNanos);
+      maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+  }
+
+  public synchronized long getCount() {
+    return totalCount;
+  }
+
+  /** Returns the sum of all recorded durations. */
+  public synchronized long getTotalNanos() {
+    return totalNanos;
+  }
+
+  /** Returns the smallest recorded duration, or 0 if the histogram is empty. */
+  public synchronized long getMinNanos() {
+    return totalCount == 0 ? 0 : minNanos;
+  }
+
+  public synchronized long getMaxNanos() {
+    return maxNanos;
+  }
+
+  /** Returns the mean of the recorded durations, or 0 if the histogram is empty. */
+  public synchronized long getMeanNanos() {
+    return totalCount == 0 ? 0 : totalNanos / totalCount;
+  }
+
+  /**
+   * Returns the duration at or below which the given percentage of the recorded values fall, e.g.
+   * {@code getValueAtPercentile(99.9)}. The result is the upper end of the bucket holding that
+   * value, never more than the largest recorded value. Returns 0 if the histogram is empty.
+   */
+  public synchronized long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    double fraction = Math.max(0, Math.min(percentile, 100)) / 100;
+    long rank = Math.max(1, (long) Math.ceil(fraction * totalCount));
+    long cumulativeCount = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      cumulativeCount += counts[i];
+      if (cumulativeCount >= rank) {
+        return Math.min(highestEquivalentValue(i), maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+
+  /** Returns the bucket index of a value between 0 and {@link #MAX_TRACKABLE_NANOS}. */
+  static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    // Keep the top SUB_BUCKET_BITS bits, so the sub-bucket lies in [half count, count).
+    int shift = magnitude - (SUB_BUCKET_BITS - 1);
+    int subBucket = (int) (value >>> shift);
+    return shift * SUB_BUCKET_HALF_COUNT + subBucket;
+  }
+
+  /** Returns the smallest value counted in the given bucket. */
+  static long lowestEquivalentValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+    long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+    return subBucket << shift;
+  }
+
+  /** Returns the largest value counted in the given bucket. */
+  static long highestEquivalentValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+    return lowestEquivalentValue(index) + (1L << shift) - 1;
+  }
+}
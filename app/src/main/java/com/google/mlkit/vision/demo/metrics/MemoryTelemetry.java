@@ -0,0 +1,226 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.metrics;
+
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process-wide memory telemetry: Java and native heap usage, garbage collections, the bytes held by
+ * the preview bitmap and the occupancy of the camera buffer pool.
+ *
+ * <p>Samples are taken on request on a single background thread shared by the whole process, so
+ * the frame pipeline only pays for handing over the request. None of the sampled values needs a
+ * binder call. Requests made while a sample is in progress are ignored.
+ */
+public final class MemoryTelemetry {
+
+  private static final String TAG = "MemoryTelemetry";
+  private static final long BYTES_PER_MB = 0x100000L;
+
+  private static final MemoryTelemetry instance = new MemoryTelemetry();
+
+  /** A pool of preallocated frame buffers whose occupancy is reported with every sample. */
+  public interface BufferPool {
+    /** Returns the number of buffers in the pool. */
+    int getBufferCount();
+
+    /** Returns the number of buffers currently held by the app rather than the camera. */
+    int getBuffersInUse();
+  }
+
+  /** The memory state of the process at one point in time. */
+  public static final class Sample {
+    public final long javaHeapUsedBytes;
+    public final long javaHeapMaxBytes;
+    public final long nativeHeapAllocatedBytes;
+    /** Garbage collections since the previous sample, or -1 if not available. */
+    public final long gcCountDelta;
+    /** Time spent in garbage collection since the previous sample, or -1 if not available. */
+    public final long gcTimeDeltaMs;
+    /** Garbage collections since the process started, or -1 if not available. */
+    public final long gcCount;
+    /** Time spent in garbage collection since the process started, or -1 if not available. */
+    public final long gcTimeMs;
+    public final long cameraImageBytes;
+    public final int bufferPoolInUse;
+    public final int bufferPoolSize;
+
+    Sample(
+        long javaHeapUsedBytes,
+        long javaHeapMaxBytes,
+        long nativeHeapAllocatedBytes,
+        long gcCountDelta,
+        long gcTimeDeltaMs,
+        long gcCount,
+        long gcTimeMs,
+        long cameraImageBytes,
+        int bufferPoolInUse,
+        int bufferPoolSize) {
+      this.javaHeapUsedBytes = javaHeapUsedBytes;
+      this.javaHeapMaxBytes = javaHeapMaxBytes;
+      this.nativeHeapAllocatedBytes = nativeHeapAllocatedBytes;
+      this.gcCountDelta = gcCountDelta;
+      this.gcTimeDeltaMs = gcTimeDeltaMs;
+      this.gcCount = gcCount;
+      this.gcTimeMs = gcTimeMs;
+      this.cameraImageBytes = cameraImageBytes;
+      this.bufferPoolInUse = bufferPoolInUse;
+      this.bufferPoolSize = bufferPoolSize;
+    }
+  }
+
+  private final ExecutorService sampler =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "MemoryTelemetry");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          });
+  private final AtomicBoolean isSampling = new AtomicBoolean();
+
+  private volatile long cameraImageBytes;
+  @Nullable private volatile BufferPool bufferPool;
+  @Nullable private volatile Sample latestSample;
+
+  // Only accessed on the sampler thread.
+  private long lastGcCount = -1;
+  private long lastGcTimeMs = -1;
+
+  private MemoryTelemetry() {}
+
+  public static MemoryTelemetry getInstance() {
+    return instance;
+  }
+
+  /** Sets the size of the preview bitmap currently shown, or 0 if none is. */
+  public void setCameraImageBytes(long bytes) {
+    cameraImageBytes = bytes;
+  }
+
+  /** Sets the buffer pool frames are currently taken from, or {@code null} if there is none. */
+  public void setBufferPool(@Nullable BufferPool pool) {
+    bufferPool = pool;
+  }
+
+  /** Clears the buffer pool if it is still the given one. */
+  public void clearBufferPool(BufferPool pool) {
+    if (bufferPool == pool) {
+      bufferPool = null;
+    }
+  }
+
+  /** Returns the most recent sample, or {@code null} if none has been taken yet. */
+  @Nullable
+  public Sample getLatestSample() {
+    return latestSample;
+  }
+
+  /**
+   * Takes a sample in the background and logs it with the given tag. Does nothing if a sample is
+   * already being taken. Safe to call on any thread.
+   */
+  public void requestSample(String tag) {
+    if (!isSampling.compareAndSet(false, true)) {
+      return;
+    }
+    sampler.execute(
+        () -> {
+          try {
+            Sample sample = takeSample();
+            latestSample = sample;
+            log(tag, sample);
+          } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to sample memory telemetry", e);
+          } finally {
+            isSampling.set(false);
+          }
+        });
+  }
+
+  private Sample takeSample() {
+    Runtime runtime = Runtime.getRuntime();
+    long gcCountDelta = -1;
+    long gcTimeDeltaMs = -1;
+    long gcCount = -1;
+    long gcTimeMs = -1;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      gcCount = parseRuntimeStat("art.gc.gc-count");
+      gcTimeMs = parseRuntimeStat("art.gc.gc-time");
+      if (gcCount >= 0 && lastGcCount >= 0) {
+        gcCountDelta = gcCount - lastGcCount;
+      }
+      if (gcTimeMs >= 0 && lastGcTimeMs >= 0) {
+        gcTimeDeltaMs = gcTimeMs - lastGcTimeMs;
+      }
+      lastGcCount = gcCount;
+      lastGcTimeMs = gcTimeMs;
+    }
+    BufferPool pool = bufferPool;
+    return new Sample(
+        runtime.totalMemory() - runtime.freeMemory(),
+        runtime.maxMemory(),
+        Debug.getNativeHeapAllocatedSize(),
+        gcCountDelta,
+        gcTimeDeltaMs,
+        gcCount,
+        gcTimeMs,
+        cameraImageBytes,
+        pool == null ? 0 : pool.getBuffersInUse(),
+        pool == null ? 0 : pool.getBufferCount());
+  }
+
+  private static long parseRuntimeStat(String name) {
+    String value = Debug.getRuntimeStat(name);
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static void log(String tag, Sample sample) {
+    Log.d(
+        tag,
+        String.format(
+            Locale.US,
+            "Java heap: %d/%d MB, native heap: %d MB, GCs: %d (%d ms)",
+            sample.javaHeapUsedBytes / BYTES_PER_MB,
+            sample.javaHeapMaxBytes / BYTES_PER_MB,
+            sample.nativeHeapAllocatedBytes / BYTES_PER_MB,
+            sample.gcCountDelta,
+            sample.gcTimeDeltaMs));
+    Log.d(
+        tag,
+        String.format(
+            Locale.US,
+            "Camera image: %d KB, buffer pool: %d/%d in use",
+            sample.cameraImageBytes / 1024,
+            sample.bufferPoolInUse,
+            sample.bufferPoolSize));
+  }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.metrics;
+
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports the frame pipeline metrics for scraping by external agents.
+ *
+ * <p>Two independent outputs can be started:
+ *
+ * <ul>
+ *   <li>An HTTP endpoint bound to the loopback interface only, serving {@code GET /metrics} in the
+ *       Prometheus text exposition format.
+ *   <li>A file that a JSON object with the current metrics is appended to periodically, one per
+ *       line. It is rotated once it grows past {@link #MAX_SNAPSHOT_FILE_BYTES}.
+ * </ul>
+ *
+ * <p>Latency quantiles describe the last interval snapshotted by {@link PipelineLatency}, while
+ * counts and sums are cumulative, as Prometheus summaries expect. The metrics source can be
+ * replaced at any time, e.g. when the frame processor is rebuilt.
+ */
+public final class MetricsExporter {
+
+  private static final String TAG = "MetricsExporter";
+
+  public static final int DEFAULT_PORT = 9464;
+  public static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 10;
+  static final long MAX_SNAPSHOT_FILE_BYTES = 8 * 1024 * 1024;
+
+  private static final String PREFIX = "posedetect_";
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int SOCKET_TIMEOUT_MS = 2000;
+
+  @Nullable private volatile PipelineLatency pipelineLatency;
+  @Nullable private volatile FrameRates frameRates;
+
+  @GuardedBy("this")
+  @Nullable
+  private ServerSocket serverSocket;
+
+  @GuardedBy("this")
+  @Nullable
+  private ScheduledExecutorService snapshotExecutor;
+
+  /** Sets the processor metrics to export, or {@code null} while there is no processor. */
+  public void setPipeline(
+      @Nullable PipelineLatency pipelineLatency, @Nullable FrameRates frameRates) {
+    this.pipelineLatency = pipelineLatency;
+    this.frameRates = frameRates;
+  }
+
+  /**
+   * Starts serving metrics on {@code http://127.0.0.1:<port>/metrics} from a background thread.
+   * Does nothing if the server is already running.
+   */
+  public synchronized void startHttpServer(int port) throws IOException {
+    if (serverSocket != null) {
+      return;
+    }
+    ServerSocket socket =
+        new ServerSocket(port, /* backlog= */ 4, InetAddress.getByName("127.0.0.1"));
+    serverSocket = socket;
+    Thread thread = new Thread(() -> serve(socket), "MetricsHttpServer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Starts appending a JSON snapshot to {@code file} every {@code intervalSeconds}. Does nothing if
+   * snapshots are already being written.
+   */
+  public synchronized void startSnapshots(File file, long intervalSeconds) {
+    if (snapshotExecutor != null) {
+      return;
+    }
+    snapshotExecutor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "MetricsSnapshots");
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            });
+    snapshotExecutor.scheduleAtFixedRate(
+        () -> appendSnapshot(file), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /** Stops both the HTTP server and the snapshots. */
+  public synchronized void stop() {
+    if (serverSocket != null) {
+      try {
+        // Makes the blocked accept() throw, which ends the server thread.
+        serverSocket.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close metrics server socket", e);
+      }
+      serverSocket = null;
+    }
+    if (snapshotExecutor != null) {
+      snapshotExecutor.shutdown();
+      snapshotExecutor = null;
+    }
+  }
+
+  private void serve(ServerSocket server) {
+    while (!server.isClosed()) {
+      Socket socket;
+      try {
+        socket = server.accept();
+      } catch (IOException e) {
+        // The socket was closed by stop().
+        return;
+      }
+      try {
+        handleRequest(socket);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to handle metrics request", e);
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to close metrics connection", e);
+        }
+      }
+    }
+  }
+
+  private void handleRequest(Socket socket) throws IOException {
+    socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+    String requestLine = reader.readLine();
+    // Skip the headers; the request has no body we care about.
+    String header = reader.readLine();
+    while (header != null && !header.isEmpty()) {
+      header = reader.readLine();
+    }
+
+    String status;
+    String contentType = "text/plain; charset=utf-8";
+    StringWriter body = new StringWriter();
+    if (requestLine == null) {
+      return;
+    } else if (requestLine.startsWith("GET /metrics ") || requestLine.equals("GET /metrics")) {
+      status = "200 OK";
+      contentType = "text/plain; version=0.0.4; charset=utf-8";
+      writePrometheusText(body);
+    } else if (requestLine.startsWith("GET ")) {
+      status = "404 Not Found";
+      body.write("Metrics are served at /metrics\n");
+    } else {
+      status = "405 Method Not Allowed";
+    }
+
+    byte[] bytes = body.toString().getBytes(UTF_8);
+    OutputStream out = socket.getOutputStream();
+    String headers =
+        "HTTP/1.1 "
+            + status
+            + "\r\nContent-Type: "
+            + contentType
+            + "\r\nContent-Length: "
+            + bytes.length
+            + "\r\nConnection: close\r\n\r\n";
+    out.write(headers.getBytes(UTF_8));
+    out.write(bytes);
+    out.flush();
+  }
+
+  /** Writes the current metrics in the Prometheus text exposition format. */
+  public void writePrometheusText(Writer writer) throws IOException {
+    PipelineLatency latency = pipelineLatency;
+    if (latency != null) {
+      String name = PREFIX + "stage_latency_seconds";
+      writeHeader(
+          writer,
+          name,
+          "summary",
+          "Latency of each frame pipeline stage; quantiles cover the last stats interval.");
+      for (int stage = 0; stage < PipelineLatency.NUM_STAGES; stage++) {
+        String stageName = PipelineLatency.getStageName(stage);
+        LatencyHistogram snapshot = latency.getSnapshot(stage);
+        for (double quantile : QUANTILES) {
+          writer
+              .append(name)
+              .append("{stage=\"")
+              .append(stageName)
+              .append("\",quantile=\"")
+              .append(Double.toString(quantile))
+              .append("\"} ")
+              .append(formatSeconds(snapshot.getValueAtPercentile(quantile * 100)))
+              .append('\n');
+        }
+        LatencyHistogram cumulative = latency.getCumulative(stage);
+        writeSample(
+            writer,
+            name + "_sum",
+            "stage",
+            stageName,
+            formatSeconds(cumulative.getTotalNanos()));
+        writeSample(
+            writer, name + "_count", "stage", stageName, Long.toString(cumulative.getCount()));
+      }
+    }
+
+    FrameRates rates = frameRates;
+    if (rates != null) {
+      long nowNanos = System.nanoTime();
+      String name = PREFIX + "frames_total";
+      writeHeader(
+          writer, name, "counter", "Frames entering, processed, dropped or skipped by the app.");
+      writeSample(writer, name, "kind", "input", Long.toString(rates.getInputCount()));
+      writeSample(writer, name, "kind", "processed", Long.toString(rates.getProcessedCount()));
+      writeSample(writer, name, "kind", "dropped", Long.toString(rates.getDroppedCount()));
+      writeSample(writer, name, "kind", "skipped", Long.toString(rates.getSkippedCount()));
+      name = PREFIX + "frames_per_second";
+      writeHeader(writer, name, "gauge", "Frame rates over a one second sliding window.");
+      writeSample(writer, name, "kind", "input", formatFloat(rates.getInputFps(nowNanos)));
+      writeSample(writer, name, "kind", "processed", formatFloat(rates.getProcessedFps(nowNanos)));
+      writeSample(writer, name, "kind", "dropped", formatFloat(rates.getDroppedFps(nowNanos)));
+      writeSample(writer, name, "kind", "skipped", formatFloat(rates.getSkippedFps(nowNanos)));
+      if (latency != null) {
+        name = PREFIX + "inference_seconds_saved_per_second";
+        writeHeader(
+            writer,
+            name,
+            "gauge",
+            "Estimated detector time avoided by skipping still frames, a proxy for power saved.");
+        writer
+            .append(name)
+            .append(' ')
+            .append(formatFloat(getInferenceSecondsSavedPerSecond(latency, rates, nowNanos)))
+            .append('\n');
+      }
+    }
+
+    MemoryTelemetry.Sample memory = MemoryTelemetry.getInstance().getLatestSample();
+    if (memory != null) {
+      writeGauge(writer, "java_heap_used_bytes", "Java heap in use.", memory.javaHeapUsedBytes);
+      writeGauge(writer, "java_heap_max_bytes", "Java heap limit.", memory.javaHeapMaxBytes);
+      writeGauge(
+          writer,
+          "native_heap_allocated_bytes",
+          "Native heap allocated.",
+          memory.nativeHeapAllocatedBytes);
+      writeGauge(
+          writer,
+          "camera_image_bytes",
+          "Bytes of the preview bitmap shown.",
+          memory.cameraImageBytes);
+      writeGauge(
+          writer, "buffer_pool_in_use", "Camera buffers held by the app.", memory.bufferPoolInUse);
+      writeGauge(writer, "buffer_pool_size", "Camera buffers in the pool.", memory.bufferPoolSize);
+      if (memory.gcCount >= 0) {
+        String name = PREFIX + "gc_total";
+        writeHeader(writer, name, "counter", "Garbage collections since the process started.");
+        writer.append(name).append(' ').append(Long.toString(memory.gcCount)).append('\n');
+      }
+      if (memory.gcTimeMs >= 0) {
+        String name = PREFIX + "gc_seconds_total";
+        writeHeader(writer, name, "counter", "Time spent in garbage collection.");
+        writer.append(name).append(' ').append(formatFloat(memory.gcTimeMs / 1e3f)).append('\n');
+      }
+    }
+    writer.flush();
+  }
+
+  /** Writes the current metrics as a single-line JSON object. */
+  public void writeJsonSnapshot(Writer writer) throws IOException {
+    JsonWriter json = new JsonWriter(writer);
+    json.beginObject();
+    json.name("time_ms").value(System.currentTimeMillis());
+
+    PipelineLatency latency = pipelineLatency;
+    if (latency != null) {
+      json.name("latency_ms").beginObject();
+      for (int stage = 0; stage < PipelineLatency.NUM_STAGES; stage++) {
+        LatencyHistogram snapshot = latency.getSnapshot(stage);
+        json.name(PipelineLatency.getStageName(stage)).beginObject();
+        json.name("count").value(snapshot.getCount());
+        for (int i = 0; i < QUANTILES.length; i++) {
+          json.name(QUANTILE_NAMES[i])
+              .value(snapshot.getValueAtPercentile(QUANTILES[i] * 100) / 1e6);
+        }
+        json.name("max").value(snapshot.getMaxNanos() / 1e6);
+        json.endObject();
+      }
+      json.endObject();
+    }
+
+    FrameRates rates = frameRates;
+    if (rates != null) {
+      long nowNanos = System.nanoTime();
+      json.name("fps").beginObject();
+      json.name("input").value(rates.getInputFps(nowNanos));
+      json.name("processed").value(rates.getProcessedFps(nowNanos));
+      json.name("dropped").value(rates.getDroppedFps(nowNanos));
+      json.name("skipped").value(rates.getSkippedFps(nowNanos));
+      json.endObject();
+      json.name("frames").beginObject();
+      json.name("input").value(rates.getInputCount());
+      json.name("processed").value(rates.getProcessedCount());
+      json.name("dropped").value(rates.getDroppedCount());
+      json.name("skipped").value(rates.getSkippedCount());
+      json.endObject();
+      if (latency != null) {
+        json.name("inference_ms_saved_per_second")
+            .value(getInferenceSecondsSavedPerSecond(latency, rates, nowNanos) * 1e3);
+      }
+    }
+
+    MemoryTelemetry.Sample memory = MemoryTelemetry.getInstance().getLatestSample();
+    if (memory != null) {
+      json.name("memory").beginObject();
+      json.name("java_heap_used_bytes").value(memory.javaHeapUsedBytes);
+      json.name("native_heap_allocated_bytes").value(memory.nativeHeapAllocatedBytes);
+      json.name("gc_count").value(memory.gcCount);
+      json.name("gc_time_ms").value(memory.gcTimeMs);
+      json.name("camera_image_bytes").value(memory.cameraImageBytes);
+      json.name("buffer_pool_in_use").value(memory.bufferPoolInUse);
+      json.name("buffer_pool_size").value(memory.bufferPoolSize);
+      json.endObject();
+    }
+    json.endObject();
+    json.flush();
+  }
+
+  private void appendSnapshot(File file) {
+    if (file.length() > MAX_SNAPSHOT_FILE_BYTES) {
+      File rotated = new File(file.getPath() + ".1");
+      if (rotated.exists() && !rotated.delete()) {
+        Log.w(TAG, "Failed to delete " + rotated);
+      }
+      if (!file.renameTo(rotated)) {
+        Log.w(TAG, "Failed to rotate " + file);
+      }
+    }
+    Writer writer = null;
+    try {
+      writer = new OutputStreamWriter(new FileOutputStream(file, /* append= */ true), UTF_8);
+      writeJsonSnapshot(writer);
+      writer.write('\n');
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to append metrics snapshot to " + file, e);
+    } finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to close " + file, e);
+        }
+      }
+    }
+  }
+
+  private static void writeHeader(Writer writer, String name, String type, String help)
+      throws IOException {
+    writer.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    writer.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void writeSample(
+      Writer writer, String name, String labelName, String labelValue, String value)
+      throws IOException {
+    writer
+        .append(name)
+        .append('{')
+        .append(labelName)
+        .append("=\"")
+        .append(labelValue)
+        .append("\"} ")
+        .append(value)
+        .append('\n');
+  }
+
+  private static void writeGauge(Writer writer, String name, String help, long value)
+      throws IOException {
+    writeHeader(writer, PREFIX + name, "gauge", help);
+    writer.append(PREFIX).append(name).append(' ').append(Long.toString(value)).append('\n');
+  }
+
+  /**
+   * Estimates how much detector time skipped frames saved per second, from the rate they are
+   * skipped at and the mean inference latency.
+   */
+  private static float getInferenceSecondsSavedPerSecond(
+      PipelineLatency latency, FrameRates rates, long nowNanos) {
+    long meanInferenceNanos =
+        latency.getCumulative(PipelineLatency.STAGE_INFERENCE).getMeanNanos();
+    return rates.getSkippedFps(nowNanos) * meanInferenceNanos / 1e9f;
+  }
+
+  private static String formatSeconds(long nanos) {
+    return String.format(Locale.US, "%.9f", nanos / 1e9);
+  }
+
+  private static String formatFloat(float value) {
+    return String.format(Locale.US, "%.3f", value);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.metrics;
+
+import android.util.Log;
+import java.util.Locale;
+
+/**
+ * Latency histograms for each stage a camera frame goes through, from waiting to be processed to
+ * being drawn on the overlay.
+ *
+ * <p>Stages record into live histograms from whichever thread runs them. Periodically {@link
+ * #takeIntervalSnapshot()} moves the live values into snapshot histograms, so every snapshot
+ * describes one interval and the tail percentiles are not diluted by older frames. Every snapshot
+ * is also added to a cumulative histogram per stage, for exporters that need running totals.
+ */
+public final class PipelineLatency {
+
+  /** Time a frame waited between arriving at the processor and its processing starting. */
+  public static final int STAGE_FRAME_WAIT = 0;
+  /** Time spent converting a frame into an {@code InputImage} and a preview bitmap. */
+  public static final int STAGE_CONVERSION = 1;
+  /** Time from handing an image to the detector until its result is delivered. */
+  public static final int STAGE_INFERENCE = 2;
+  /** Time spent handling a result, building and publishing the overlay scene. */
+  public static final int STAGE_RESULT_HANDLING = 3;
+  /** Time spent drawing the overlay scene. */
+  public static final int STAGE_RENDER = 4;
+
+  public static final int NUM_STAGES = 5;
+
+  private static final String[] STAGE_NAMES = {
+    "frame_wait", "conversion", "inference", "result_handling", "render",
+  };
+
+  private static final double[] LOGGED_PERCENTILES = {50, 90, 99, 99.9};
+
+  private final LatencyHistogram[] live = new LatencyHistogram[NUM_STAGES];
+  private final LatencyHistogram[] snapshots = new LatencyHistogram[NUM_STAGES];
+  private final LatencyHistogram[] cumulative = new LatencyHistogram[NUM_STAGES];
+
+  public PipelineLatency() {
+    for (int i = 0; i < NUM_STAGES; i++) {
+      live[i] = new LatencyHistogram();
+      snapshots[i] = new LatencyHistogram();
+      cumulative[i] = new LatencyHistogram();
+    }
+  }
+
+  /** Returns the name of a stage, such as {@code "inference"}. */
+  public static String getStageName(int stage) {
+    return STAGE_NAMES[stage];
+  }
+
+  /** Records the duration of one run of a stage. Safe to call on any thread. */
+  public void record(int stage, long nanos) {
+    live[stage].recordNanos(nanos);
+  }
+
+  /** Returns the histogram a stage currently records into. */
+  public LatencyHistogram getLiveHistogram(int stage) {
+    return live[stage];
+  }
+
+  /**
+   * Moves the values recorded since the previous call into the snapshot histograms, which are
+   * returned by {@link #getSnapshot(int)}.
+   */
+  public void takeIntervalSnapshot() {
+    for (int i = 0; i < NUM_STAGES; i++) {
+      live[i].takeIntervalSnapshot(snapshots[i]);
+      cumulative[i].add(snapshots[i]);
+    }
+  }
+
+  /** Returns the histogram of a stage for the interval ended by the last snapshot. */
+  public LatencyHistogram getSnapshot(int stage) {
+    return snapshots[stage];
+  }
+
+  /** Returns the histogram of a stage over all intervals snapshotted so far. */
+  public LatencyHistogram getCumulative(int stage) {
+    return cumulative[stage];
+  }
+
+  /** Logs the percentiles of every stage in the last snapshot that recorded any values. */
+  public void logSnapshot(String tag) {
+    for (int i = 0; i < NUM_STAGES; i++) {
+      LatencyHistogram histogram = snapshots[i];
+      if (histogram.getCount() == 0) {
+        continue;
+      }
+      StringBuilder message =
+          new StringBuilder(STAGE_NAMES[i]).append(": n=").append(histogram.getCount());
+      for (double percentile : LOGGED_PERCENTILES) {
+        message
+            .append(", p")
+            .append(formatPercentile(percentile))
+            .append('=')
+            .append(formatMillis(histogram.getValueAtPercentile(percentile)));
+      }
+      message.append(", max=").append(formatMillis(histogram.getMaxNanos())).append(" ms");
+      Log.d(tag, message.toString());
+    }
+  }
+
+  private static String formatPercentile(double percentile) {
+    return percentile == Math.rint(percentile)
+        ? Integer.toString((int) percentile)
+        : Double.toString(percentile);
+  }
+
+  private static String formatMillis(long nanos) {
+    return String.format(Locale.US, "%.2f", nanos / 1e6);
+  }
+}
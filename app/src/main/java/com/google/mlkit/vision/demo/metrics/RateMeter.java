@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.metrics;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Measures how often an event happens over a sliding time window, e.g. frames per second.
+ *
+ * <p>The timestamps of the most recent events are kept in a fixed-size ring, and the rate is the
+ * number of events within the window divided by its length. Unlike counting per fixed second, the
+ * rate changes smoothly as events enter and leave the window, and no timer thread is needed: all
+ * work happens when events are marked or the rate is read. Until a full window has passed since the
+ * first event, the rate is computed over the time elapsed so far.
+ *
+ * <p>All methods are synchronized, so events can be marked and rates read on different threads.
+ */
+public final class RateMeter {
+
+  private final long windowNanos;
+  private final long[] timestamps;
+
+  // Index the next timestamp is written to, and the number of valid timestamps in the ring.
+  private int next;
+  private int size;
+  private long firstEventNanos;
+  private long totalCount;
+
+  /**
+   * Creates a meter.
+   *
+   * @param windowNanos length of the sliding window
+   * @param capacity the most events kept; should exceed the highest expected count per window
+   */
+  public RateMeter(long windowNanos, int capacity) {
+    Preconditions.checkArgument(windowNanos > 0, "windowNanos must be positive");
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+    this.windowNanos = windowNanos;
+    this.timestamps = new long[capacity];
+  }
+
+  /** Records one event at {@code nowNanos}, in the {@link System#nanoTime()} base. */
+  public synchronized void mark(long nowNanos) {
+    if (totalCount == 0) {
+      firstEventNanos = nowNanos;
+    }
+    timestamps[next] = nowNanos;
+    next = (next + 1) % timestamps.length;
+    size = Math.min(size + 1, timestamps.length);
+    totalCount++;
+  }
+
+  /** Returns the number of events per second within the window ending at {@code nowNanos}. */
+  public synchronized float getRatePerSecond(long nowNanos) {
+    long windowStartNanos = nowNanos - windowNanos;
+    int count = 0;
+    long oldestNanos = nowNanos;
+    // Walk from the newest timestamp back until one falls out of the window.
+    for (int i = 1; i <= size; i++) {
+      long timestamp = timestamps[(next - i + timestamps.length) % timestamps.length];
+      if (timestamp <= windowStartNanos) {
+        break;
+      }
+      count++;
+      oldestNanos = timestamp;
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long spanNanos = windowNanos;
+    if (count == timestamps.length) {
+      // The ring is full, so older events in the window may have been overwritten.
+      spanNanos = nowNanos - oldestNanos;
+    } else if (firstEventNanos > windowStartNanos) {
+      // The meter started within the window.
+      spanNanos = nowNanos - firstEventNanos;
+    }
+    return spanNanos <= 0 ? 0 : count * 1e9f / spanNanos;
+  }
+
+  /** Returns the number of events marked since this meter was created or reset. */
+  public synchronized long getTotalCount() {
+    return totalCount;
+  }
+
+  /** Forgets all events. */
+  public synchronized void reset() {
+    next = 0;
+    size = 0;
+    totalCount = 0;
+  }
+}
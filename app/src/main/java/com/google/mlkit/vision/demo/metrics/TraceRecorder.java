@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recent trace events in a fixed-size ring buffer and exports them in the Chrome
+ * trace event format, which can be opened in chrome://tracing or Perfetto.
+ *
+ * <p>Events are stored in preallocated parallel arrays, so recording does not allocate. Once the
+ * buffer is full the oldest events are overwritten.
+ */
+public final class TraceRecorder {
+
+  static final char PHASE_BEGIN = 'B';
+  static final char PHASE_END = 'E';
+  static final char PHASE_ASYNC_BEGIN = 'b';
+  static final char PHASE_ASYNC_END = 'e';
+
+  private static final String CATEGORY = "frame";
+
+  private final String[] names;
+  private final char[] phases;
+  private final long[] timestampsNanos;
+  private final long[] threadIds;
+  private final String[] threadNames;
+  private final long[] frameNumbers;
+
+  // Index the next event is written to, and the number of events recorded so far.
+  private int next;
+  private long totalCount;
+
+  public TraceRecorder(int capacity) {
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+    names = new String[capacity];
+    phases = new char[capacity];
+    timestampsNanos = new long[capacity];
+    threadIds = new long[capacity];
+    threadNames = new String[capacity];
+    frameNumbers = new long[capacity];
+  }
+
+  synchronized void record(String name, char phase, long frameNumber) {
+    Thread thread = Thread.currentThread();
+    names[next] = name;
+    phases[next] = phase;
+    timestampsNanos[next] = System.nanoTime();
+    threadIds[next] = thread.getId();
+    threadNames[next] = thread.getName();
+    frameNumbers[next] = frameNumber;
+    next = (next + 1) % names.length;
+    totalCount++;
+  }
+
+  /** Returns the number of events that were overwritten before they could be exported. */
+  public synchronized long getOverwrittenCount() {
+    return Math.max(0, totalCount - names.length);
+  }
+
+  /** Forgets all recorded events. */
+  public synchronized void clear() {
+    next = 0;
+    totalCount = 0;
+  }
+
+  /**
+   * Writes the recorded events, oldest first, as a Chrome trace JSON object. Sections begun before
+   * the oldest kept event show up as unmatched ends, which trace viewers ignore.
+   */
+  public void writeChromeTraceJson(Writer writer) throws IOException {
+    TraceRecorder copy;
+    int count;
+    int start;
+    // Copy the events first so recording threads are not blocked on I/O.
+    synchronized (this) {
+      count = (int) Math.min(totalCount, names.length);
+      start = (next - count + names.length) % names.length;
+      copy = new TraceRecorder(names.length);
+      System.arraycopy(names, 0, copy.names, 0, names.length);
+      System.arraycopy(phases, 0, copy.phases, 0, names.length);
+      System.arraycopy(timestampsNanos, 0, copy.timestampsNanos, 0, names.length);
+      System.arraycopy(threadIds, 0, copy.threadIds, 0, names.length);
+      System.arraycopy(threadNames, 0, copy.threadNames, 0, names.length);
+      System.arraycopy(frameNumbers, 0, copy.frameNumbers, 0, names.length);
+    }
+
+    JsonWriter json = new JsonWriter(writer);
+    json.beginObject();
+    json.name("displayTimeUnit").value("ms");
+    json.name("traceEvents").beginArray();
+    Map<Long, String> threads = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      int index = (start + i) % names.length;
+      copy.writeEvent(json, index);
+      threads.put(copy.threadIds[index], copy.threadNames[index]);
+    }
+    for (Map.Entry<Long, String> thread : threads.entrySet()) {
+      json.beginObject();
+      json.name("name").value("thread_name");
+      json.name("ph").value("M");
+      json.name("pid").value(0);
+      json.name("tid").value(thread.getKey());
+      json.name("args").beginObject().name("name").value(thread.getValue()).endObject();
+      json.endObject();
+    }
+    json.endArray();
+    json.endObject();
+    json.flush();
+  }
+
+  private void writeEvent(JsonWriter json, int index) throws IOException {
+    char phase = phases[index];
+    json.beginObject();
+    json.name("name").value(names[index]);
+    json.name("cat").value(CATEGORY);
+    json.name("ph").value(String.valueOf(phase));
+    // Chrome traces use microseconds.
+    json.name("ts").value(timestampsNanos[index] / 1e3);
+    json.name("pid").value(0);
+    json.name("tid").value(threadIds[index]);
+    if (phase == PHASE_ASYNC_BEGIN || phase == PHASE_ASYNC_END) {
+      // Async sections are matched by name and id rather than by thread.
+      json.name("id").value(frameNumbers[index]);
+    }
+    json.name("args").beginObject().name("frame").value(frameNumbers[index]).endObject();
+    json.endObject();
+  }
+}
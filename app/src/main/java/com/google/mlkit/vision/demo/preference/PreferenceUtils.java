@@ -97,6 +97,12 @@ public class PreferenceUtils {
     return sharedPreferences.getBoolean(prefKey, false);
   }
 
+  public static String getExerciseForLivePreview(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_live_preview_pose_detector_exercise);
+    return sharedPreferences.getString(
+        prefKey, context.getString(R.string.pref_entry_values_pose_detector_exercise_squat));
+  }
 
   /**
    * Mode type preference is backed by {@link android.preference.ListPreference} which only support
@@ -110,11 +116,64 @@ public class PreferenceUtils {
     return Integer.parseInt(sharedPreferences.getString(prefKey, String.valueOf(defaultValue)));
   }
 
+  public static boolean shouldInterpolatePoseLivePreview(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_live_preview_pose_detector_interpolate);
+    return sharedPreferences.getBoolean(prefKey, false);
+  }
+
   public static boolean isCameraLiveViewportEnabled(Context context) {
     SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
     String prefKey = context.getString(R.string.pref_key_camera_live_viewport);
     return sharedPreferences.getBoolean(prefKey, false);
   }
 
+  public static boolean isOverlayRenderThreadEnabled(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_overlay_render_thread);
+    return sharedPreferences.getBoolean(prefKey, false);
+  }
+
+  public static boolean isMetricsHttpServerEnabled(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_metrics_http);
+    return sharedPreferences.getBoolean(prefKey, false);
+  }
+
+  public static boolean isMetricsSnapshotLoggingEnabled(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_metrics_snapshots);
+    return sharedPreferences.getBoolean(prefKey, false);
+  }
+
+  /** Returns the factor camera frames are scaled down by before detection, 1 if they are not. */
+  public static float getCameraInferenceDownscale(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_camera_inference_downscale);
+    try {
+      return Float.parseFloat(sharedPreferences.getString(prefKey, "1"));
+    } catch (NumberFormatException e) {
+      return 1f;
+    }
+  }
+
+  public static boolean isCameraMotionGateEnabled(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_camera_motion_gate);
+    return sharedPreferences.getBoolean(prefKey, false);
+  }
+
+  public static boolean isFrameRecordingEnabled(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_frame_recording);
+    return sharedPreferences.getBoolean(prefKey, false);
+  }
+
+  public static boolean isLandmarkRecordingEnabled(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_landmark_recording);
+    return sharedPreferences.getBoolean(prefKey, false);
+  }
+
   private PreferenceUtils() {}
 }
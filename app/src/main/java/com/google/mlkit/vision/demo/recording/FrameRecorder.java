@@ -0,0 +1,380 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.recording;
+
+import android.media.Image.Plane;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.mlkit.vision.demo.BitmapUtils;
+import com.google.mlkit.vision.demo.FrameMetadata;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records camera frames into a memory-mapped {@link FrameRingFile}, so the frames that caused a
+ * problem in the field can be replayed later.
+ *
+ * <p>The capture thread only copies each frame into one of a few pooled buffers and queues it;
+ * a background thread writes queued frames into the mapped file. When all buffers are queued
+ * because writing falls behind, new frames are dropped instead of blocking the capture thread.
+ * Drops are counted, stored in the file header and logged at most once per second.
+ *
+ * <p>The file is preallocated and mapped when the first frame is written, with slots sized for
+ * that frame. Later frames that do not fit a slot, e.g. after a resolution change, are dropped. If
+ * the storage cannot hold the whole file, nothing is recorded.
+ *
+ * <p>{@link #close} does not block: the writer thread flushes and releases the file on its own and
+ * then completes {@link #getClosedFuture}.
+ */
+public final class FrameRecorder implements Closeable {
+
+  private static final String TAG = "FrameRecorder";
+
+  /** Default size of the ring file, about 100 VGA frames. */
+  public static final long DEFAULT_MAX_FILE_BYTES = 48L * 1024 * 1024;
+
+  private static final int QUEUE_DEPTH = 4;
+  // Zeros written at a time to reserve the file where fallocate is not available.
+  private static final int RESERVE_CHUNK_SIZE = 64 * 1024;
+  private static final long DROP_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** A frame copied off the capture thread, reused once it has been written. */
+  private static final class PendingFrame {
+    byte[] data = new byte[0];
+    int length;
+    int width;
+    int height;
+    int rotation;
+    long timestampNanos;
+  }
+
+  // Queued to stop the writer thread.
+  private static final PendingFrame STOP = new PendingFrame();
+
+  private final File file;
+  private final long maxFileBytes;
+  private final BlockingQueue<PendingFrame> freeFrames = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+  private final BlockingQueue<PendingFrame> queuedFrames =
+      new ArrayBlockingQueue<>(QUEUE_DEPTH + 1);
+  private final AtomicLong droppedFrameCount = new AtomicLong();
+  private final Thread writerThread;
+  private final SettableFuture<Void> closedFuture = SettableFuture.create();
+  @Nullable private final Future<?> previousRecorderClosed;
+  private volatile boolean isClosed;
+
+  // Only accessed on the writer thread.
+  @Nullable private RandomAccessFile randomAccessFile;
+  @Nullable private MappedByteBuffer buffer;
+  private int slotCount;
+  private int slotSize;
+  private long writtenFrameCount;
+  private long lastLoggedDropCount;
+  private long lastDropLogNanos;
+
+  /**
+   * Creates a recorder writing to {@code file}, which is replaced, and starts its writer thread.
+   *
+   * @param maxFileBytes the size of the ring file; it holds as many frames as fit
+   */
+  public FrameRecorder(File file, long maxFileBytes) {
+    this(file, maxFileBytes, /* previousRecorderClosed= */ null);
+  }
+
+  /**
+   * Creates a recorder like {@link #FrameRecorder(File, long)} that replaces the file of an earlier
+   * recorder once {@code previousRecorderClosed}, that recorder's {@link #getClosedFuture}, is
+   * done, so the two never map the file at the same time.
+   */
+  public FrameRecorder(File file, long maxFileBytes, @Nullable Future<?> previousRecorderClosed) {
+    Preconditions.checkArgument(maxFileBytes > FrameRingFile.FILE_HEADER_SIZE);
+    this.file = file;
+    this.maxFileBytes = maxFileBytes;
+    this.previousRecorderClosed = previousRecorderClosed;
+    for (int i = 0; i < QUEUE_DEPTH; i++) {
+      freeFrames.add(new PendingFrame());
+    }
+    writerThread = new Thread(this::writeLoop, "FrameRecorder");
+    writerThread.setPriority(Thread.MIN_PRIORITY);
+    writerThread.start();
+  }
+
+  /**
+   * Queues an NV21 frame for recording. Never blocks; returns false if the frame was dropped.
+   *
+   * @param timestampNanos capture time of the frame, in any base that is consistent across frames
+   */
+  public boolean offerNv21(ByteBuffer data, FrameMetadata metadata, long timestampNanos) {
+    int length = data.limit();
+    PendingFrame frame = takeFreeFrame(length);
+    if (frame == null) {
+      return false;
+    }
+    // Read through a duplicate so the position of the caller's buffer is left alone.
+    ByteBuffer source = data.duplicate();
+    source.rewind();
+    source.get(frame.data, 0, length);
+    queue(
+        frame,
+        length,
+        metadata.getWidth(),
+        metadata.getHeight(),
+        metadata.getRotation(),
+        timestampNanos);
+    return true;
+  }
+
+  /**
+   * Queues a YUV_420_888 frame for recording, converted to NV21. Never blocks; returns false if the
+   * frame was dropped.
+   */
+  @RequiresApi(VERSION_CODES.KITKAT)
+  public boolean offerYuv420(
+      Plane[] planes, int width, int height, int rotation, long timestampNanos) {
+    int length = BitmapUtils.getNV21Size(width, height);
+    PendingFrame frame = takeFreeFrame(length);
+    if (frame == null) {
+      return false;
+    }
+    BitmapUtils.yuv420ThreePlanesToNV21(planes, width, height, frame.data);
+    queue(frame, length, width, height, rotation, timestampNanos);
+    return true;
+  }
+
+  /** Returns the number of frames dropped so far. */
+  public long getDroppedFrameCount() {
+    return droppedFrameCount.get();
+  }
+
+  /**
+   * Stops recording without waiting. The writer thread writes the queued frames, flushes and
+   * releases the file, then completes {@link #getClosedFuture}. Must not be called concurrently
+   * with the offer methods.
+   */
+  @Override
+  public void close() {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    // The writer may already have stopped after an error, then the marker is never taken.
+    queuedFrames.offer(STOP);
+  }
+
+  /**
+   * Returns a future that completes once the file is complete and released, after {@link #close}.
+   * Flushing can take seconds, so only wait on it off the main thread.
+   */
+  public ListenableFuture<Void> getClosedFuture() {
+    return closedFuture;
+  }
+
+  @Nullable
+  private PendingFrame takeFreeFrame(int length) {
+    PendingFrame frame = isClosed ? null : freeFrames.poll();
+    if (frame == null) {
+      droppedFrameCount.incrementAndGet();
+      return null;
+    }
+    if (frame.data.length < length) {
+      frame.data = new byte[length];
+    }
+    return frame;
+  }
+
+  private void queue(
+      PendingFrame frame, int length, int width, int height, int rotation, long timestampNanos) {
+    frame.length = length;
+    frame.width = width;
+    frame.height = height;
+    frame.rotation = rotation;
+    frame.timestampNanos = timestampNanos;
+    // Cannot fail, the queue has room for every pooled frame.
+    queuedFrames.add(frame);
+  }
+
+  private void writeLoop() {
+    try {
+      while (true) {
+        PendingFrame frame;
+        try {
+          frame = queuedFrames.take();
+        } catch (InterruptedException e) {
+          Log.d(TAG, "Frame writer interrupted.", e);
+          return;
+        }
+        if (frame == STOP) {
+          return;
+        }
+        try {
+          write(frame);
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to record frame, stopping the recorder", e);
+          isClosed = true;
+          return;
+        } finally {
+          freeFrames.add(frame);
+        }
+        logDrops();
+      }
+    } finally {
+      closeFile();
+      closedFuture.set(null);
+    }
+  }
+
+  private void write(PendingFrame frame) throws IOException {
+    if (buffer == null) {
+      mapFile(frame.length);
+    }
+    if (frame.length > slotSize - FrameRingFile.SLOT_HEADER_SIZE) {
+      droppedFrameCount.incrementAndGet();
+      return;
+    }
+    long sequenceNumber = writtenFrameCount;
+    int offset = (int) FrameRingFile.getSlotOffset((int) (sequenceNumber % slotCount), slotSize);
+    // Invalidate the slot first, so a reader never takes a half written slot for a whole frame.
+    buffer.putLong(offset + FrameRingFile.SLOT_SEQUENCE_OFFSET, -1);
+    buffer.position(offset + FrameRingFile.SLOT_HEADER_SIZE);
+    buffer.put(frame.data, 0, frame.length);
+    buffer.putLong(offset + FrameRingFile.SLOT_TIMESTAMP_OFFSET, frame.timestampNanos);
+    buffer.putInt(offset + FrameRingFile.SLOT_WIDTH_OFFSET, frame.width);
+    buffer.putInt(offset + FrameRingFile.SLOT_HEIGHT_OFFSET, frame.height);
+    buffer.putInt(offset + FrameRingFile.SLOT_ROTATION_OFFSET, frame.rotation);
+    buffer.putInt(offset + FrameRingFile.SLOT_LENGTH_OFFSET, frame.length);
+    buffer.putLong(offset + FrameRingFile.SLOT_SEQUENCE_OFFSET, sequenceNumber);
+    writtenFrameCount++;
+    buffer.putLong(FrameRingFile.HEADER_FRAME_COUNT_OFFSET, writtenFrameCount);
+    buffer.putLong(FrameRingFile.HEADER_DROPPED_COUNT_OFFSET, droppedFrameCount.get());
+  }
+
+  private void mapFile(int frameLength) throws IOException {
+    slotSize = FrameRingFile.SLOT_HEADER_SIZE + frameLength;
+    long slots = (maxFileBytes - FrameRingFile.FILE_HEADER_SIZE) / slotSize;
+    // A single mapping is limited to 2 GB.
+    slots = Math.min(slots, (Integer.MAX_VALUE - FrameRingFile.FILE_HEADER_SIZE) / slotSize);
+    if (slots < 1) {
+      throw new IOException("A frame of " + frameLength + " bytes does not fit the ring file");
+    }
+    slotCount = (int) slots;
+    long size = FrameRingFile.getSlotOffset(slotCount, slotSize);
+
+    awaitPreviousRecorder();
+    randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.setLength(0);
+    try {
+      reserve(randomAccessFile, size);
+    } catch (IOException e) {
+      // Stores into a mapping of unreserved blocks crash the process once storage runs out.
+      randomAccessFile.setLength(0);
+      throw new IOException("Not enough storage for a " + size + " byte ring file", e);
+    }
+    buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(FrameRingFile.HEADER_MAGIC_OFFSET, FrameRingFile.MAGIC);
+    buffer.putInt(FrameRingFile.HEADER_VERSION_OFFSET, FrameRingFile.VERSION);
+    buffer.putInt(FrameRingFile.HEADER_SLOT_COUNT_OFFSET, slotCount);
+    buffer.putInt(FrameRingFile.HEADER_SLOT_SIZE_OFFSET, slotSize);
+    buffer.putLong(FrameRingFile.HEADER_FRAME_COUNT_OFFSET, 0);
+    Log.d(TAG, "Recording " + slotCount + " frames of " + frameLength + " bytes to " + file);
+  }
+
+  private void awaitPreviousRecorder() throws IOException {
+    if (previousRecorderClosed == null) {
+      return;
+    }
+    try {
+      previousRecorderClosed.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the previous recorder to close", e);
+    } catch (ExecutionException e) {
+      // The previous recorder is done with the file either way.
+      Log.w(TAG, "Previous recorder failed to close", e);
+    }
+  }
+
+  /** Allocates the blocks of the first {@code size} bytes of an empty file. */
+  private static void reserve(RandomAccessFile randomAccessFile, long size) throws IOException {
+    if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
+      try {
+        Os.posix_fallocate(randomAccessFile.getFD(), 0, size);
+        return;
+      } catch (ErrnoException e) {
+        if (e.errno != OsConstants.EOPNOTSUPP) {
+          throw new IOException("fallocate failed", e);
+        }
+        // The file system cannot allocate without writing, fall back to writing zeros.
+      }
+    }
+    FileChannel channel = randomAccessFile.getChannel();
+    ByteBuffer zeros = ByteBuffer.allocate(RESERVE_CHUNK_SIZE);
+    long position = 0;
+    while (position < size) {
+      zeros.clear();
+      zeros.limit((int) Math.min(RESERVE_CHUNK_SIZE, size - position));
+      position += channel.write(zeros, position);
+    }
+  }
+
+  private void logDrops() {
+    long drops = droppedFrameCount.get();
+    long now = System.nanoTime();
+    if (drops != lastLoggedDropCount && now - lastDropLogNanos >= DROP_LOG_INTERVAL_NANOS) {
+      Log.w(TAG, "Dropped " + (drops - lastLoggedDropCount) + " frames, " + drops + " in total");
+      lastLoggedDropCount = drops;
+      lastDropLogNanos = now;
+    }
+  }
+
+  private void closeFile() {
+    if (buffer != null) {
+      buffer.putLong(FrameRingFile.HEADER_DROPPED_COUNT_OFFSET, droppedFrameCount.get());
+      buffer.force();
+      buffer = null;
+    }
+    if (randomAccessFile != null) {
+      try {
+        randomAccessFile.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close " + file, e);
+      }
+      randomAccessFile = null;
+    }
+    Log.d(TAG, "Recorded " + writtenFrameCount + " frames, dropped " + droppedFrameCount.get());
+  }
+}
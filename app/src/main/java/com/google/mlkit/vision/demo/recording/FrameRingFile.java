@@ -0,0 +1,175 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.recording;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Layout of the ring file written by {@link FrameRecorder}, and a reader for it.
+ *
+ * <p>The file starts with a {@link #FILE_HEADER_SIZE} byte header, followed by {@code slotCount}
+ * slots of {@code slotSize} bytes each. Every slot holds a {@link #SLOT_HEADER_SIZE} byte header
+ * with the frame metadata, followed by the NV21 frame data. Frame {@code n} is written to slot
+ * {@code n % slotCount}, and the file header's frame count is only advanced once the slot is
+ * complete, so the last {@code min(frameCount, slotCount)} frames are always readable. All values
+ * are little endian.
+ */
+public final class FrameRingFile {
+
+  static final int MAGIC = 0x52464450; // "PDFR" in little endian.
+  static final int VERSION = 1;
+
+  static final int FILE_HEADER_SIZE = 64;
+  static final int HEADER_MAGIC_OFFSET = 0;
+  static final int HEADER_VERSION_OFFSET = 4;
+  static final int HEADER_SLOT_COUNT_OFFSET = 8;
+  static final int HEADER_SLOT_SIZE_OFFSET = 12;
+  static final int HEADER_FRAME_COUNT_OFFSET = 16;
+  static final int HEADER_DROPPED_COUNT_OFFSET = 24;
+
+  static final int SLOT_HEADER_SIZE = 32;
+  static final int SLOT_SEQUENCE_OFFSET = 0;
+  static final int SLOT_TIMESTAMP_OFFSET = 8;
+  static final int SLOT_WIDTH_OFFSET = 16;
+  static final int SLOT_HEIGHT_OFFSET = 20;
+  static final int SLOT_ROTATION_OFFSET = 24;
+  static final int SLOT_LENGTH_OFFSET = 28;
+
+  private FrameRingFile() {}
+
+  static long getSlotOffset(int slot, int slotSize) {
+    return FILE_HEADER_SIZE + (long) slot * slotSize;
+  }
+
+  /** A recorded NV21 frame and its metadata. */
+  public static final class Frame {
+    /** Position of the frame among all frames recorded into the file. */
+    public final long sequenceNumber;
+    /** Capture time in nanoseconds. Only differences between frames are meaningful. */
+    public final long timestampNanos;
+    public final int width;
+    public final int height;
+    public final int rotation;
+    public final byte[] data;
+
+    Frame(
+        long sequenceNumber,
+        long timestampNanos,
+        int width,
+        int height,
+        int rotation,
+        byte[] data) {
+      this.sequenceNumber = sequenceNumber;
+      this.timestampNanos = timestampNanos;
+      this.width = width;
+      this.height = height;
+      this.rotation = rotation;
+      this.data = data;
+    }
+  }
+
+  /** Reads the frames still held by a ring file, oldest first. */
+  public static final class Reader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final int slotSize;
+    private final long firstSequenceNumber;
+    private final int frameCount;
+    private final long droppedFrameCount;
+
+    public Reader(File path) throws IOException {
+      file = new RandomAccessFile(path, "r");
+      try {
+        if (file.length() < FILE_HEADER_SIZE) {
+          throw new IOException("Not a frame ring file: " + path);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(HEADER_MAGIC_OFFSET) != MAGIC
+            || buffer.getInt(HEADER_VERSION_OFFSET) != VERSION) {
+          throw new IOException("Not a frame ring file: " + path);
+        }
+        slotCount = buffer.getInt(HEADER_SLOT_COUNT_OFFSET);
+        slotSize = buffer.getInt(HEADER_SLOT_SIZE_OFFSET);
+        if (slotCount <= 0
+            || slotSize <= SLOT_HEADER_SIZE
+            || getSlotOffset(slotCount, slotSize) > file.length()) {
+          throw new IOException("Corrupt frame ring file header: " + path);
+        }
+        long totalFrames = buffer.getLong(HEADER_FRAME_COUNT_OFFSET);
+        frameCount = (int) Math.min(totalFrames, slotCount);
+        firstSequenceNumber = totalFrames - frameCount;
+        droppedFrameCount = buffer.getLong(HEADER_DROPPED_COUNT_OFFSET);
+      } catch (IOException e) {
+        file.close();
+        throw e;
+      }
+    }
+
+    /** Returns the number of frames that can be read. */
+    public int getFrameCount() {
+      return frameCount;
+    }
+
+    /** Returns the number of frames the recorder dropped while writing the file. */
+    public long getDroppedFrameCount() {
+      return droppedFrameCount;
+    }
+
+    /** Reads the frame at {@code index}, where 0 is the oldest frame still held by the file. */
+    public Frame readFrame(int index) throws IOException {
+      if (index < 0 || index >= frameCount) {
+        throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+      }
+      long sequenceNumber = firstSequenceNumber + index;
+      int offset = (int) getSlotOffset((int) (sequenceNumber % slotCount), slotSize);
+      if (buffer.getLong(offset + SLOT_SEQUENCE_OFFSET) != sequenceNumber) {
+        throw new IOException("Slot of frame " + sequenceNumber + " was not completely written");
+      }
+      int length = buffer.getInt(offset + SLOT_LENGTH_OFFSET);
+      if (length < 0 || length > slotSize - SLOT_HEADER_SIZE) {
+        throw new IOException("Corrupt length of frame " + sequenceNumber + ": " + length);
+      }
+      byte[] data = new byte[length];
+      // Read through a duplicate, so concurrent reads do not share a position.
+      ByteBuffer slot = buffer.duplicate();
+      slot.position(offset + SLOT_HEADER_SIZE);
+      slot.get(data);
+      return new Frame(
+          sequenceNumber,
+          buffer.getLong(offset + SLOT_TIMESTAMP_OFFSET),
+          buffer.getInt(offset + SLOT_WIDTH_OFFSET),
+          buffer.getInt(offset + SLOT_HEIGHT_OFFSET),
+          buffer.getInt(offset + SLOT_ROTATION_OFFSET),
+          data);
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.recording;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.common.base.Preconditions;
+import com.google.mlkit.common.MlKitException;
+import com.google.mlkit.vision.demo.FrameMetadata;
+import com.google.mlkit.vision.demo.GraphicOverlay;
+import com.google.mlkit.vision.demo.VisionImageProcessor;
+import com.google.mlkit.vision.demo.metrics.FrameRates;
+import com.google.mlkit.vision.demo.metrics.LatencyHistogram;
+import com.google.mlkit.vision.demo.metrics.PipelineLatency;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the frames of a {@link FrameRingFile} to a {@link VisionImageProcessor} instead of a
+ * camera, so the throughput of the pipeline can be measured on the same input every time.
+ *
+ * <p>Frames are handed to {@link VisionImageProcessor#processByteBuffer} on a background thread,
+ * just like {@code CameraSource} does. The processor must be newly created and its metrics passed
+ * in, since the report is built from everything they recorded.
+ */
+public final class ReplayFrameSource {
+
+  private static final String TAG = "ReplayFrameSource";
+
+  // A processor holds one frame in detection and one waiting; more would replace the waiting one.
+  private static final int MAX_FRAMES_IN_FLIGHT = 2;
+  private static final long POLL_INTERVAL_MILLIS = 1;
+  private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+  private static final double[] REPORTED_PERCENTILES = {50, 90, 99};
+
+  /** How fast frames are fed to the processor. */
+  public enum Mode {
+    /** Feeds frames at the pace they were recorded, dropping those the processor cannot keep. */
+    REAL_TIME,
+    /** Feeds the next frame as soon as the processor can take it without dropping any. */
+    MAX_THROUGHPUT,
+  }
+
+  /** Receives the report once all frames were replayed, on the replay thread. */
+  public interface OnReplayFinishedListener {
+    void onReplayFinished(Report report);
+  }
+
+  /** The outcome of one replay. */
+  public static final class Report {
+    public final Mode mode;
+    /** Frames handed to the processor. */
+    public final long inputFrameCount;
+    /** Frames the processor produced a result for. */
+    public final long processedFrameCount;
+    /** Frames the processor dropped or failed on, including those it could not be given. */
+    public final long droppedFrameCount;
+    /** Frames the recorder dropped while the file was written, for reference. */
+    public final long recordingDroppedFrameCount;
+    /** Time from handing over the first frame until the last result was delivered. */
+    public final long elapsedNanos;
+
+    private final LatencyHistogram[] latencies;
+
+    Report(
+        Mode mode,
+        long inputFrameCount,
+        long processedFrameCount,
+        long droppedFrameCount,
+        long recordingDroppedFrameCount,
+        long elapsedNanos,
+        LatencyHistogram[] latencies) {
+      this.mode = mode;
+      this.inputFrameCount = inputFrameCount;
+      this.processedFrameCount = processedFrameCount;
+      this.droppedFrameCount = droppedFrameCount;
+      this.recordingDroppedFrameCount = recordingDroppedFrameCount;
+      this.elapsedNanos = elapsedNanos;
+      this.latencies = latencies;
+    }
+
+    /** Returns the processed frames per second over the whole replay. */
+    public double getProcessedFps() {
+      return elapsedNanos > 0 ? processedFrameCount * 1e9 / elapsedNanos : 0;
+    }
+
+    /** Returns the latencies recorded for one of the {@link PipelineLatency} stages. */
+    public LatencyHistogram getLatency(int stage) {
+      return latencies[stage];
+    }
+
+    public void log(String tag) {
+      Log.d(
+          tag,
+          String.format(
+              Locale.US,
+              "Replay %s: %d frames in %.2f s, %.1f fps, %d dropped (%d while recording)",
+              mode,
+              inputFrameCount,
+              elapsedNanos / 1e9,
+              getProcessedFps(),
+              droppedFrameCount,
+              recordingDroppedFrameCount));
+      for (int stage = 0; stage < PipelineLatency.NUM_STAGES; stage++) {
+        LatencyHistogram histogram = latencies[stage];
+        if (histogram.getCount() == 0) {
+          continue;
+        }
+        StringBuilder message =
+            new StringBuilder(PipelineLatency.getStageName(stage))
+                .append(": n=")
+                .append(histogram.getCount());
+        for (double percentile : REPORTED_PERCENTILES) {
+          message.append(
+              String.format(
+                  Locale.US,
+                  ", p%d=%.2f",
+                  (int) percentile,
+                  histogram.getValueAtPercentile(percentile) / 1e6));
+        }
+        message.append(String.format(Locale.US, ", max=%.2f ms", histogram.getMaxNanos() / 1e6));
+        Log.d(tag, message.toString());
+      }
+    }
+  }
+
+  private final File file;
+  private final Mode mode;
+  private final VisionImageProcessor processor;
+  private final GraphicOverlay graphicOverlay;
+  private final PipelineLatency pipelineLatency;
+  private final FrameRates frameRates;
+
+  @Nullable private Thread replayThread;
+  private volatile boolean isStopped;
+
+  /**
+   * Creates a replay of {@code file} into {@code processor}.
+   *
+   * @param pipelineLatency the latency metrics of {@code processor}
+   * @param frameRates the frame rates of {@code processor}, which must not have seen any frames
+   */
+  public ReplayFrameSource(
+      File file,
+      Mode mode,
+      VisionImageProcessor processor,
+      GraphicOverlay graphicOverlay,
+      PipelineLatency pipelineLatency,
+      FrameRates frameRates) {
+    Preconditions.checkArgument(
+        frameRates.getInputCount() == 0, "Replay needs a processor that has not seen any frames");
+    this.file = file;
+    this.mode = mode;
+    this.processor = processor;
+    this.graphicOverlay = graphicOverlay;
+    this.pipelineLatency = pipelineLatency;
+    this.frameRates = frameRates;
+  }
+
+  /** Starts the replay in the background. A source can only be started once. */
+  public synchronized void start(@Nullable OnReplayFinishedListener listener) {
+    Preconditions.checkState(replayThread == null, "Replay already started");
+    replayThread = new Thread(() -> replay(listener), "ReplayFrameSource");
+    replayThread.start();
+  }
+
+  /** Stops the replay and waits for it to end. No report is delivered for a stopped replay. */
+  public synchronized void stop() {
+    isStopped = true;
+    if (replayThread == null) {
+      return;
+    }
+    replayThread.interrupt();
+    try {
+      replayThread.join();
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Interrupted while waiting for the replay to stop.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void replay(@Nullable OnReplayFinishedListener listener) {
+    FrameRingFile.Reader reader;
+    try {
+      reader = new FrameRingFile.Reader(file);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to open " + file, e);
+      return;
+    }
+    long unreadableFrameCount = 0;
+    long startNanos = System.nanoTime();
+    try {
+      boolean isAnchored = false;
+      long firstTimestampNanos = 0;
+      for (int i = 0; i < reader.getFrameCount() && !isStopped; i++) {
+        FrameRingFile.Frame frame;
+        try {
+          frame = reader.readFrame(i);
+        } catch (IOException e) {
+          Log.w(TAG, "Skipping frame " + i, e);
+          unreadableFrameCount++;
+          continue;
+        }
+        // The oldest frames of a ring left by a crash may be unreadable, so the replay clock starts
+        // at the first frame that could be read rather than at frame 0.
+        if (!isAnchored) {
+          isAnchored = true;
+          firstTimestampNanos = frame.timestampNanos;
+          startNanos = System.nanoTime();
+        }
+        if (mode == Mode.REAL_TIME) {
+          long dueNanos = startNanos + frame.timestampNanos - firstTimestampNanos;
+          TimeUnit.NANOSECONDS.sleep(dueNanos - System.nanoTime());
+        } else {
+          awaitFramesInFlightBelow(MAX_FRAMES_IN_FLIGHT, Long.MAX_VALUE);
+        }
+        feed(frame);
+      }
+      if (isStopped) {
+        return;
+      }
+      if (!awaitFramesInFlightBelow(1, System.nanoTime() + DRAIN_TIMEOUT_NANOS)) {
+        Log.w(TAG, "Processor did not finish all frames in time");
+      }
+      awaitMainThread();
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Replay interrupted.");
+      return;
+    } finally {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close " + file, e);
+      }
+    }
+
+    Report report = buildReport(System.nanoTime() - startNanos, unreadableFrameCount, reader);
+    report.log(TAG);
+    if (listener != null) {
+      listener.onReplayFinished(report);
+    }
+  }
+
+  private void feed(FrameRingFile.Frame frame) {
+    FrameMetadata metadata =
+        new FrameMetadata.Builder()
+            .setWidth(frame.width)
+            .setHeight(frame.height)
+            .setRotation(frame.rotation)
+            .build();
+    try {
+      processor.processByteBuffer(ByteBuffer.wrap(frame.data), metadata, graphicOverlay);
+    } catch (MlKitException e) {
+      Log.e(TAG, "Failed to process frame " + frame.sequenceNumber, e);
+    }
+  }
+
+  /**
+   * Waits until fewer than {@code maxFrames} frames are in the processor, or the deadline passed.
+   * Returns whether the processor got there.
+   */
+  private boolean awaitFramesInFlightBelow(int maxFrames, long deadlineNanos)
+      throws InterruptedException {
+    // The processor has no completion callback, but every frame it takes ends up processed or
+    // dropped. Frames keep being processed while this polls, so polling costs no throughput.
+    while (getFramesInFlight() >= maxFrames) {
+      if (System.nanoTime() - deadlineNanos >= 0) {
+        return false;
+      }
+      Thread.sleep(POLL_INTERVAL_MILLIS);
+    }
+    return true;
+  }
+
+  /**
+   * Waits for the main thread to run everything posted to it so far. Results are handled there, so
+   * afterwards the metrics of the last frame are complete.
+   */
+  private static void awaitMainThread() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    new Handler(Looper.getMainLooper()).post(latch::countDown);
+    latch.await();
+  }
+
+  private long getFramesInFlight() {
+    return frameRates.getInputCount()
+        - frameRates.getProcessedCount()
+        - frameRates.getDroppedCount()
+        - frameRates.getSkippedCount();
+  }
+
+  private Report buildReport(
+      long elapsedNanos, long unreadableFrameCount, FrameRingFile.Reader reader) {
+    LatencyHistogram[] latencies = new LatencyHistogram[PipelineLatency.NUM_STAGES];
+    for (int stage = 0; stage < PipelineLatency.NUM_STAGES; stage++) {
+      // The processor has no results left to handle, so no interval snapshot moves values between
+      // the two.
+      latencies[stage] = new LatencyHistogram();
+      latencies[stage].add(pipelineLatency.getCumulative(stage));
+      latencies[stage].add(pipelineLatency.getLiveHistogram(stage));
+    }
+    return new Report(
+        mode,
+        frameRates.getInputCount(),
+        frameRates.getProcessedCount(),
+        frameRates.getDroppedCount() + unreadableFrameCount,
+        reader.getDroppedFrameCount(),
+        elapsedNanos,
+        latencies);
+  }
+}